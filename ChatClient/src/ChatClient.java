@@ -1,22 +1,116 @@
 /*
  * Author: Adin Geist
  * Description: The mediator between the GUI and the server. Provides implementation to send and receive messages
- *              from the server.
+ *              from the server. Commands are queued and written out by whichever thread gets to them first, so
+ *              senders never wait for each other or for the server, and everything the server says, the answer to
+ *              a login included, is read by the one reader thread.
  */
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 public class ChatClient {
+    // Binary frames smaller than this are sent uncompressed
+    private static final int COMPRESS_MIN_BYTES = 512;
+    // Ping the server after this long without hearing from it, and give the connection up after the timeout
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 15000;
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 45000;
+    // Reconnect attempts start this far apart and back off up to the maximum
+    private static final long MIN_RECONNECT_MILLIS = 500;
+    private static final long MAX_RECONNECT_MILLIS = 30000;
+    // How long login() waits for the server to answer before giving up
+    private static final long LOGIN_TIMEOUT_MILLIS = 30000;
+    // What the server answers to any command, the login included, from a client going over its rate limits
+    private static final String RATE_LIMITED = "Rate limit exceeded, slow down.";
+    // Most commands that may wait to be written before sending fails
+    private static final int MAX_QUEUED = 65536;
+    // Size of the buffer commands are gathered in before they are written to the socket together
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
     private final String serverIp;
     private final int port;
-    private Socket socket;
-    private BufferedReader inputStream;
-    private OutputStream outputStream;
+    // Replaced on every reconnect
+    private volatile Socket socket;
+    private volatile LineReader inputStream;
+    private volatile OutputStream outputStream;
     private UserStatusListener statusListener;
     private MessageListener messageListener;
     private String login;
+    // Optional protocol features the server agreed to, empty for servers that don't know hello
+    private Set<Capability> capabilities = Collections.emptySet();
+    // Version of the last roster snapshot, presence deltas at or below it are already part of it
+    private long rosterVersion = -1;
+    // Broadcast ids already shown, kept across reconnects so the server can replay what was missed
+    private final MessageIdTracker messageIds = new MessageIdTracker();
+    // Compresses large outgoing frames once deflate was agreed on, only used while holding this client's lock
+    private Deflater deflater;
+    // When anything was last read from the server, checked by the heartbeat
+    private volatile long lastReadNanos = System.nanoTime();
+    // One thread checks the connections of every client in the process, so many clients don't mean many threads
+    private static ScheduledExecutorService heartbeats;
+    // Checks this client's connection every heartbeat interval, started with the first connection that agreed to them
+    private ScheduledFuture<?> heartbeat;
+    // Set once the user logged off, so a closed connection is not reconnected
+    private volatile boolean loggedOff = false;
+    // Commands waiting to be written, while logged in they are drained by whichever sender gets there first
+    private final BlockingQueue<Outgoing> outgoing = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    // True from a successful login until its connection closes, queued commands are only written in between
+    private volatile boolean online = false;
+    // Counts connections, a post that was already written on the current one is not written again
+    private int connection = 0;
+    // The login waiting for the server's answer, null when none is
+    private volatile String loginInFlight;
+    private volatile CompletableFuture<Boolean> loginAnswer;
+    // Posts are numbered with a random prefix, a dash and a sequence number. The prefix keeps a restarted client from
+    // reusing the ids of an earlier one under the same login.
+    private final String clientIdPrefix = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private final AtomicLong postSequence = new AtomicLong();
+    // Posts the server hasn't acked yet by sequence number, sent again after a reconnect
+    private final ConcurrentSkipListMap<Long, Outgoing> unacked = new ConcurrentSkipListMap<>();
+    // Released by startMessageReader, the reader holds back everything meant for the listeners until then
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private Thread reader;
+    // Uploads waiting for the server to grant them, by client id. Granted ones complete with the file id, the
+    // token and the transfer port.
+    private final Map<String, CompletableFuture<String[]>> uploadGrants = new ConcurrentHashMap<>();
+    // The port files are fetched from, learned from the first file announced
+    private volatile int transferPort = -1;
+    // Moves files to and from the transfer port, so transfers never hold up the chat connection
+    private static ExecutorService transfers;
+    // How long to wait before the next reconnect attempt, only used by the reader
+    private long reconnectBackoff = MIN_RECONNECT_MILLIS;
 
     // Constructor that stores the ip and port to a field
     public ChatClient(String ip, int port) {
@@ -24,49 +118,250 @@ public class ChatClient {
         this.port = port;
     }
 
-    // Start reading messages in a loop forever in a new thread, so it doesn't block the program
+    // Start handing messages to the listeners, which must be set by now. The reader itself already runs from the
+    // first login on, so the login can be answered.
     public void startMessageReader() {
-        Thread t = new Thread() {
+        listening.countDown();
+        startReader();
+    }
+
+    // Start reading messages in a loop forever in a new thread, so it doesn't block the program
+    private synchronized void startReader() {
+        if (reader != null) return;
+        reader = new Thread() {
             @Override
             public void run() {
                 readMessageLoop();
             }
         };
-        t.start();
+        reader.start();
     }
 
-    // Read messages forever and handle them according to the command
+    // Read messages and handle them according to the command. When the connection is lost without the user logging
+    // off, connect and log in again, which also replays what was missed, and carry on reading.
     private void readMessageLoop() {
-        try {
-            String line;
-            while ((line = inputStream.readLine()) != null) { // Blocking!
-                String[] tokens = line.split(" "); // Split the command and arguments
-                if (tokens.length > 0) {
-                    String cmd = tokens[0];
-                    if ("online".equalsIgnoreCase(cmd)) {
-                        // Received: online user
-                        handleOnline(tokens);
-                    } else if ("offline".equalsIgnoreCase(cmd)) {
-                        // Received: offline user
-                        handleOffline(tokens);
-                    } else if ("msg".equalsIgnoreCase(cmd)) {
-                        String userSentMsg = tokens[1];
-                        // Received: msg user msgBody
-                        String msg = line.substring(tokens[0].length()+1 + tokens[1].length()+1);
-                        handleMessage(userSentMsg, msg);
-                    }
+        do {
+            readMessages();
+            online = false;
+            answerLogin(false); // A login still waiting won't be answered on this connection
+            for (String clientId : uploadGrants.keySet()) {
+                CompletableFuture<String[]> grant = uploadGrants.remove(clientId);
+                if (grant != null) {
+                    grant.completeExceptionally(new IOException("Connection closed before the upload was granted"));
                 }
             }
-        } catch (Exception ex) {
             try {
                 // Try to close the socket if it fails reading a message
                 socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } while (!loggedOff && login != null && reconnect());
+        // Nothing will be sent any more, so don't leave anyone waiting for an ack
+        for (Outgoing post : unacked.values()) {
+            post.result.completeExceptionally(new IOException("Connection closed before the server acked the message"));
+        }
+        unacked.clear();
+    }
+
+    // Read messages until the connection closes or breaks. Answers to logins, acks and pings are handled right away,
+    // everything else waits until the listeners are set.
+    private void readMessages() {
+        try {
+            ProtocolLine line;
+            while ((line = inputStream.readLine()) != null) { // Blocking!
+                lastReadNanos = System.nanoTime();
+                // The command is matched straight from the received bytes
+                switch (line.command()) {
+                    case LOGIN:
+                        // Received: login ok, or login refused reason
+                        boolean accepted = "ok".equalsIgnoreCase(line.argument(0));
+                        answerLogin(accepted);
+                        // Logging in again after a reconnect was refused, try again on a new connection
+                        if (!accepted && login != null) return;
+                        break;
+                    case ACK:
+                        // Received: ack clientId id, the post went out under the given message id
+                        Outgoing acked = takeUnacked(line.argument(0));
+                        if (acked != null) {
+                            acked.result.complete(Long.parseLong(line.argument(1)));
+                        }
+                        break;
+                    case NACK:
+                        // Received: nack clientId reason, the post or upload was refused and won't be sent again
+                        Outgoing refused = takeUnacked(line.argument(0));
+                        if (refused != null) {
+                            refused.result.completeExceptionally(new IOException(line.body(1)));
+                        }
+                        CompletableFuture<String[]> refusedUpload = uploadGrants.remove(line.argument(0));
+                        if (refusedUpload != null) {
+                            refusedUpload.completeExceptionally(new IOException(line.body(1)));
+                        }
+                        break;
+                    case UPLOAD:
+                        // Received: upload clientId fileId token port, the file may be sent to the transfer port
+                        CompletableFuture<String[]> granted = uploadGrants.remove(line.argument(0));
+                        if (granted != null) {
+                            granted.complete(new String[]{line.argument(1), line.argument(2), line.argument(3)});
+                        }
+                        break;
+                    case PING:
+                        // Received: ping, the server hasn't heard from us in a while
+                        send("pong", null);
+                        break;
+                    default:
+                        // Servers that don't answer a refused login with a login line send one of these instead
+                        String text = loginInFlight != null ? line.toString() : null;
+                        if (text != null && (text.equals("Username is invalid.") || text.equals(RATE_LIMITED))) {
+                            answerLogin(false);
+                            // Logging in again after a reconnect was refused, try again on a new connection
+                            if (login != null) return;
+                        } else {
+                            listening.await();
+                            dispatch(line);
+                        }
+                }
+            }
+        } catch (Exception ex) {
+            // Reading failed, the connection is closed by the caller
+        }
+    }
+
+    // Hand a message to the listeners according to its command
+    private void dispatch(ProtocolLine line) {
+        switch (line.command()) {
+            case ONLINE:
+                // Received: online user
+                statusListener.online(line.argument(0));
+                break;
+            case OFFLINE:
+                // Received: offline user
+                statusListener.offline(line.argument(0));
+                break;
+            case MSG:
+                // Received: msg user msgBody
+                handleMessage(line.argument(0), line.body(1));
+                break;
+            case MSGID:
+                // Received: msgid id user msgBody, live or replayed
+                if (messageIds.accept(Long.parseLong(line.argument(0)))) {
+                    handleMessage(line.argument(1), line.body(2));
+                }
+                break;
+            case REPLAYED:
+                // Received: replayed id, the server sent everything it still had up to the id
+                messageIds.skipTo(Long.parseLong(line.argument(0)));
+                break;
+            case ROSTER:
+                // Received: roster version user...
+                handleRoster(line);
+                break;
+            case PRESENCE:
+                // Received: presence version +user -user...
+                handlePresence(line);
+                break;
+            case DM:
+                // Received: dm user msgBody
+                messageListener.onDirectMessage(line.argument(0), line.body(1));
+                break;
+            case RMSG:
+                // Received: rmsg room user msgBody
+                messageListener.onRoomMessage(line.argument(0), line.argument(1), line.body(2));
+                break;
+            case FOUND:
+                // Received: found id user msgBody, an earlier message a search turned up
+                messageListener.onSearchResult(Long.parseLong(line.argument(0)), line.argument(1), line.body(2));
+                break;
+            case FILE:
+                // Received: file fileId user size port name, a user shared a file
+                transferPort = Integer.parseInt(line.argument(3));
+                messageListener.onFile(line.argument(0), line.argument(1), Long.parseLong(line.argument(2)),
+                        line.body(4));
+                break;
+            case SEARCHED:
+                // Received: searched nextId, the page of results is complete
+                messageListener.onSearchDone(Long.parseLong(line.argument(0)));
+                break;
+            case JOIN:
+                // Received: join room user
+                statusListener.joined(line.argument(0), line.argument(1));
+                break;
+            case PART:
+                // Received: part room user
+                statusListener.parted(line.argument(0), line.argument(1));
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Keep trying to connect and log in again as the same user, waiting longer after every failed attempt. The old
+    // login may still be held until the server notices the old connection is gone. Returns false if the user logged
+    // off in the meantime. The answer to the login is read by the reader like any other.
+    private boolean reconnect() {
+        while (!loggedOff) {
+            try {
+                Thread.sleep(reconnectBackoff);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            reconnectBackoff = Math.min(reconnectBackoff * 2, MAX_RECONNECT_MILLIS);
+            if (connect() && sendLogin(login)) {
+                return true;
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
+    }
+
+    // Ping the server if it has been quiet for a whole interval, and close the connection if it stays quiet past the
+    // timeout, so a half-open connection is noticed and reconnected instead of hanging forever
+    private void checkHeartbeat() {
+        if (!hasCapability(Capability.HEARTBEAT)) return;
+        long idle = System.nanoTime() - lastReadNanos;
+        try {
+            if (idle >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TIMEOUT_MILLIS)) {
+                socket.close();
+            } else if (idle >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MILLIS)) {
+                send("ping", null);
+            }
+        } catch (IOException e) {
+            // The reader notices the broken connection
+        }
+    }
+
+    // Start checking the connection every heartbeat interval on the shared heartbeat thread
+    private synchronized void startHeartbeat() {
+        if (heartbeat != null || loggedOff) return;
+        heartbeat = heartbeatScheduler().scheduleWithFixedDelay(this::checkHeartbeat, HEARTBEAT_INTERVAL_MILLIS,
+                HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Stop checking the connection once the user logged off
+    private synchronized void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
         }
     }
 
+    // Return the heartbeat thread shared by every client, starting it on first use
+    private static synchronized ScheduledExecutorService heartbeatScheduler() {
+        if (heartbeats == null) {
+            heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "chat-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return heartbeats;
+    }
+
     // Call the message listener that was set to this client
     private void handleMessage(String login, String msg) {
         messageListener.onMessage(login, msg);
@@ -78,40 +373,265 @@ public class ChatClient {
         statusListener.offline(login);
     }
 
-    // Call the online status listener that was set to this client
-    private void handleOnline(String[] tokens) {
-        String login = tokens[1];
-        statusListener.online(login);
+    // Hand the full list of online users to the status listener in one call
+    private void handleRoster(ProtocolLine line) {
+        rosterVersion = Long.parseLong(line.argument(0));
+        statusListener.roster(line.arguments(1));
+    }
+
+    // Hand a batch of presence changes to the status listener in one call, unless the roster already has them
+    private void handlePresence(ProtocolLine line) {
+        long version = Long.parseLong(line.argument(0));
+        if (version <= rosterVersion) return;
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        for (String change : line.arguments(1)) {
+            if (change.startsWith("+")) {
+                online.add(change.substring(1));
+            } else if (change.startsWith("-")) {
+                offline.add(change.substring(1));
+            }
+        }
+        statusListener.presence(online, offline);
+    }
+
+    // Ask the server for the optional protocol features this client supports. Servers that don't know hello
+    // answer with an unknown command error, and the client keeps to the original protocol. The hello and its reply
+    // are always text lines, and with v2 everything after them is binary frames.
+    private void negotiate() throws IOException {
+        outputStream.write("hello roster ids v2 deflate heartbeat acks files\n".getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+        ProtocolLine line = inputStream.readLine(); // blocking
+        Set<Capability> enabled = EnumSet.noneOf(Capability.class);
+        if (line != null && line.command() == ProtocolCommand.HELLO) {
+            for (int i = 0; i < line.argumentCount(); i++) {
+                Capability capability = Capability.fromWireName(line.argument(i));
+                if (capability != null) {
+                    enabled.add(capability);
+                }
+            }
+        }
+        this.capabilities = enabled;
+        if (enabled.contains(Capability.V2)) {
+            inputStream.setDecoder(new BinaryDecoder());
+        }
+        if (enabled.contains(Capability.HEARTBEAT)) {
+            startHeartbeat();
+        }
+    }
+
+    // Queue a command for the server and write it out unless another thread already is. The command holds the verb
+    // and its space separated arguments, and the body, if not null, goes last and may contain anything. Commands
+    // queued while the connection is down are written once logged in again.
+    private void send(String command, String body) throws IOException {
+        enqueue(new Outgoing(command, body, null, -1));
+    }
+
+    // Queue a command and make sure it gets written, failing if too many are already waiting
+    private void enqueue(Outgoing command) throws IOException {
+        if (!outgoing.offer(command)) {
+            throw new IOException("Too many commands waiting to be sent");
+        }
+        drain();
+    }
+
+    // Write every queued command and flush them with as few writes as possible. Only one thread drains at a time,
+    // the others just queue and leave, and whatever they queued while the drainer flushed is picked up by the check
+    // after it lets go.
+    private void drain() {
+        while (online && !outgoing.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                synchronized (this) {
+                    Outgoing next;
+                    while (online && (next = outgoing.poll()) != null) {
+                        writeOutgoing(next);
+                    }
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                // Keep the rest queued for the next connection, the reader notices the broken one and reconnects
+                online = false;
+                closeSocket();
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    // Write one queued command. A post is only written once per connection and is answered by its ack, everything
+    // else is done once written.
+    private void writeOutgoing(Outgoing next) throws IOException {
+        if (next.sequence >= 0) {
+            if (next.sentOn == connection || !unacked.containsKey(next.sequence)) return; // Already sent or answered
+            next.sentOn = connection;
+            write(next.command, next.body);
+            return;
+        }
+        try {
+            write(next.command, next.body);
+        } catch (IOException e) {
+            if (next.result != null) next.result.completeExceptionally(e);
+            throw e;
+        }
+        if (next.result != null) next.result.complete(-1L);
+    }
+
+    // Write a command in whichever protocol was agreed on, only called while holding this client's lock. It is
+    // buffered until the next flush.
+    private void write(String command, String body) throws IOException {
+        String line = body == null ? command : command + " " + body;
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (hasCapability(Capability.V2)) {
+            int bodyStart = body == null ? -1 : command.getBytes(StandardCharsets.UTF_8).length + 1;
+            byte[] frame = BinaryCodec.fromText(bytes, bytes.length, bodyStart);
+            if (hasCapability(Capability.DEFLATE) && frame.length >= COMPRESS_MIN_BYTES) {
+                if (deflater == null) {
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                }
+                frame = BinaryCodec.compress(frame, deflater);
+            }
+            outputStream.write(frame);
+            return;
+        }
+        // A text line ends at the first line break, so the body can't carry any
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') bytes[i] = ' ';
+        }
+        outputStream.write(bytes);
+        outputStream.write('\n');
     }
 
-    // Send a login command to the server with the givne login
+    // Returns true if the server agreed to the given capability
+    public boolean hasCapability(Capability capability) {
+        return capabilities.contains(capability);
+    }
+
+    // Send a login command to the server with the givne login and wait for its answer. Returns true if successful,
+    // and false if it was refused or the server didn't answer in time.
     public boolean login(String login) {
-        String cmd =  "login " + login + "\n";
-        String response = "";
+        CompletableFuture<Boolean> answer = loginAsync(login);
+        try {
+            return answer.get(LOGIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Nobody is waiting for it any more, a late answer must not log in behind the caller's back
+            if (loginAnswer == answer) {
+                loginInFlight = null;
+                loginAnswer = null;
+            }
+            answer.complete(false);
+            return false;
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    // Send a login command to the server with the given login. The future completes with true once the server
+    // accepted it, and with false if it refused it or the connection closed first. The answer is read by the reader,
+    // which starts here if it isn't running yet.
+    public CompletableFuture<Boolean> loginAsync(String login) {
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        loginAnswer = answer;
+        startReader();
+        if (!sendLogin(login)) {
+            answerLogin(false);
+        }
+        return answer;
+    }
+
+    // Write the login command straight away, ahead of anything queued, since nothing else may be sent before it.
+    // Returns false if it couldn't be written.
+    private boolean sendLogin(String login) {
+        loginInFlight = login;
         try {
-            // The server will respond if the login is ok or not
-            outputStream.write(cmd.getBytes(StandardCharsets.UTF_8));
-            response = inputStream.readLine(); // blocking
+            synchronized (this) {
+                write("login " + login, null);
+                outputStream.flush();
+            }
+            return true;
         } catch (IOException e) {
-            return false; // Login was bad
+            loginInFlight = null;
+            return false;
+        }
+    }
+
+    // Settle the login in flight. Once the server accepted it, ask for the broadcasts missed since the last
+    // connection, send again every post it never acked, and then write out everything queued in the meantime.
+    private void answerLogin(boolean ok) {
+        String name = loginInFlight;
+        CompletableFuture<Boolean> answer = loginAnswer;
+        loginInFlight = null;
+        loginAnswer = null;
+        if (ok && name != null) {
+            this.login = name; // set this client's login to the given login
+            reconnectBackoff = MIN_RECONNECT_MILLIS;
+            try {
+                synchronized (this) {
+                    if (hasCapability(Capability.IDS) && messageIds.hasSeen()) {
+                        write("replay " + messageIds.resumeAfter(), null);
+                    }
+                    for (Outgoing post : unacked.values()) {
+                        if (post.sentOn < connection) {
+                            post.sentOn = connection;
+                            write(post.command, post.body);
+                        }
+                    }
+                    outputStream.flush();
+                    online = true;
+                }
+            } catch (IOException e) {
+                closeSocket();
+                ok = false;
+            }
+            drain();
         }
+        if (answer != null) {
+            answer.complete(ok && name != null);
+        }
+    }
+
+    // Returns the post the client id belongs to and forgets it, or null if it isn't waiting for an answer
+    private Outgoing takeUnacked(String clientId) {
+        String prefix = clientIdPrefix + "-";
+        if (!clientId.startsWith(prefix)) return null;
+        try {
+            return unacked.remove(Long.parseLong(clientId.substring(prefix.length())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-        if (response.equalsIgnoreCase("login ok")) {
-            this.login = login; // set this client's login to the given login
-            return true; // successful login
-        } else {
-            return false; // failed login
+    // Close the current connection so the reader notices and reconnects
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
         }
     }
 
+    // Ask the server to stream back every broadcast after the given id. Duplicates of what already arrived are skipped.
+    public void replay(long lastId) throws IOException {
+        send("replay " + lastId, null);
+    }
+
+    // Return the id of the last broadcast this client has seen everything up to, -1 if it hasn't seen any
+    public long getLastMessageId() {
+        return messageIds.resumeAfter();
+    }
+
     // Connect to the socket and will return true if successful
     public boolean connect() {
         try {
             this.socket = new Socket(serverIp, port); // Connect a socket to a given ip and port
             // Set the clients input and output streams
-            this.outputStream = socket.getOutputStream();
-            InputStream serverIn = socket.getInputStream();
-            this.inputStream = new BufferedReader(new InputStreamReader(serverIn));
+            this.outputStream = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_BYTES);
+            this.inputStream = new LineReader(socket.getInputStream());
+            lastReadNanos = System.nanoTime();
+            rosterVersion = -1; // A new connection starts a new roster
+            synchronized (this) {
+                connection++;
+            }
+            negotiate();
             return true; // Connected ok
         } catch (IOException e) {
             return false; // Failed to connect
@@ -128,17 +648,189 @@ public class ChatClient {
         this.messageListener = messageListener;
     }
 
-    // Send to the server a message command that will be sent to all other users the provided message
-    public void msg(String body) throws IOException {
-        String cmd = "msg " + body + "\n";
-        outputStream.write(cmd.getBytes());
+    // Send to the server a message command that will be sent to all other users the provided message. It is queued
+    // and written without waiting for earlier messages to be answered. The future completes with the message id
+    // once the server acked it, or with -1 once written to a server that doesn't ack. A message that wasn't acked
+    // before the connection dropped is sent again after reconnecting under the same client id, and the server
+    // won't broadcast it twice.
+    public CompletableFuture<Long> msg(String body) throws IOException {
+        if (loggedOff) {
+            throw new IOException("Logged off");
+        }
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        if (!hasCapability(Capability.ACKS)) {
+            enqueue(new Outgoing("msg", body, result, -1));
+            return result;
+        }
+        long sequence = postSequence.incrementAndGet();
+        Outgoing post = new Outgoing("post " + clientIdPrefix + "-" + sequence, body, result, sequence);
+        unacked.put(sequence, post);
+        try {
+            enqueue(post);
+        } catch (IOException e) {
+            unacked.remove(sequence);
+            throw e;
+        }
+        return result;
+    }
+
+    // Join a room so this user gets its messages
+    public void join(String room) throws IOException {
+        send("join " + room, null);
+    }
+
+    // Leave a room this user joined
+    public void part(String room) throws IOException {
+        send("part " + room, null);
+    }
+
+    // Send to the server a message that will be sent to the members of the given room only
+    public void roomMsg(String room, String body) throws IOException {
+        send("rmsg " + room, body);
+    }
+
+    // Send to the server a message that will only be delivered to the given user
+    public void dm(String toLogin, String body) throws IOException {
+        send("dm " + toLogin, body);
+    }
+
+    // Ask the server for earlier messages that contain every word of the query, given to the message listener a
+    // page at a time, newest first. Pass 0 for the first page and the id the last page ended with for the next.
+    // "from:<user>" only finds messages from that user.
+    public void search(long beforeId, String query) throws IOException {
+        send("search " + beforeId + " " + query.trim(), null);
+    }
+
+    // Share a file with everyone. The server is asked for the upload over chat, then the file is sent to the transfer
+    // port on a thread of its own with transferTo, while chat carries on. The future completes with the file's id
+    // once the server has all of it, and everyone who asked for files is told about it.
+    public CompletableFuture<String> upload(Path file) throws IOException {
+        if (!hasCapability(Capability.FILES)) {
+            throw new IOException("The server doesn't take files");
+        }
+        long size = Files.size(file);
+        String clientId = clientIdPrefix + "-" + postSequence.incrementAndGet();
+        CompletableFuture<String[]> grant = new CompletableFuture<>();
+        uploadGrants.put(clientId, grant);
+        try {
+            send("upload " + clientId + " " + size, file.getFileName().toString());
+        } catch (IOException e) {
+            uploadGrants.remove(clientId);
+            throw e;
+        }
+        return grant.thenApplyAsync(granted -> {
+            String fileId = granted[0];
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverIp, Integer.parseInt(granted[2])));
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                writeLine(channel, "put " + fileId + " " + granted[1]);
+                long position = 0;
+                while (position < size) {
+                    long moved = source.transferTo(position, size - position, channel);
+                    if (moved <= 0) {
+                        // A blocking socket takes at least a byte, so the file must have shrunk since it was granted
+                        throw new IOException("Upload stalled after " + position + " of " + size + " bytes");
+                    }
+                    position += moved;
+                }
+                String reply = readLine(channel);
+                if (!"ok".equals(reply)) {
+                    throw new IOException("Upload refused: " + reply);
+                }
+                return fileId;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, transferExecutor());
+    }
+
+    // Fetch a shared file into the target path on a thread of its own, straight from the socket into the file with
+    // transferFrom. The future completes with the target once all of it arrived.
+    public CompletableFuture<Path> download(String fileId, Path target) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (transferPort < 0) {
+                throw new CompletionException(new IOException("No file has been shared yet"));
+            }
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverIp, transferPort));
+                 FileChannel sink = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeLine(channel, "get " + fileId);
+                String reply = readLine(channel);
+                if (reply == null || !reply.startsWith("ok ")) {
+                    throw new IOException("Download refused: " + reply);
+                }
+                long size = Long.parseLong(reply.substring(3));
+                long position = 0;
+                while (position < size) {
+                    long moved = sink.transferFrom(channel, position, size - position);
+                    if (moved <= 0) {
+                        throw new IOException("Connection closed after " + position + " of " + size + " bytes");
+                    }
+                    position += moved;
+                }
+                return target;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, transferExecutor());
+    }
+
+    // Write a request line to the transfer port
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    // Read a reply line from the transfer port a byte at a time, so none of the file behind it is read into a buffer
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (line.size() < 256) {
+            b.clear();
+            if (channel.read(b) < 0) return null;
+            if (b.get(0) == '\n') return new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.write(b.get(0));
+        }
+        return null;
+    }
+
+    // Return the threads shared by every client's transfers, starting them on first use
+    private static synchronized ExecutorService transferExecutor() {
+        if (transfers == null) {
+            transfers = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "chat-transfer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return transfers;
     }
 
     // Logoff the server is the user exits out of the window unexpectedly
     public void unexpectedLogoffMsg() throws IOException {
+        loggedOff = true;
+        stopHeartbeat();
         if (this.login != null) {
-            String cmd = "logoff " + login + "\n";
-            outputStream.write(cmd.getBytes());
+            send("logoff " + login, null);
+        }
+    }
+
+    // A command waiting to be written. Posts have a sequence number and stay in the unacked map until answered.
+    private static class Outgoing {
+        private final String command;
+        private final String body;
+        // Completed once written, or for posts once acked, null if nobody is waiting for it
+        private final CompletableFuture<Long> result;
+        private final long sequence;
+        // The connection a post was last written on, only touched while holding the client's lock
+        private int sentOn = -1;
+
+        private Outgoing(String command, String body, CompletableFuture<Long> result, long sequence) {
+            this.command = command;
+            this.body = body;
+            this.result = result;
+            this.sequence = sequence;
         }
     }
 }
@@ -4,19 +4,18 @@
  */
 
 import javax.swing.*;
-import javax.swing.text.Document;
-import javax.swing.text.html.HTMLEditorKit;
-import javax.swing.text.html.StyleSheet;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 public class GUIApp implements MessageListener, UserStatusListener {
+    // Most messages kept on screen, set with -Dchat.scrollback
+    private static final int SCROLLBACK = Integer.getInteger("chat.scrollback", 5000);
+
     // All fields must be included, even if not used because of the .form file
     private String login;
     private ChatClient client;
@@ -32,6 +31,8 @@ public class GUIApp implements MessageListener, UserStatusListener {
     private JTextArea usersOnlineText;
     // Hold a list of all online users to be displayed in the left panel
     private ArrayList<String> onlineUsers = new ArrayList<>();
+    // Appends messages to the messages text box as they arrive
+    private MessageView messageView;
 
     // Constructor that builds the application window
     public GUIApp(ChatClient client, String login) {
@@ -60,6 +61,9 @@ public class GUIApp implements MessageListener, UserStatusListener {
             }
         });
 
+        // Set up the messages text box before any message can arrive
+        messageView = new MessageView(messagesText, SCROLLBACK);
+
         // Since this class implements the MessageListener and UserStatusListener, we can set the chat clients
         // listeners to this since this class has implementation for those commands
         client.setMessageListener(this);
@@ -80,15 +84,6 @@ public class GUIApp implements MessageListener, UserStatusListener {
                 send();
             }
         });
-
-        // Set the CSS styles in the HTML messages text box
-        HTMLEditorKit kit = new HTMLEditorKit();
-        StyleSheet styleSheet = kit.getStyleSheet();
-        styleSheet.addRule(".serverMsg {color: red;}");
-        // User Courier New as the default font
-        styleSheet.addRule("p {font-family: Courier New, Arial, Helvetica, sans-serif;}");
-        Document doc = kit.createDefaultDocument();
-        messagesText.setDocument(doc);
     }
 
     // Sends a message to all other users
@@ -96,37 +91,21 @@ public class GUIApp implements MessageListener, UserStatusListener {
         String msg = inputField.getText(); // Get text from the input field
         if (msg == null || msg.isEmpty()) return; // Don't send an empty message
         try {
-            client.msg(msg); // Use the client to send the message to the server
+            // Use the client to send the message to the server, the server may still refuse it after it was sent
+            client.msg(msg).whenComplete((id, e) -> {
+                if (e != null) messageView.notice("Failed to send.");
+            });
+            inputField.setText(""); // Reset the text input field
         } catch (IOException e) {
-            onMessage("WARN MSG", "Failed to send."); // Paste a failed to send message in red in the chat
+            messageView.notice("Failed to send."); // Paste a failed to send message in red in the chat
         }
     }
 
-    // Pastes received messages into the messages HTML chat box
+    // Pastes received messages into the messages HTML chat box. Called on the reader thread, the message view
+    // appends it on the Swing thread together with any others that arrive in the meantime.
     @Override
     public void onMessage(String username, String body) {
-        // Don't format < and > as HTML in the user's message
-        body = body.replaceAll("<","&lt;"); // someone typing in <h1>big</h1> won't be big now
-        body = body.replaceAll(">","&gt;");
-
-        // Get the HTML of the text box already
-        String currentText = messagesText.getText();
-        inputField.setText(""); // Reset the text input field
-
-        // Extract only the body of the HTML
-        Pattern patt = Pattern.compile("(?<=body>).*(?=</body>)", Pattern.DOTALL);
-        Matcher matcher = patt.matcher(currentText);
-        String matchedString;
-        if (matcher.find()) {
-            matchedString = matcher.group(); // Get all the comments from the HTML
-        } else {
-            matchedString = "";
-        }
-        // Append the message to the body section of the html and set it to the messageText
-        if (username.equals("WARN MSG"))
-            messagesText.setText(matchedString + "<p class=\"serverMsg\" style=\"margin-top: 2px;\">" + body + "</p>");
-        else
-            messagesText.setText(matchedString + "<p style=\"margin-top: 2px;\"><b>" + username + "</b> " + body + "</p>");
+        messageView.message(username, body);
     }
 
     // Whenever a user comes online add them to the list and update it
@@ -143,12 +122,31 @@ public class GUIApp implements MessageListener, UserStatusListener {
         updateOnlineList();
     }
 
+    // Replaces the online list with a roster snapshot and renders it once
+    @Override
+    public void roster(List<String> logins) {
+        onlineUsers = new ArrayList<>(logins);
+        updateOnlineList();
+    }
+
+    // Applies a batch of presence changes and renders the list once for the whole batch
+    @Override
+    public void presence(List<String> online, List<String> offline) {
+        onlineUsers.removeAll(offline);
+        for (String login : online) {
+            if (!onlineUsers.contains(login)) {
+                onlineUsers.add(login);
+            }
+        }
+        updateOnlineList();
+    }
+
     // Re-renders the online list with the current list of users online
     private void updateOnlineList() {
-        String onlineText = "";
+        StringBuilder onlineText = new StringBuilder();
         for (String user : onlineUsers) {
-            onlineText = onlineText + user + "\n";
+            onlineText.append(user).append("\n");
         }
-        usersOnlineText.setText(onlineText);
+        usersOnlineText.setText(onlineText.toString());
     }
 }
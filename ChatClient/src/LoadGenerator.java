@@ -0,0 +1,438 @@
+/*
+ * Author: Adin Geist
+ * Description: Headless load generator for the chat server. It logs a crowd of simulated users in through
+ *              ChatClient, has each of them broadcast at a steady rate and measures how long every message takes to
+ *              reach the others. The results, along with the server's CPU and heap read from its metrics endpoint,
+ *              go to a JSON report, so runs can be compared between server modes and from release to release.
+ *              Settings are -Dload.* system properties, e.g.
+ *              java -Dload.users=2000 -Dload.metricsUrl=http://127.0.0.1:9100/metrics -cp WChatClient.jar LoadGenerator
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadGenerator {
+    private final String host = setting("host", "127.0.0.1");
+    private final int port = (int) setting("port", 8818);
+    private final int users = (int) setting("users", 200);
+    private final double loginsPerSecond = setting("loginsPerSecond", 100.0);
+    // Broadcasts each user sends per second
+    private final double messagesPerSecond = setting("messagesPerSecond", 1.0);
+    private final int payloadBytes = (int) setting("payloadBytes", 100);
+    // Share of the users that stall for a while on every message they receive, to see what slow readers cost
+    private final double slowReaderFraction = setting("slowReaderFraction", 0.0);
+    private final long slowReaderDelayMillis = setting("slowReaderDelayMillis", 50);
+    // Messages sent before the warmup is over aren't measured
+    private final long warmupSeconds = setting("warmupSeconds", 5);
+    private final long durationSeconds = setting("durationSeconds", 30);
+    // How long to wait for messages still on their way once sending stops
+    private final long drainSeconds = setting("drainSeconds", 2);
+    // The server's metrics endpoint, set with -Dchat.metrics.port on the server. Left empty, server numbers are left out.
+    private final String metricsUrl = setting("metricsUrl", "");
+    private final String reportPath = setting("report", "load-report.json");
+    // Free text saved in the report to tell runs apart, e.g. the server mode
+    private final String label = setting("label", "");
+
+    private final List<ChatClient> clients = Collections.synchronizedList(new ArrayList<>());
+    // End-to-end latencies of measured messages, as seen by the users that read at full speed
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // Users that couldn't connect or whose login the server refused, e.g. over its rate limits
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder loginsRefused = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    // Measured messages the server refused instead of broadcasting them, e.g. over its rate limits
+    private final LongAdder sendsRefused = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    // Server CPU load and heap, sampled once a second while the load runs
+    private final List<double[]> serverSamples = Collections.synchronizedList(new ArrayList<>());
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+    private volatile long stopSendingNanos = Long.MAX_VALUE;
+
+    // Runs the load with the settings given as -Dload.* properties and writes the report
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    // Logs the users in, lets them talk for the warmup and the measured duration, then reports
+    private void run() throws Exception {
+        System.out.println("Load: " + users + " users on " + host + ":" + port + ", " + messagesPerSecond
+                + " messages/s each of " + payloadBytes + " bytes, " + durationSeconds + "s measured");
+        String startedAt = Instant.now().toString();
+        Map<String, Double> metricsBefore = scrape();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        if (!metricsUrl.isEmpty()) {
+            sampler.scheduleAtFixedRate(this::sampleServer, 1, 1, TimeUnit.SECONDS);
+        }
+
+        long loginStart = System.nanoTime();
+        logInAll();
+        double loginSeconds = (System.nanoTime() - loginStart) / 1e9;
+        System.out.println("Logged in " + clients.size() + " of " + users + " in "
+                + String.format(Locale.ROOT, "%.1f", loginSeconds) + "s, " + loginsRefused.sum() + " refused, "
+                + loginFailures.sum() + " failed to connect");
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        long start = System.nanoTime();
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        stopSendingNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long periodNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / messagesPerSecond));
+        Random random = new Random();
+        synchronized (clients) {
+            for (ChatClient client : clients) {
+                // Spread the users over the period, so they don't all send at the same instant
+                long offset = (long) (random.nextDouble() * periodNanos);
+                senders.scheduleAtFixedRate(() -> send(client), offset, periodNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        TimeUnit.NANOSECONDS.sleep(stopSendingNanos - System.nanoTime());
+        senders.shutdownNow();
+        TimeUnit.SECONDS.sleep(drainSeconds);
+        sampler.shutdownNow();
+        Map<String, Double> metricsAfter = scrape();
+
+        synchronized (clients) {
+            for (ChatClient client : clients) {
+                try {
+                    client.unexpectedLogoffMsg();
+                } catch (IOException e) {
+                    // Already gone, nothing to log off
+                }
+            }
+        }
+
+        String report = report(startedAt, loginSeconds, metricsBefore, metricsAfter);
+        Files.write(Paths.get(reportPath), report.getBytes(StandardCharsets.UTF_8));
+        System.out.println(report);
+        System.out.println("Report written to " + reportPath);
+    }
+
+    // Logs every user in, paced to the login rate, a few at a time
+    private void logInAll() throws Exception {
+        ExecutorService loggers = Executors.newFixedThreadPool(16);
+        List<Future<?>> logins = new ArrayList<>();
+        long intervalNanos = loginsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / loginsPerSecond) : 0;
+        long next = System.nanoTime();
+        int slowReaders = (int) Math.round(users * slowReaderFraction);
+        for (int i = 0; i < users; i++) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            next += intervalNanos;
+            String login = "load" + i;
+            boolean slow = i < slowReaders;
+            logins.add(loggers.submit(() -> logIn(login, slow)));
+        }
+        for (Future<?> login : logins) {
+            login.get();
+        }
+        loggers.shutdown();
+    }
+
+    // Connects and logs in one simulated user, and starts reading what it is sent
+    private void logIn(String login, boolean slowReader) {
+        ChatClient client = new ChatClient(host, port);
+        if (!client.connect()) {
+            loginFailures.increment();
+            return;
+        }
+        if (!client.login(login)) {
+            loginsRefused.increment();
+            return;
+        }
+        client.setStatusListener(new UserStatusListener() {
+            @Override
+            public void online(String login) {
+            }
+
+            @Override
+            public void offline(String login) {
+            }
+        });
+        client.setMessageListener((fromLogin, msgBody) -> received(msgBody, slowReader));
+        client.startMessageReader();
+        clients.add(client);
+    }
+
+    // Broadcasts one message stamped with the time it was sent
+    private void send(ChatClient client) {
+        long now = System.nanoTime();
+        if (now - stopSendingNanos >= 0) return;
+        StringBuilder body = new StringBuilder(payloadBytes).append(now).append(' ');
+        while (body.length() < payloadBytes) {
+            body.append('x');
+        }
+        try {
+            boolean measured = now - measureFromNanos >= 0;
+            client.msg(body.toString()).whenComplete((id, refused) -> {
+                if (refused != null && measured) {
+                    sendsRefused.increment();
+                }
+            });
+            if (measured) {
+                sent.increment();
+            }
+        } catch (IOException e) {
+            sendErrors.increment();
+        }
+    }
+
+    // Records how long a message took to arrive, if it was sent after the warmup
+    private void received(String body, boolean slowReader) {
+        long now = System.nanoTime();
+        int space = body.indexOf(' ');
+        long sentNanos;
+        try {
+            sentNanos = Long.parseLong(space < 0 ? body : body.substring(0, space));
+        } catch (NumberFormatException e) {
+            return; // Not one of ours
+        }
+        if (sentNanos - measureFromNanos >= 0 && sentNanos - stopSendingNanos < 0) {
+            delivered.increment();
+            if (!slowReader) {
+                latency.record(now - sentNanos);
+            }
+        }
+        if (slowReader) {
+            try {
+                Thread.sleep(slowReaderDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Keeps the server's current CPU load and heap
+    private void sampleServer() {
+        Map<String, Double> metrics = scrape();
+        Double cpu = metrics.get("chat_process_cpu_load");
+        Double heap = metrics.get("chat_heap_used_bytes");
+        if (cpu != null && heap != null) {
+            serverSamples.add(new double[]{cpu, heap});
+        }
+    }
+
+    // Reads every metric without labels from the server's endpoint, or nothing if there is no endpoint to read
+    private Map<String, Double> scrape() {
+        Map<String, Double> metrics = new LinkedHashMap<>();
+        if (metricsUrl.isEmpty()) return metrics;
+        try (InputStream in = URI.create(metricsUrl).toURL().openStream()) {
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            for (String line : text.split("\n")) {
+                if (line.isEmpty() || line.startsWith("#") || line.contains("{")) continue;
+                int space = line.lastIndexOf(' ');
+                metrics.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Couldn't read the server metrics at " + metricsUrl + ": " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    // Writes the results as JSON
+    private String report(String startedAt, double loginSeconds, Map<String, Double> before, Map<String, Double> after) {
+        long sentCount = sent.sum();
+        long refusedCount = sendsRefused.sum();
+        long deliveredCount = delivered.sum();
+        // Every logged in user, the sender included, gets every broadcast the server accepted
+        long expected = (sentCount - refusedCount) * clients.size();
+
+        Json json = new Json();
+        json.open(null);
+        json.field("label", label);
+        json.field("startedAt", startedAt);
+
+        json.open("config");
+        json.field("host", host);
+        json.field("port", port);
+        json.field("users", users);
+        json.field("loginsPerSecond", loginsPerSecond);
+        json.field("messagesPerSecond", messagesPerSecond);
+        json.field("payloadBytes", payloadBytes);
+        json.field("slowReaderFraction", slowReaderFraction);
+        json.field("slowReaderDelayMillis", slowReaderDelayMillis);
+        json.field("warmupSeconds", warmupSeconds);
+        json.field("durationSeconds", durationSeconds);
+        json.close();
+
+        json.open("logins");
+        json.field("succeeded", clients.size());
+        json.field("refused", loginsRefused.sum());
+        json.field("failed", loginFailures.sum());
+        json.field("seconds", loginSeconds);
+        json.field("perSecond", clients.size() / Math.max(loginSeconds, 1e-9));
+        json.close();
+
+        json.open("messages");
+        json.field("sent", sentCount);
+        json.field("refused", refusedCount);
+        json.field("sendErrors", sendErrors.sum());
+        json.field("delivered", deliveredCount);
+        json.field("expectedDeliveries", expected);
+        json.field("deliveryRatio", expected == 0 ? 0 : (double) deliveredCount / expected);
+        json.field("sentPerSecond", sentCount / (double) durationSeconds);
+        json.field("deliveredPerSecond", deliveredCount / (double) durationSeconds);
+        json.close();
+
+        json.open("latencyMillis");
+        json.field("count", latency.count());
+        json.field("p50", latency.percentile(0.5) / 1e6);
+        json.field("p99", latency.percentile(0.99) / 1e6);
+        json.field("p999", latency.percentile(0.999) / 1e6);
+        json.field("max", latency.max() / 1e6);
+        json.close();
+
+        json.open("server");
+        double cpuSum = 0;
+        double cpuMax = 0;
+        double heapMax = 0;
+        List<double[]> samples;
+        synchronized (serverSamples) {
+            samples = new ArrayList<>(serverSamples);
+        }
+        for (double[] sample : samples) {
+            cpuSum += sample[0];
+            cpuMax = Math.max(cpuMax, sample[0]);
+            heapMax = Math.max(heapMax, sample[1]);
+        }
+        json.field("samples", samples.size());
+        json.field("cpuLoadAvg", samples.isEmpty() ? 0 : cpuSum / samples.size());
+        json.field("cpuLoadMax", cpuMax);
+        json.field("heapUsedMaxBytes", (long) heapMax);
+        // What the server counted during the run
+        json.open("counterDeltas");
+        for (Map.Entry<String, Double> metric : after.entrySet()) {
+            if (metric.getKey().endsWith("_total")) {
+                json.field(metric.getKey(), (long) (metric.getValue() - before.getOrDefault(metric.getKey(), 0.0)));
+            }
+        }
+        json.close();
+        json.close();
+
+        json.close();
+        return json.toString();
+    }
+
+    // Returns the -Dload.<name> string setting, or the default if it isn't set
+    private static String setting(String name, String defaultValue) {
+        String value = System.getProperty("load." + name);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    // Returns the -Dload.<name> whole number setting, or the default if it isn't set or isn't a number
+    private static long setting(String name, long defaultValue) {
+        try {
+            return Long.parseLong(setting(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.out.println("Setting load." + name + " isn't a whole number. Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    // Returns the -Dload.<name> decimal setting, or the default if it isn't set or isn't a number
+    private static double setting(String name, double defaultValue) {
+        try {
+            return Double.parseDouble(setting(name, Double.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.out.println("Setting load." + name + " isn't a number. Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    // Just enough of a JSON writer for the report, with objects, strings and numbers indented two spaces per level
+    private static class Json {
+        private final StringBuilder out = new StringBuilder();
+        private int depth = 0;
+        private boolean first = true;
+
+        // Starts an object, a named field of the enclosing one unless name is null
+        private void open(String name) {
+            key(name);
+            out.append('{');
+            depth++;
+            first = true;
+        }
+
+        // Ends the current object
+        private void close() {
+            depth--;
+            newLine();
+            out.append('}');
+            first = false;
+        }
+
+        // Writes a string field, escaped
+        private void field(String name, String value) {
+            key(name);
+            out.append('"');
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        // Writes a whole number field
+        private void field(String name, long value) {
+            key(name);
+            out.append(value);
+        }
+
+        // Writes a decimal field rounded to three places
+        private void field(String name, double value) {
+            key(name);
+            out.append(Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null");
+        }
+
+        // Writes the comma before every field but the first, and the field's name
+        private void key(String name) {
+            if (name == null) return;
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            newLine();
+            out.append('"').append(name).append("\": ");
+        }
+
+        // Starts a new line indented to the current depth
+        private void newLine() {
+            out.append('\n');
+            for (int i = 0; i < depth; i++) {
+                out.append("  ");
+            }
+        }
+
+        // Return the JSON written so far
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
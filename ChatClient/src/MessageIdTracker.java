@@ -0,0 +1,57 @@
+/*
+ * Author: Adin Geist
+ * Description: Remembers which broadcast ids this client has already shown. During a replay live messages and
+ *              replayed ones arrive interleaved, so besides throwing away duplicates it keeps the highest id below
+ *              which nothing is missing, which is where the next reconnect asks the server to carry on from.
+ */
+
+import java.util.TreeSet;
+
+public class MessageIdTracker {
+    // Ids above the watermark held on to at most, past this the oldest gap is given up on
+    private static final int MAX_PENDING = 10_000;
+
+    // Every id at or below this has been seen, -1 until the first message arrives
+    private long watermark = -1;
+    // Ids seen above the watermark, waiting for the gap below them to fill
+    private final TreeSet<Long> above = new TreeSet<>();
+
+    // Records the id and returns true the first time it is seen, false for a duplicate
+    public synchronized boolean accept(long id) {
+        if (watermark < 0) {
+            watermark = id;
+            return true;
+        }
+        if (id <= watermark || !above.add(id)) return false;
+        if (above.size() > MAX_PENDING) {
+            watermark = above.pollFirst();
+        }
+        advance();
+        return true;
+    }
+
+    // The server has sent everything up to the id that it still had, so stop waiting for anything at or below it
+    public synchronized void skipTo(long id) {
+        if (id <= watermark) return;
+        watermark = id;
+        above.headSet(id, true).clear();
+        advance();
+    }
+
+    // Returns true once at least one message has been seen
+    public synchronized boolean hasSeen() {
+        return watermark >= 0;
+    }
+
+    // Return the id the next replay should start after
+    public synchronized long resumeAfter() {
+        return watermark;
+    }
+
+    // Moves the watermark up over every id that directly follows it
+    private void advance() {
+        while (!above.isEmpty() && above.first() == watermark + 1) {
+            watermark = above.pollFirst();
+        }
+    }
+}
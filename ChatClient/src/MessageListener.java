@@ -5,4 +5,25 @@
 
 public interface MessageListener {
     public void onMessage(String fromLogin, String msgBody);
+
+    // Called for direct messages sent to this user only. Ignored unless the listener overrides it.
+    public default void onDirectMessage(String fromLogin, String msgBody) {
+    }
+
+    // Called for messages sent to a room this user joined. Ignored unless the listener overrides it.
+    public default void onRoomMessage(String room, String fromLogin, String msgBody) {
+    }
+
+    // Called for every earlier message a search found, newest first. Ignored unless the listener overrides it.
+    public default void onSearchResult(long id, String fromLogin, String msgBody) {
+    }
+
+    // Called when a user shared a file, which can be fetched with download(). Ignored unless the listener overrides it.
+    public default void onFile(String fileId, String fromLogin, long size, String name) {
+    }
+
+    // Called once a page of search results is complete, with the id to search before for the next page, or 0 if
+    // there are no more. Ignored unless the listener overrides it.
+    public default void onSearchDone(long nextBeforeId) {
+    }
 }
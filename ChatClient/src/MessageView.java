@@ -0,0 +1,133 @@
+/*
+ * Author: Adin Geist
+ * Description: The chat history shown in the messages pane. New messages are appended to the end of the HTML
+ *              document instead of re-rendering everything that came before, and the oldest ones are dropped past
+ *              the scrollback limit, so showing a message costs the same no matter how long the chat has run.
+ *              Messages may be added from any thread. Everything that arrives before the Swing thread gets to it is
+ *              appended in one go.
+ */
+
+import javax.swing.JEditorPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.html.StyleSheet;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MessageView {
+    private final JEditorPane pane;
+    private final HTMLDocument document;
+    // Where messages are appended, looked up once since searching the document for it gets slower as it grows
+    private final Element body;
+    // Most messages kept, older ones are removed from the top a tenth at a time
+    private final int scrollback;
+    // Rendered paragraphs waiting for the Swing thread
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Messages in the document, only touched on the Swing thread
+    private int lines = 0;
+
+    // Constructor that takes over the pane's document and keeps at most scrollback messages in it
+    public MessageView(JEditorPane pane, int scrollback) {
+        this.pane = pane;
+        this.scrollback = Math.max(1, scrollback);
+
+        // Set the CSS styles in the HTML messages text box
+        HTMLEditorKit kit = new HTMLEditorKit();
+        StyleSheet styleSheet = kit.getStyleSheet();
+        styleSheet.addRule(".serverMsg {color: red;}");
+        // User Courier New as the default font
+        styleSheet.addRule("p {font-family: Courier New, Arial, Helvetica, sans-serif; margin-top: 2px;}");
+        this.document = (HTMLDocument) kit.createDefaultDocument();
+        pane.setEditorKit(kit);
+        pane.setDocument(document);
+        this.body = document.getElement(document.getDefaultRootElement(), StyleConstants.NameAttribute, HTML.Tag.BODY);
+    }
+
+    // Shows a message from a user
+    public void message(String username, String body) {
+        append("<p><b>" + escape(username) + "</b> " + escape(body) + "</p>");
+    }
+
+    // Shows a notice from the client itself in red
+    public void notice(String text) {
+        append("<p class=\"serverMsg\">" + escape(text) + "</p>");
+    }
+
+    // Queues a rendered paragraph and makes sure the Swing thread will append it. Only one append is scheduled no
+    // matter how many messages arrive before it runs.
+    private void append(String paragraph) {
+        pending.add(paragraph);
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    // Appends every queued paragraph to the document with a single insert, then trims it to the scrollback
+    void flush() {
+        flushScheduled.set(false);
+        StringBuilder html = new StringBuilder();
+        int added = 0;
+        String paragraph;
+        while ((paragraph = pending.poll()) != null) {
+            html.append(paragraph);
+            added++;
+        }
+        if (added == 0) return;
+        try {
+            document.insertBeforeEnd(body, html.toString());
+            lines += added;
+            trim();
+        } catch (BadLocationException | IOException e) {
+            e.printStackTrace();
+        }
+        pane.setCaretPosition(document.getLength()); // Keep the newest message in view
+    }
+
+    // Removes the oldest messages past the scrollback. Removing costs about the same for one message as for many, so
+    // the document is allowed to grow a tenth past the scrollback and is then cut back in one go.
+    private void trim() throws BadLocationException {
+        if (lines <= scrollback + scrollback / 10) return;
+        int excess = lines - scrollback;
+        // The document starts with an empty paragraph of its own before the first message
+        int first = body.getElementCount() - lines;
+        int start = body.getElement(first).getStartOffset();
+        int end = body.getElement(first + excess - 1).getEndOffset();
+        document.remove(start, end - start);
+        lines -= excess;
+    }
+
+    // Return the number of messages currently shown
+    int lineCount() {
+        return lines;
+    }
+
+    // Keeps <, > and & typed by users from being read as HTML, so someone typing <h1>big</h1> won't be big
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
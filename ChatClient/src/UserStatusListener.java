@@ -4,8 +4,34 @@
  *              method implementation.
  */
 
+import java.util.List;
 
 public interface UserStatusListener {
     public void online(String login);
     public void offline(String login);
+
+    // Replaces the whole list of online users at once. Listeners that can render in one go should override this.
+    public default void roster(List<String> logins) {
+        for (String login : logins) {
+            online(login);
+        }
+    }
+
+    // Called when a user, possibly this one, joins a room this user is in. Ignored unless the listener overrides it.
+    public default void joined(String room, String login) {
+    }
+
+    // Called when a user, possibly this one, leaves a room this user is in. Ignored unless the listener overrides it.
+    public default void parted(String room, String login) {
+    }
+
+    // Applies a batch of users coming online and going offline at once
+    public default void presence(List<String> online, List<String> offline) {
+        for (String login : offline) {
+            offline(login);
+        }
+        for (String login : online) {
+            online(login);
+        }
+    }
 }
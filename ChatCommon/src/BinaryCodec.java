@@ -0,0 +1,138 @@
+/*
+ * Author: Adin Geist
+ * Description: Encodes the binary v2 protocol, shared by the client and the server. A frame is an opcode byte, the
+ *              payload length as a varint, then the fields, each a varint length followed by its UTF-8 bytes. The
+ *              message body, if any, is always the last field, so it can hold spaces and newlines. When deflate
+ *              was negotiated, a large frame's fields may be compressed, marked by the high bit of the opcode.
+ *
+ *              Frame layout: opcode | varint payload length | (varint field length | field bytes)...
+ *              Compressed:   opcode | 0x80 | varint payload length | varint uncompressed length | deflated fields
+ */
+
+import java.util.zip.Deflater;
+
+public final class BinaryCodec {
+    // Frames bigger than this are refused instead of buffered, before and after decompressing
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+    // Set on the opcode of a frame whose fields are compressed
+    public static final int COMPRESSED = 0x80;
+
+    private BinaryCodec() {
+    }
+
+    // Converts a text line, without its terminator, into a binary frame. The space separated words before bodyStart
+    // become one field each and everything from bodyStart on is the body. A bodyStart of -1 means every word is a
+    // field. A line whose verb isn't part of the protocol, like an error message, becomes a single field instead.
+    public static byte[] fromText(byte[] line, int length, int bodyStart) {
+        return fromText(line, length, bodyStart, line, bodyStart, length - bodyStart);
+    }
+
+    // Converts a text line like above, except the body's bytes are taken from body[offset, offset + bodyLength)
+    public static byte[] fromText(byte[] line, int length, int bodyStart, byte[] body, int offset, int bodyLength) {
+        int verbEnd = indexOf(line, 0, length, (byte) ' ');
+        ProtocolCommand command = ProtocolCommand.match(line, 0, verbEnd);
+        if (command == ProtocolCommand.UNKNOWN) {
+            return encode(command, line, 0, 0, line, 0, length);
+        }
+        if (bodyStart < 0) {
+            return encode(command, line, verbEnd, length, null, 0, 0);
+        }
+        return encode(command, line, verbEnd, bodyStart, body, offset, bodyLength);
+    }
+
+    // Encodes the words in line[wordsStart, wordsEnd) as fields, then the body as the last field if there is one
+    private static byte[] encode(ProtocolCommand command, byte[] line, int wordsStart, int wordsEnd,
+                                 byte[] body, int bodyOffset, int bodyLength) {
+        // Size everything up first so the frame is written into one exactly sized array
+        int payload = 0;
+        for (int word = skipSpaces(line, wordsStart, wordsEnd); word < wordsEnd; ) {
+            int wordEnd = indexOf(line, word, wordsEnd, (byte) ' ');
+            payload += varintSize(wordEnd - word) + wordEnd - word;
+            word = skipSpaces(line, wordEnd, wordsEnd);
+        }
+        if (body != null) {
+            payload += varintSize(bodyLength) + bodyLength;
+        }
+
+        byte[] frame = new byte[1 + varintSize(payload) + payload];
+        frame[0] = (byte) command.opcode();
+        int position = putVarint(frame, 1, payload);
+        for (int word = skipSpaces(line, wordsStart, wordsEnd); word < wordsEnd; ) {
+            int wordEnd = indexOf(line, word, wordsEnd, (byte) ' ');
+            position = putField(frame, position, line, word, wordEnd - word);
+            word = skipSpaces(line, wordEnd, wordsEnd);
+        }
+        if (body != null) {
+            putField(frame, position, body, bodyOffset, bodyLength);
+        }
+        return frame;
+    }
+
+    // Compresses the fields of an encoded frame. Returns the frame itself if compressing doesn't make it smaller.
+    public static byte[] compress(byte[] frame, Deflater deflater) {
+        int payloadStart = 1;
+        while (frame[payloadStart++] < 0) {
+            // Step over the payload length
+        }
+        int payloadLength = frame.length - payloadStart;
+        byte[] deflated = new byte[payloadLength];
+        deflater.reset();
+        deflater.setInput(frame, payloadStart, payloadLength);
+        deflater.finish();
+        int deflatedLength = deflater.deflate(deflated);
+        if (!deflater.finished()) return frame; // Didn't even fit in the space it takes uncompressed
+
+        int payload = varintSize(payloadLength) + deflatedLength;
+        int headerLength = 1 + varintSize(payload);
+        if (headerLength + payload >= frame.length) return frame;
+        byte[] compressed = new byte[headerLength + payload];
+        compressed[0] = (byte) (frame[0] | COMPRESSED);
+        int position = putVarint(compressed, 1, payload);
+        position = putVarint(compressed, position, payloadLength);
+        System.arraycopy(deflated, 0, compressed, position, deflatedLength);
+        return compressed;
+    }
+
+    // Return the number of bytes the value takes as a varint
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    // Writes the value as a varint, seven bits per byte with the high bit set on every byte but the last. Returns the
+    // offset just past it.
+    public static int putVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    // Writes one length prefixed field and returns the offset just past it
+    private static int putField(byte[] frame, int position, byte[] source, int offset, int length) {
+        position = putVarint(frame, position, length);
+        System.arraycopy(source, offset, frame, position, length);
+        return position + length;
+    }
+
+    // Finds the next occurrence of the byte at or after the offset, or the end
+    private static int indexOf(byte[] buffer, int offset, int end, byte b) {
+        while (offset < end && buffer[offset] != b) {
+            offset++;
+        }
+        return offset;
+    }
+
+    // Skips over spaces from the offset, stopping at the end
+    private static int skipSpaces(byte[] buffer, int offset, int end) {
+        while (offset < end && buffer[offset] == ' ') {
+            offset++;
+        }
+        return offset;
+    }
+}
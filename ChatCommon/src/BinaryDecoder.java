@@ -0,0 +1,123 @@
+/*
+ * Author: Adin Geist
+ * Description: Incrementally frames received bytes into binary v2 frames, the counterpart of LineDecoder. Bytes of
+ *              a frame that hasn't fully arrived yet are kept for the next read, and the fields of a complete one
+ *              are handed out as a ProtocolLine without copying them again. Compressed frames are inflated first.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class BinaryDecoder implements ProtocolDecoder {
+    private byte[] frame = new byte[256];
+    private int length = 0;
+    private final ProtocolLine view = new ProtocolLine();
+    // Where compressed frames are inflated to, and the inflater, made the first time one arrives
+    private byte[] inflated = new byte[256];
+    private Inflater inflater;
+    // Holds the value readVarint() read, so decoding a frame doesn't allocate
+    private final int[] varint = new int[1];
+
+    // Consumes the bytes of the next complete frame and returns it. Returns null once the input runs out without
+    // completing a frame. The returned view is reused, so it's only valid until the next call.
+    @Override
+    public ProtocolLine decode(ByteBuffer input) throws IOException {
+        while (true) {
+            int frameLength = frameLength();
+            if (frameLength >= 0 && length == frameLength) {
+                length = 0;
+                return parse(frameLength);
+            }
+            if (!input.hasRemaining()) return null;
+            // The header comes in a byte at a time until its length is known, then the rest in one copy
+            int wanted = frameLength < 0 ? 1 : Math.min(frameLength - length, input.remaining());
+            if (length + wanted > frame.length) {
+                frame = Arrays.copyOf(frame, Math.max(frame.length * 2, length + wanted));
+            }
+            input.get(frame, length, wanted);
+            length += wanted;
+        }
+    }
+
+    // Returns the size of the whole frame once its header has arrived, or -1 while it hasn't
+    private int frameLength() throws IOException {
+        int value = 0;
+        for (int i = 1, shift = 0; i < length; i++, shift += 7) {
+            if (shift > 28) throw new IOException("malformed frame length");
+            byte b = frame[i];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0 || value > BinaryCodec.MAX_FRAME_BYTES) {
+                    throw new IOException("frame of " + value + " bytes is too large");
+                }
+                return i + 1 + value;
+            }
+        }
+        return -1;
+    }
+
+    // Points the view at the fields of the complete frame in the buffer, inflating them first if they're compressed
+    private ProtocolLine parse(int frameLength) throws IOException {
+        int position = 1;
+        while (frame[position++] < 0) {
+            // Step over the payload length, frameLength() already read it
+        }
+        ProtocolCommand command = ProtocolCommand.fromOpcode(frame[0] & ~BinaryCodec.COMPRESSED);
+        if ((frame[0] & BinaryCodec.COMPRESSED) == 0) {
+            return parseFields(command, frame, position, frameLength);
+        }
+        position = readVarint(frame, position, frameLength, varint);
+        int inflatedLength = varint[0];
+        if (inflatedLength > BinaryCodec.MAX_FRAME_BYTES) {
+            throw new IOException("compressed frame of " + inflatedLength + " bytes is too large");
+        }
+        if (inflated.length < inflatedLength) {
+            inflated = new byte[Math.max(inflated.length * 2, inflatedLength)];
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(frame, position, frameLength - position);
+        try {
+            if (inflater.inflate(inflated, 0, inflatedLength) != inflatedLength || !inflater.finished()) {
+                throw new IOException("compressed frame doesn't match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed frame is corrupt", e);
+        }
+        return parseFields(command, inflated, 0, inflatedLength);
+    }
+
+    // Points the view at the length prefixed fields in buffer[position, end)
+    private ProtocolLine parseFields(ProtocolCommand command, byte[] buffer, int position, int end) throws IOException {
+        view.setBinary(buffer, command, end);
+        while (position < end) {
+            position = readVarint(buffer, position, end, varint);
+            int fieldLength = varint[0];
+            if (fieldLength > end - position) {
+                throw new IOException("field runs past the end of its frame");
+            }
+            view.addField(position, position + fieldLength);
+            position += fieldLength;
+        }
+        return view;
+    }
+
+    // Reads a varint at the position into value[0] and returns the position just past it
+    private static int readVarint(byte[] buffer, int position, int end, int[] value) throws IOException {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= end || shift > 28) throw new IOException("malformed length");
+            byte b = buffer[position++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (result < 0) throw new IOException("malformed length");
+        value[0] = result;
+        return position;
+    }
+}
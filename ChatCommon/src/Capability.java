@@ -0,0 +1,51 @@
+/*
+ * Author: Adin Geist
+ * Description: Optional protocol features a client can ask for with "hello <capability> ..." before logging in.
+ *              The server answers with the ones it supports, and clients that never say hello get the original
+ *              protocol.
+ */
+
+public enum Capability {
+    // A single roster snapshot on login followed by batched presence deltas, instead of one online line per user
+    ROSTER("roster"),
+    // Broadcasts carry the server's message id as "msgid <id> <from> <body>", so a reconnecting client can ask for
+    // what it missed with "replay <last id>"
+    IDS("ids"),
+    // Everything after the hello reply is sent as binary frames in both directions, see BinaryCodec
+    V2("v2"),
+    // Large v2 frames may be compressed with deflate, in both directions. Only together with v2.
+    DEFLATE("deflate"),
+    // The server pings the client when it has been quiet and disconnects it if it stays quiet, and the client may
+    // ping the server the same way. Both sides answer ping with pong.
+    HEARTBEAT("heartbeat"),
+    // Broadcasts may be sent as "post <client id> <body>" and are answered with "ack <client id> <message id>", or
+    // "nack <client id> <reason>" if they were refused. A post sent again with the same client id after a
+    // reconnect is acked with the original message id instead of being broadcast twice.
+    ACKS("acks"),
+    // "upload <client id> <size> <name>" asks to share a file and is answered with "upload <client id> <file id>
+    // <token> <port>", or "nack <client id> <reason>". The bytes go over the transfer port, and once they are in
+    // everyone with this capability gets "file <file id> <user> <size> <port> <name>". Only offered by servers that
+    // run a transfer port.
+    FILES("files");
+
+    private final String wireName;
+
+    Capability(String wireName) {
+        this.wireName = wireName;
+    }
+
+    // Return the name of the capability as it is written on the wire
+    public String wireName() {
+        return wireName;
+    }
+
+    // Returns the capability with the given wire name, or null if there is none
+    public static Capability fromWireName(String name) {
+        for (Capability capability : values()) {
+            if (capability.wireName.equalsIgnoreCase(name)) {
+                return capability;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Author: Adin Geist
+ * Description: Lock-free histogram of latencies in nanoseconds. Like HdrHistogram, every power of two is split into
+ *              a few linear sub-buckets, so a value is counted within 1/8 of itself from nanoseconds up to hours in a
+ *              fixed array of counters, and recording one is a single atomic increment.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    // 2^3 sub-buckets per power of two, so a bucket is at most 12.5% wide
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    // Counts one latency
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // Return the number of latencies recorded
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    // Return the highest latency recorded
+    public long max() {
+        return max.get();
+    }
+
+    // Returns the latency the given fraction of recordings were at or below, e.g. 0.99 for the 99th percentile. The
+    // answer is the top of the bucket it falls in, so it is never lower than the real value.
+    public long percentile(double fraction) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Finds the bucket of a value. Values below SUB_BUCKETS get one bucket each, after that each power of two is
+    // split by the SUB_BUCKET_BITS bits right below its highest bit.
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    // Returns the highest value that falls in the given bucket
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
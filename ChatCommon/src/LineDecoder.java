@@ -0,0 +1,52 @@
+/*
+ * Author: Adin Geist
+ * Description: Incrementally frames received bytes into protocol lines. Lines end at \n, \r or \r\n just like
+ *              BufferedReader.readLine(), and bytes of a line that hasn't ended yet are kept for the next read.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class LineDecoder implements ProtocolDecoder {
+    private byte[] line = new byte[256];
+    private int length = 0;
+    private boolean skipLineFeed = false;
+    private final ProtocolLine view = new ProtocolLine();
+
+    // Consumes bytes up to and including the next line terminator and returns that line. Returns null once the
+    // input runs out without completing a line. The returned view is reused, so it's only valid until the next call.
+    @Override
+    public ProtocolLine decode(ByteBuffer input) {
+        if (skipLineFeed && input.hasRemaining()) {
+            skipLineFeed = false;
+            if (input.get(input.position()) == '\n') {
+                input.position(input.position() + 1);
+            }
+        }
+        int position = input.position();
+        int limit = input.limit();
+        for (int i = position; i < limit; i++) {
+            byte b = input.get(i);
+            if (b == '\n' || b == '\r') {
+                append(input, i - position);
+                input.position(i + 1); // Step over the terminator
+                skipLineFeed = b == '\r';
+                view.set(line, 0, length);
+                length = 0;
+                return view;
+            }
+        }
+        // No terminator yet, keep what we have until more bytes arrive
+        append(input, limit - position);
+        return null;
+    }
+
+    // Copies the next count bytes of the input onto the end of the current line
+    private void append(ByteBuffer input, int count) {
+        if (length + count > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+        }
+        input.get(line, length, count);
+        length += count;
+    }
+}
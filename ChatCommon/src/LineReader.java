@@ -0,0 +1,43 @@
+/*
+ * Author: Adin Geist
+ * Description: Reads protocol lines from a blocking stream through a reusable buffer and a decoder, text lines
+ *              until the connection switches to binary frames.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class LineReader {
+    private final InputStream inputStream;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private ProtocolDecoder decoder = new LineDecoder();
+
+    // Constructor that accepts the stream to read from
+    public LineReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+        buffer.limit(0); // Nothing read yet
+    }
+
+    // Returns the next line, or null once the stream ends. The returned view is only valid until the next call.
+    public ProtocolLine readLine() throws IOException {
+        while (true) {
+            ProtocolLine line = decoder.decode(buffer);
+            if (line != null) return line;
+            int read = inputStream.read(buffer.array()); // Blocking!
+            if (read < 0) return null;
+            buffer.position(0);
+            buffer.limit(read);
+        }
+    }
+
+    // Decodes everything after the line just read with the given decoder, bytes that were already read included
+    public void setDecoder(ProtocolDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    // Closes the underlying stream
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
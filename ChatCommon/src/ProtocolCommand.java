@@ -0,0 +1,101 @@
+/*
+ * Author: Adin Geist
+ * Description: The command verbs of the chat protocol, shared by the client and the server. Verbs are matched
+ *              straight from the received bytes without case, so no string is built just to find out the command.
+ *              In the binary v2 protocol each command is a single opcode byte instead.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public enum ProtocolCommand {
+    LOGIN("login", 1),
+    LOGOFF("logoff", 2),
+    MSG("msg", 3),
+    ONLINE("online", 4),
+    OFFLINE("offline", 5),
+    HELLO("hello", 6),
+    ROSTER("roster", 7),
+    PRESENCE("presence", 8),
+    JOIN("join", 9),
+    PART("part", 10),
+    RMSG("rmsg", 11),
+    DM("dm", 12),
+    MSGID("msgid", 13),
+    REPLAY("replay", 14),
+    REPLAYED("replayed", 15),
+    // Only spoken between the nodes of a cluster
+    NODE("node", 16),
+    CLAIM("claim", 17),
+    CLAIMED("claimed", 18),
+    RELEASE("release", 19),
+    PING("ping", 20),
+    PONG("pong", 21),
+    POST("post", 22),
+    ACK("ack", 23),
+    NACK("nack", 24),
+    SEARCH("search", 25),
+    FOUND("found", 26),
+    SEARCHED("searched", 27),
+    UPLOAD("upload", 28),
+    FILE("file", 29),
+    // Anything that isn't one of the verbs above
+    UNKNOWN("", 0);
+
+    private static final ProtocolCommand[] VALUES = values();
+    // Commands by opcode, UNKNOWN for opcodes nobody uses
+    private static final ProtocolCommand[] BY_OPCODE = new ProtocolCommand[256];
+
+    static {
+        Arrays.fill(BY_OPCODE, UNKNOWN);
+        for (ProtocolCommand command : VALUES) {
+            BY_OPCODE[command.opcode] = command;
+        }
+    }
+
+    private final String verb;
+    private final byte[] verbBytes;
+    private final int opcode;
+
+    ProtocolCommand(String verb, int opcode) {
+        this.verb = verb;
+        this.verbBytes = verb.getBytes(StandardCharsets.US_ASCII);
+        this.opcode = opcode;
+    }
+
+    // Return the verb as it is written on the wire
+    public String verb() {
+        return verb;
+    }
+
+    // Return the byte that stands for this command in the binary protocol
+    public int opcode() {
+        return opcode;
+    }
+
+    // Returns the command with the given opcode, or UNKNOWN if there is none
+    public static ProtocolCommand fromOpcode(int opcode) {
+        return BY_OPCODE[opcode & 0xFF];
+    }
+
+    // Finds the command whose verb matches the given bytes without case, or UNKNOWN if none does
+    public static ProtocolCommand match(byte[] buffer, int offset, int length) {
+        for (ProtocolCommand command : VALUES) {
+            if (command != UNKNOWN && command.matches(buffer, offset, length)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    // Compares the verb against the bytes, folding ASCII letters to lower case as it goes
+    private boolean matches(byte[] buffer, int offset, int length) {
+        if (length != verbBytes.length) return false;
+        for (int i = 0; i < length; i++) {
+            int b = buffer[offset + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != verbBytes[i]) return false;
+        }
+        return true;
+    }
+}
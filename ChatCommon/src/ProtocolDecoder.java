@@ -0,0 +1,14 @@
+/*
+ * Author: Adin Geist
+ * Description: Interface for turning received bytes into protocol lines, one per wire format. A connection starts
+ *              with text lines and can switch to binary frames after hello, keeping the bytes it already read.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ProtocolDecoder {
+    // Consumes the bytes of the next complete line or frame and returns it, or returns null once the input runs out
+    // first. The returned view is reused, so it's only valid until the next call.
+    public ProtocolLine decode(ByteBuffer input) throws IOException;
+}
@@ -0,0 +1,168 @@
+/*
+ * Author: Adin Geist
+ * Description: A reusable view over one received protocol line. The verb is matched when the line is set, and
+ *              arguments and the message body are only turned into strings when someone asks for them. The same
+ *              view covers binary v2 frames, whose fields are already delimited, so command handling doesn't care
+ *              which protocol a line arrived in.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ProtocolLine {
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private int verbEnd;
+    private ProtocolCommand command;
+    // Where each field of a binary frame starts and ends. fieldCount is -1 for text lines.
+    private int[] fieldStarts = new int[8];
+    private int[] fieldEnds = new int[8];
+    private int fieldCount = -1;
+
+    // Points this view at the line in buffer[start, end), without the line terminator
+    public void set(byte[] buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        this.verbEnd = indexOfSpace(start);
+        this.command = ProtocolCommand.match(buffer, start, verbEnd - start);
+        this.fieldCount = -1;
+    }
+
+    // Points this view at a binary frame's fields, which end at end in the buffer and are added with addField()
+    public void setBinary(byte[] buffer, ProtocolCommand command, int end) {
+        this.buffer = buffer;
+        this.start = end;
+        this.end = end;
+        this.verbEnd = end;
+        this.command = command;
+        this.fieldCount = 0;
+    }
+
+    // Adds the next field of a binary frame, found at buffer[start, end)
+    public void addField(int start, int end) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    // Return the command of this line, UNKNOWN if the verb isn't part of the protocol
+    public ProtocolCommand command() {
+        return command;
+    }
+
+    // Return the verb exactly as it was received
+    public String verb() {
+        if (fieldCount >= 0) return command.verb();
+        return new String(buffer, start, verbEnd - start, StandardCharsets.UTF_8);
+    }
+
+    // Return the number of space separated arguments after the verb, ignoring trailing spaces like String.split does
+    public int argumentCount() {
+        if (fieldCount >= 0) return fieldCount;
+        int last = end;
+        while (last > verbEnd && buffer[last - 1] == ' ') {
+            last--;
+        }
+        int count = 0;
+        for (int i = verbEnd; i < last; i++) {
+            if (buffer[i] == ' ') count++;
+        }
+        return count;
+    }
+
+    // Return the argument at the given index after the verb, or an empty string if the line is too short
+    public String argument(int index) {
+        if (fieldCount >= 0) {
+            if (index >= fieldCount) return "";
+            return new String(buffer, fieldStarts[index], fieldEnds[index] - fieldStarts[index], StandardCharsets.UTF_8);
+        }
+        int tokenStart = bodyOffset(index);
+        if (tokenStart >= end) return "";
+        return new String(buffer, tokenStart, indexOfSpace(tokenStart) - tokenStart, StandardCharsets.UTF_8);
+    }
+
+    // Return every argument from the given index on, like argument() for each index up to argumentCount() but
+    // walking the line only once, for lines like a roster that carry thousands of them
+    public List<String> arguments(int from) {
+        List<String> arguments = new ArrayList<>();
+        if (fieldCount >= 0) {
+            for (int i = from; i < fieldCount; i++) {
+                arguments.add(argument(i));
+            }
+            return arguments;
+        }
+        int last = end;
+        while (last > verbEnd && buffer[last - 1] == ' ') {
+            last--;
+        }
+        for (int tokenStart = bodyOffset(from); tokenStart < last; ) {
+            int tokenEnd = Math.min(indexOfSpace(tokenStart), last);
+            arguments.add(new String(buffer, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8));
+            tokenStart = tokenEnd + 1;
+        }
+        return arguments;
+    }
+
+    // Return the offset in the buffer where the body starts once the verb and the given number of arguments are skipped.
+    // In a binary frame the body is always the last field, so it runs to the end of the frame.
+    public int bodyOffset(int skipArguments) {
+        if (fieldCount >= 0) return skipArguments < fieldCount ? fieldStarts[skipArguments] : end;
+        int offset = verbEnd;
+        for (int i = 0; i <= skipArguments && offset < end; i++) {
+            offset = i == skipArguments ? offset + 1 : indexOfSpace(offset + 1);
+        }
+        return Math.min(offset, end);
+    }
+
+    // Return the rest of the line once the verb and the given number of arguments are skipped
+    public String body(int skipArguments) {
+        int offset = bodyOffset(skipArguments);
+        return new String(buffer, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    // Return how many bytes the line takes up in the buffer, without the line terminator or frame header
+    public int length() {
+        if (fieldCount > 0) return end - fieldStarts[0];
+        return end - start;
+    }
+
+    // Return the buffer this line is a view over, only valid until the next line is read
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    // Return the offset just past the last byte of the line
+    public int end() {
+        return end;
+    }
+
+    // Return the whole line as a string
+    @Override
+    public String toString() {
+        if (fieldCount >= 0) {
+            StringBuilder line = new StringBuilder(command.verb());
+            for (int i = 0; i < fieldCount; i++) {
+                if (line.length() > 0) line.append(' ');
+                line.append(argument(i));
+            }
+            return line.toString();
+        }
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // Finds the next space at or after the offset, or the end of the line
+    private int indexOfSpace(int offset) {
+        while (offset < end && buffer[offset] != ' ') {
+            offset++;
+        }
+        return offset;
+    }
+}
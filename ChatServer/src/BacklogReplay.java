@@ -0,0 +1,86 @@
+/*
+ * Author: Adin Geist
+ * Description: Streams the broadcasts a reconnecting client missed back to it in small chunks. A chunk is only
+ *              queued while the client's outbound queue has room to spare, and chunks from every replay take turns
+ *              on a few shared threads with a pause in between, so a crowd of clients reconnecting at once can't
+ *              crowd out live messages.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BacklogReplay implements Runnable {
+    private static final int CHUNK_SIZE = ServerConfig.getInt("replay.chunkSize", 128);
+    private static final long PAUSE_MILLIS = ServerConfig.getLong("replay.pauseMillis", 10);
+    // Shared by every replay so their disk reads and chunks never pile up on the reader or timer threads
+    private static final ScheduledExecutorService REPLAYERS = Executors.newScheduledThreadPool(
+            ServerConfig.getInt("replay.threads", 2), new ReplayThreadFactory());
+
+    private final ClientController client;
+    private final MessageHistory history;
+    private final SessionRegistry sessions;
+    // Newer messages reach the client live, since it was already logged in when the replay started. Messages still
+    // being recorded then do as well, so the replay only goes up to what is recorded.
+    private final long upToId;
+    private long afterId;
+
+    // Constructor that accepts the client, where the history and its sessions live, and the last id the client saw
+    public BacklogReplay(ClientController client, Server server, long afterId) {
+        this.client = client;
+        this.history = server.getHistory();
+        this.sessions = server.getSessions();
+        this.afterId = afterId;
+        this.upToId = history.recordedThrough();
+    }
+
+    // Starts streaming the missed messages
+    public void start() {
+        REPLAYERS.execute(this);
+    }
+
+    // Queues the next chunk of missed messages, then schedules the following one, and finishes with
+    // "replayed <id>" once the client has caught up to where it was when it asked
+    @Override
+    public void run() {
+        if (!sessions.contains(client)) return; // The client went away again, nothing to replay to
+        OutboundQueue outbound = client.getOutboundQueue();
+        if (outbound.depth() > outbound.capacity() / 2) {
+            // Leave room for live messages and come back once the client has read some of what is queued
+            REPLAYERS.schedule(this, PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        List<Frame> frames = new ArrayList<>(CHUNK_SIZE);
+        try {
+            afterId = history.read(afterId, upToId, CHUNK_SIZE, frames);
+        } catch (IOException e) {
+            Log.warn("Couldn't read the message journal for " + client.getLogin() + ": " + e.getMessage());
+            afterId = upToId; // Give up on what is left and let the client know how far it got
+        }
+        for (Frame frame : frames) {
+            client.send(frame);
+        }
+        if (afterId >= upToId) {
+            client.send(Frame.of("replayed " + upToId + "\n"));
+        } else {
+            REPLAYERS.schedule(this, PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Names the replay threads and keeps them from holding the server up on shutdown
+    private static class ReplayThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "replay-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
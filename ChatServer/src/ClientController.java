@@ -4,167 +4,716 @@
  */
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
-public class ClientController extends Thread {
-    private Server server;
+public class ClientController implements Runnable {
+    // Pending messages are coalesced into writes of at most this many bytes
+    protected static final int MAX_BATCH_BYTES = ServerConfig.getInt("batch.maxBytes", 64 * 1024);
+    // How long a writer waits for more messages to join a batch before writing it, 0 writes as soon as possible
+    protected static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.getLong("batch.lingerMicros", 0));
+    // Logins must contain alphanumerics and _    Nothing else. Compiled once instead of on every login.
+    private static final Pattern VALID_LOGIN = Pattern.compile("[A-Za-z0-9_]+");
+    // Room names follow the same rule, plus -
+    private static final Pattern VALID_ROOM = Pattern.compile("[A-Za-z0-9_-]+");
+    // Client ids of posts follow the same rule, but can't run on forever since the server remembers them
+    private static final Pattern VALID_CLIENT_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    // Answer to every ping, encoded once
+    private static final Frame PONG = Frame.of("pong\n");
+    // Answer to a line that went over the rate limits, encoded once
+    private static final Frame RATE_LIMITED = Frame.of("Rate limit exceeded, slow down.\n");
+    private static final byte[] FILE_TOO_BIG_REASON = "File is too big or the server has no room for it."
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RATE_LIMITED_REASON = "Rate limit exceeded, slow down.".getBytes(StandardCharsets.UTF_8);
+
+    protected Server server;
     private Socket socket;
-    private String login = null;
-    private BufferedReader inputStream;
+    private volatile String login = null;
+    // Optional protocol features THIS client asked for with hello, none for clients that never say hello
+    private volatile Set<Capability> capabilities = Collections.emptySet();
+    // True once THIS client switched to binary v2 frames, every frame queued after that is sent in binary
+    private volatile boolean binaryFraming = false;
+    // True if THIS client also accepts compressed binary frames
+    private volatile boolean compression = false;
+    // When THIS client last sent anything, checked by the idle reaper
+    private volatile long lastReadNanos = System.nanoTime();
+    // Rate limit violations THIS client may still commit before it is disconnected, null if it never is
+    private final TokenBucket violations = RateLimiter.violationBucket();
+    // Where THIS client connected from, looked up on its first line
+    private InetAddress address;
+    // Rooms THIS client has joined, as the names it joined them with
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private LineReader inputStream;
     private OutputStream outputStream;
+    // Messages waiting to be written to THIS client, drained by its own writer
+    protected final OutboundQueue outbound = new OutboundQueue();
+    private Thread writerThread;
 
     // Constructor that accepts a server and socket, which has its input and output streams extracted to fields
     public ClientController(Server server, Socket socket) {
         try {
             this.server = server;
             this.socket = socket;
-            InputStream inputStream = socket.getInputStream();
-            this.inputStream = new BufferedReader(new InputStreamReader(inputStream));
+            this.inputStream = new LineReader(new MeteredInputStream(socket.getInputStream(), server.getMetrics()));
             this.outputStream = socket.getOutputStream();
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.warn("Couldn't set up the connection of a new client.", e);
         }
     }
 
-    // The run method, which will be run in a separate thread when called.
+    // Constructor for subclasses that bring their own transport instead of a blocking socket
+    protected ClientController(Server server) {
+        this.server = server;
+    }
+
+    // The run method, which the server runs on its own platform or virtual thread.
     @Override
     public void run() {
+        // Writes happen on a separate thread, so a slow socket never blocks whoever is sending to THIS client
+        writerThread = server.newClientThread(this::writeLoop);
+        writerThread.start();
         try {
-            String line;
+            ProtocolLine line;
             // Read the next line from the user forever
             while ((line = inputStream.readLine()) != null) { // Blocking!
-                String[] tokens = line.split(" "); // Split the user's input into tokens on each space
-                if (tokens.length > 0) { // Make sure the message has a token
-                    switch (tokens[0].toLowerCase()) { // tokens[0] is the command
-                        case "msg":
-                            String body = line.substring(tokens[0].length()+1);
-                            // Send the message body to all other controllers connected to the server
-                            handleMsg(body);
-                            break;
-                        case "login":
-                            // Send to all controllers on the server that THIS user connected
-                            handleLogin(tokens);
-                            break;
-                        case "logoff":
-                            // Send to all controllers on the server that THIS user disconnected
-                            handleLogoff();
-                            break;
-                        default: // Tell the user the command wasn't understood
-                            outputStream.write(("Unknown command: \""+tokens[0]+"\"\n").getBytes(StandardCharsets.UTF_8));
+                handleLine(line);
+            }
+        } catch (IOException e) {
+            Log.info(login + " disconnected."); // Couldn't read line from the user
+        } finally {
+            // The connection is gone, so stop holding on to this client and its login
+            disconnect();
+        }
+    }
+
+    // Writes queued messages out to THIS client's socket until the connection closes. Everything that is already
+    // queued, or arrives within the linger time, is copied into one batch and written with a single call.
+    private void writeLoop() {
+        // Grown to the size batches actually reach, up to MAX_BATCH_BYTES, so idle clients don't hold a full one
+        byte[] batch = new byte[0];
+        ServerMetrics metrics = server.getMetrics();
+        try {
+            while (true) {
+                Frame frame = outbound.take(); // Blocking!
+                long lingerDeadline = System.nanoTime() + LINGER_NANOS;
+                int length = 0;
+                while (frame != null) {
+                    int needed = length + frame.length();
+                    if (needed > batch.length && batch.length < MAX_BATCH_BYTES && frame.length() <= MAX_BATCH_BYTES) {
+                        batch = Arrays.copyOf(batch, Math.min(MAX_BATCH_BYTES, Math.max(needed, batch.length * 2)));
+                    }
+                    if (needed > batch.length) {
+                        // The batch is full, write it out before adding more
+                        if (length > 0) {
+                            outputStream.write(batch, 0, length);
+                            metrics.bytesWritten(length);
+                            length = 0;
+                        }
+                        if (frame.length() > batch.length) {
+                            frame.writeTo(outputStream); // Too big to batch, write it on its own
+                            metrics.bytesWritten(frame.length());
+                            frame = nextForBatch(lingerDeadline);
+                            continue;
+                        }
                     }
+                    length = frame.copyTo(batch, length);
+                    frame = nextForBatch(lingerDeadline);
+                }
+                if (length > 0) {
+                    outputStream.write(batch, 0, length);
+                    metrics.bytesWritten(length);
                 }
             }
+        } catch (InterruptedException e) {
+            // The connection was closed while waiting for the next message
         } catch (IOException e) {
-            System.out.println(login + " disconnected.");; // Couldn't read line from the user
+            // If the message can't send, the connection is broken. Disconnect the user from the server.
+            Log.info("Broken " + this.login);
+            disconnect();
+        }
+    }
+
+    // Returns the next queued message if one is ready before the linger deadline, otherwise null to end the batch
+    private Frame nextForBatch(long lingerDeadline) throws InterruptedException {
+        Frame frame = outbound.poll();
+        if (frame == null && LINGER_NANOS > 0) {
+            long remaining = lingerDeadline - System.nanoTime();
+            if (remaining > 0) {
+                frame = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+        return frame;
+    }
+
+    // Handles a single line of input from the user, no matter which transport it was read from
+    // The line is parsed straight from the received bytes, so only the parts a command needs become strings.
+    protected void handleLine(ProtocolLine line) throws IOException {
+        lastReadNanos = System.nanoTime();
+        if (!withinRateLimits(line)) return;
+        switch (line.command()) { // The verb is matched without case
+            case MSG:
+                // Send the message body to all other controllers connected to the server
+                handleMsg(line);
+                break;
+            case POST:
+                // Same as msg, but acked with the message id and only broadcast once per client id
+                handlePost(line);
+                break;
+            case LOGIN:
+                // Send to all controllers on the server that THIS user connected
+                handleLogin(line);
+                break;
+            case LOGOFF:
+                // Send to all controllers on the server that THIS user disconnected
+                handleLogoff();
+                break;
+            case HELLO:
+                // Agree on the optional protocol features THIS client supports
+                handleHello(line);
+                break;
+            case JOIN:
+                // Add THIS user to a room
+                handleJoin(line);
+                break;
+            case PART:
+                // Remove THIS user from a room
+                handlePart(line);
+                break;
+            case RMSG:
+                // Send the message body to the members of one room
+                handleRoomMsg(line);
+                break;
+            case DM:
+                // Send the message body to one user
+                handleDirectMsg(line);
+                break;
+            case PING:
+                // Prove the connection is still alive in both directions
+                write(PONG);
+                break;
+            case PONG:
+                // Nothing to do, reading it already showed THIS client is alive
+                break;
+            case REPLAY:
+                // Stream back the broadcasts THIS user missed while disconnected
+                handleReplay(line);
+                break;
+            case SEARCH:
+                // Look up earlier broadcasts by the words in them
+                handleSearch(line);
+                break;
+            case UPLOAD:
+                // Let THIS user upload a file over the transfer port
+                handleUpload(line);
+                break;
+            default: // Tell the user the command wasn't understood
+                write(Frame.of("Unknown command: \""+line.verb()+"\"\n"));
+        }
+    }
+
+    // Returns true if THIS client may send the line. A line over the limits is dropped with an error, and a client
+    // that keeps going over them is disconnected.
+    private boolean withinRateLimits(ProtocolLine line) throws IOException {
+        if (address == null) {
+            address = getInetAddress();
+        }
+        if (server.getRateLimiter().allow(address, login, line.command(), line.length())) return true;
+        ServerMetrics metrics = server.getMetrics();
+        metrics.lineRateLimited();
+        if (violations != null && !violations.tryAcquire(1)) {
+            // Lines that were already read may still come through after the disconnect, only count it once
+            if (server.getSessions().contains(this)) {
+                metrics.rateLimitDisconnected();
+                Log.info(login + " kept going over the rate limits, disconnecting.");
+                disconnect();
+            }
+            return false;
+        }
+        boolean answered = line.command() == ProtocolCommand.POST && hasCapability(Capability.ACKS)
+                || line.command() == ProtocolCommand.UPLOAD && hasCapability(Capability.FILES);
+        if (answered && line.argumentCount() > 0) {
+            // The client is waiting for an answer to this one, tell it which request was refused
+            write(Frame.of("nack " + line.argument(0) + " ", RATE_LIMITED_REASON, 0));
+        } else if (line.command() == ProtocolCommand.LOGIN) {
+            // A client waiting for its login only listens for a login answer
+            write(Frame.of("login refused ", RATE_LIMITED_REASON, 0));
+        } else {
+            write(RATE_LIMITED);
         }
+        return false;
     }
 
     // Command format:   msg body
     // Method that sends the given message to all connected controllers
-    private void handleMsg(String body) {
-        List<ClientController> controllerList = server.getControllerList();
-        // Send a message to each controller connected
-        for (ClientController controller : controllerList) {
-            String msg = "msg " + login + " " + body + "\n";
-            controller.send(msg);
+    private void handleMsg(ProtocolLine line) {
+        // Stamp the message with an id and send it to everyone on this node, copying the body straight from the
+        // received bytes
+        relayMsg(server.broadcast(login, line, 0), line, 0);
+    }
+
+    // Command format:   post clientId body
+    // Broadcasts the body like msg and acks it with its message id. A client id THIS user already posted under is
+    // acked with the id it got back then, without broadcasting it again.
+    private void handlePost(ProtocolLine line) throws IOException {
+        String clientId = line.argumentCount() > 0 ? line.argument(0) : "";
+        if (login == null || !hasCapability(Capability.ACKS) || !VALID_CLIENT_ID.matcher(clientId).matches()) {
+            write(Frame.of("Can't post without a login, the acks capability and a client id.\n"));
+            return;
+        }
+        long id = server.getPosts().post(login, clientId, () -> {
+            long next = server.nextMessageId();
+            relayMsg(server.broadcast(next, login, line, 1), line, 1);
+            return next;
+        });
+        write(Frame.of("ack " + clientId + " " + id + "\n"));
+    }
+
+    // Passes a broadcast on to the other nodes, which deliver it to their own clients
+    private void relayMsg(Frame msg, ProtocolLine line, int skipArguments) {
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            cluster.relay(msg);
+        }
+        // Log the message sent to all, only built when debug logging is on
+        if (Log.isEnabled(LogLevel.DEBUG)) {
+            Log.debug(login + " " + line.body(skipArguments));
         }
-        // Print to the console the message send to all
-        System.out.println(login + " " + body);
     }
 
     // Send a message to THIS client
     private void send(String msg) {
+        send(Frame.of(msg));
+    }
+
+    // Send an already encoded message to THIS client
+    void send(Frame msg) {
         if (login != null) {
             try {
                 // Try to write out to the client the message
-                outputStream.write(msg.getBytes(StandardCharsets.UTF_8));
+                write(msg);
             } catch (Exception e) {
-                // If the message can't send, the connection is broken. Disconnect the user from the server.
-                System.out.println("Broken " + this.login);
-                server.removeController(this);
+                // If the message can't be queued, the connection is broken or too slow. Disconnect the user from the server.
+                Log.info("Broken " + this.login + ": " + e.getMessage());
+                disconnect();
             }
         }
     }
 
     // Command format:  login username
     // Checks to see if the username is valid and isn't already taken. If so, logins the user.
-    private void handleLogin(String[] tokens) {
+    private void handleLogin(ProtocolLine line) {
         String login = "";
         // Ensure the input is valid
-        if (tokens.length == 2) {
-            login = tokens[1];
+        if (line.argumentCount() == 1) {
+            login = line.argument(0);
         }
 
-        List<ClientController> controllerList = server.getControllerList();
+        SessionRegistry sessions = server.getSessions();
 
-        // Check if the login is okay using regex and checking against all others connected clients' login names
-        boolean loginOk = true;
+        // Check if the login is okay using regex and by atomically claiming it, so no other client can take it too
+        boolean loginOk = VALID_LOGIN.matcher(login).matches() && sessions.claimLogin(login, this);
+        ClusterNode cluster = server.getCluster();
+        if (loginOk && cluster != null) {
+            // The other nodes have to agree to it as well, the login is finished once they answered
+            String claimed = login;
+            afterClaim(cluster.claim(login), granted -> finishClaimedLogin(claimed, granted));
+            return;
+        }
+        finishLogin(login, loginOk);
+    }
+
+    // Waits for the cluster to answer a claim and then passes the answer on. The client's own thread simply waits,
+    // the nio controller overrides this so its event loop doesn't.
+    protected void afterClaim(CompletableFuture<Boolean> claim, Consumer<Boolean> then) {
+        boolean granted;
         try {
-            for (ClientController clientController : controllerList) {
-                if (
-                        (this.socket != clientController.socket && login.equalsIgnoreCase(clientController.login)) ||
-                                login.isEmpty() ||
-                                login.isBlank() ||
-                                !login.matches("^[A-Za-z0-9_]*$") // Must contain alphanumerics and _    Nothing else
-                ) {
-                    this.outputStream.write("Username is invalid.\n".getBytes(StandardCharsets.UTF_8));
-                    loginOk = false;
-                    break;
-                }
+            granted = claim.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            granted = false;
+        } catch (ExecutionException e) {
+            granted = false;
+        }
+        then.accept(granted);
+    }
+
+    // Finishes a login the other nodes answered. One they turned down, because a user on another node has it or is
+    // taking it right now, is given up again, and so is one THIS client no longer needs because it left meanwhile.
+    private void finishClaimedLogin(String login, boolean granted) {
+        SessionRegistry sessions = server.getSessions();
+        boolean connected = sessions.contains(this);
+        if (!granted || !connected) {
+            sessions.releaseLogin(login, this);
+            if (granted) {
+                server.getCluster().release(login);
             }
+            if (!connected) return;
+        }
+        finishLogin(login, granted);
+    }
 
-            if (loginOk) {
+    // Logs THIS user in under the login if it was okayed, or tells them it is invalid
+    private void finishLogin(String login, boolean loginOk) {
+        SessionRegistry sessions = server.getSessions();
+        ClusterNode cluster = server.getCluster();
+        try {
+            if (!loginOk) {
+                write(Frame.of("Username is invalid.\n"));
+            } else {
+                String previousLogin = this.login;
                 this.login = login;
-                System.out.println("User logged in: " + login + "  |  " + "IP: " + this.socket.getInetAddress());
-                this.outputStream.write("login ok\n".getBytes(StandardCharsets.UTF_8));
-
-                // send current user all other online logins
-                for(ClientController clientController : controllerList) {
-                    if (clientController.getLogin() != null && !login.equals(clientController.getLogin())) {
-                        String msg2 = "online " + clientController.getLogin() + "\n";
-                        send(msg2);
+                if (cluster != null && previousLogin != null && !previousLogin.equalsIgnoreCase(login)) {
+                    cluster.offline(previousLogin); // Logging in again under a new name frees up the old one
+                }
+                server.getMetrics().loginSucceeded();
+                Log.info("User logged in: " + login + "  |  " + "IP: " + getInetAddress());
+                write(Frame.of("login ok\n"));
+
+                PresenceTracker presence = server.getPresence();
+                if (hasCapability(Capability.ROSTER)) {
+                    // send current user every online login in a single roster snapshot
+                    presence.subscribe(this);
+                } else {
+                    // send current user all other online logins
+                    for(ClientController clientController : sessions.sessions()) {
+                        if (clientController.getLogin() != null && !login.equals(clientController.getLogin())) {
+                            String msg2 = "online " + clientController.getLogin() + "\n";
+                            send(msg2);
+                        }
+                    }
+                    for (String remoteLogin : sessions.remoteLogins()) {
+                        send("online " + remoteLogin + "\n");
                     }
                 }
 
-                // Send to other user's this user logged on
-                String onlineMsg = "online " + login + "\n";
-                for(ClientController clientController : controllerList) {
-                     clientController.send(onlineMsg);
+                // Send to other user's this user logged on. Roster clients get it in the next batched delta.
+                Frame onlineMsg = Frame.of("online " + login + "\n");
+                for(ClientController clientController : sessions.sessions()) {
+                    if (!clientController.hasCapability(Capability.ROSTER)) {
+                        clientController.send(onlineMsg);
+                    }
+                }
+                presence.online(login);
+                if (cluster != null) {
+                    cluster.online(login);
                 }
             }
         } catch (IOException e) {
-            System.out.println("Login failed for: " + login);
-            e.printStackTrace();
+            Log.warn("Login failed for: " + login, e);
         }
     }
 
     // Command format: logoff user
-    // Disconnects a client's socket from the server and removes the controller from the server's controller list
+    // Disconnects a client's socket from the server and removes the controller from the server's session registry
     private void handleLogoff() {
-        // Remove this controller from the server's controller list
-        server.removeController(this);
-        List<ClientController> controllerList = server.getControllerList();
-
-        // send other online users current user's status
-        String onlineMsg = "offline " + login + "\n";
-        for(ClientController clientController : controllerList) {
-            if (!login.equals(clientController.getLogin())) {
-                clientController.send(onlineMsg);
+        disconnect();
+    }
+
+    // Command format:  join room
+    // Adds THIS user to the room and tells every member, including THIS user, that they joined
+    private void handleJoin(ProtocolLine line) throws IOException {
+        String room = line.argument(0);
+        if (login == null || !VALID_ROOM.matcher(room).matches()) {
+            write(Frame.of("Room name is invalid.\n"));
+            return;
+        }
+        RoomRegistry roomRegistry = server.getRooms();
+        if (roomRegistry.join(room, this)) {
+            rooms.add(room);
+            Frame joinMsg = Frame.of("join " + room + " " + login + "\n");
+            for (ClientController member : roomRegistry.members(room)) {
+                member.send(joinMsg);
+            }
+            relayToCluster(joinMsg);
+        }
+    }
+
+    // Command format:  part room
+    // Removes THIS user from the room and tells the members, including THIS user, that they left
+    private void handlePart(ProtocolLine line) throws IOException {
+        String room = line.argument(0);
+        if (!partRoom(room)) {
+            write(Frame.of("Not in room " + room + ".\n"));
+            return;
+        }
+        send(Frame.of("part " + room + " " + login + "\n"));
+    }
+
+    // Command format:  rmsg room body
+    // Sends the message body to the members of the room only
+    private void handleRoomMsg(ProtocolLine line) throws IOException {
+        String room = line.argument(0);
+        RoomRegistry roomRegistry = server.getRooms();
+        if (!roomRegistry.isMember(room, this)) {
+            write(Frame.of("Not in room " + room + ".\n"));
+            return;
+        }
+        // Encode once for the whole room, the fan-out only touches the room's members
+        Frame msg = Frame.of("rmsg " + room + " " + login + " ", line, 1);
+        for (ClientController member : roomRegistry.members(room)) {
+            member.send(msg);
+        }
+        relayToCluster(msg);
+    }
+
+    // Command format:  dm user body
+    // Sends the message body to one user, found through the login index instead of scanning every client
+    private void handleDirectMsg(ProtocolLine line) throws IOException {
+        String recipientLogin = line.argument(0);
+        ClientController recipient = login == null ? null : server.getSessions().find(recipientLogin);
+        if (recipient == null && login != null && server.getCluster() != null &&
+                server.getCluster().forwardDirect(recipientLogin, login, line)) {
+            return; // They are on another node, which delivers it
+        }
+        if (recipient == null) {
+            write(Frame.of("User " + recipientLogin + " is not online.\n"));
+            return;
+        }
+        recipient.send(Frame.of("dm " + login + " ", line, 1));
+    }
+
+    // Command format:  replay lastId
+    // Streams every broadcast after the given id back to THIS user, paced so live messages keep flowing
+    private void handleReplay(ProtocolLine line) throws IOException {
+        long afterId;
+        try {
+            afterId = Long.parseLong(line.argument(0));
+        } catch (NumberFormatException e) {
+            afterId = -1;
+        }
+        if (login == null || !hasCapability(Capability.IDS) || afterId < 0) {
+            write(Frame.of("Can't replay without a login, the ids capability and the last message id.\n"));
+            return;
+        }
+        new BacklogReplay(this, server, afterId).start();
+    }
+
+    // Command format:  search beforeId term...
+    // Sends back a page of the broadcasts older than the id that contain every term, newest first. 0 starts from the
+    // newest broadcast.
+    private void handleSearch(ProtocolLine line) throws IOException {
+        long beforeId;
+        try {
+            beforeId = Long.parseLong(line.argument(0));
+        } catch (NumberFormatException e) {
+            beforeId = -1;
+        }
+        SearchIndex search = server.getSearch();
+        if (login == null || search == null || beforeId < 0 || line.argumentCount() < 2) {
+            write(Frame.of("Can't search without a login, an id to search before and the words to search for.\n"));
+            return;
+        }
+        List<String> terms = new ArrayList<>();
+        for (int i = 1; i < line.argumentCount(); i++) {
+            terms.add(line.argument(i));
+        }
+        search.search(this, beforeId, terms);
+    }
+
+    // Command format:  upload clientId size name
+    // Grants THIS user an upload and answers with the file id, the token to upload it with and the transfer port.
+    // Everyone hears about the file once it has been uploaded.
+    private void handleUpload(ProtocolLine line) throws IOException {
+        String clientId = line.argumentCount() > 0 ? line.argument(0) : "";
+        FileTransfers files = server.getFiles();
+        if (login == null || files == null || !hasCapability(Capability.FILES)
+                || !VALID_CLIENT_ID.matcher(clientId).matches() || line.argumentCount() < 3) {
+            write(Frame.of("Can't upload without a login, the files capability, a client id, a size and a name.\n"));
+            return;
+        }
+        long size;
+        try {
+            size = Long.parseLong(line.argument(1));
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        FileTransfers.SpoolFile file = files.grant(login, size, line.body(2));
+        if (file == null) {
+            write(Frame.of("nack " + clientId + " ", FILE_TOO_BIG_REASON, 0));
+            return;
+        }
+        write(Frame.of("upload " + clientId + " " + file.getId() + " " + file.getToken() + " " + files.getPort() + "\n"));
+    }
+
+    // Removes THIS user from the room and tells the remaining members. Returns false if THIS user wasn't in it.
+    private boolean partRoom(String room) {
+        RoomRegistry roomRegistry = server.getRooms();
+        if (!roomRegistry.part(room, this)) return false;
+        rooms.removeIf(joined -> joined.equalsIgnoreCase(room));
+        Frame partMsg = Frame.of("part " + room + " " + login + "\n");
+        for (ClientController member : roomRegistry.members(room)) {
+            member.send(partMsg);
+        }
+        relayToCluster(partMsg);
+        return true;
+    }
+
+    // Passes a room event on to the other nodes, which deliver it to their own members of the room
+    private void relayToCluster(Frame frame) {
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            cluster.relay(frame);
+        }
+    }
+
+    // Tells the other nodes THIS user is gone, so the login is free again everywhere
+    private void announceOfflineToCluster() {
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            cluster.offline(login);
+        }
+    }
+
+    // Leaves every room THIS user is in, used when they log off or disconnect
+    private void leaveRooms() {
+        for (String room : rooms) {
+            partRoom(room);
+        }
+    }
+
+    // Command format:  hello capability...
+    // Enables the requested capabilities this server knows and answers with the ones that were enabled
+    // The reply is always a text line. With v2, both sides switch to binary frames right after it.
+    private void handleHello(ProtocolLine line) throws IOException {
+        Set<Capability> enabled = EnumSet.noneOf(Capability.class);
+        for (int i = 0; i < line.argumentCount(); i++) {
+            Capability capability = Capability.fromWireName(line.argument(i));
+            // The framing can only change before anything else has been said
+            if (capability == Capability.V2 && (login != null || binaryFraming)) continue;
+            if (capability == Capability.FILES && server.getFiles() == null) continue;
+            if (capability != null) {
+                enabled.add(capability);
+            }
+        }
+        if (binaryFraming) {
+            enabled.add(Capability.V2);
+        }
+        if (!enabled.contains(Capability.V2)) {
+            enabled.remove(Capability.DEFLATE); // Only binary frames can be compressed
+        }
+        StringBuilder reply = new StringBuilder("hello");
+        for (Capability capability : enabled) {
+            reply.append(' ').append(capability.wireName());
+        }
+        capabilities = enabled;
+        write(Frame.of(reply.append('\n').toString()));
+        if (enabled.contains(Capability.V2) && !binaryFraming) {
+            binaryFraming = true;
+            useDecoder(new BinaryDecoder());
+        }
+        compression = enabled.contains(Capability.DEFLATE);
+    }
+
+    // Decodes everything THIS client sends after the current line with the given decoder
+    protected void useDecoder(ProtocolDecoder decoder) {
+        inputStream.setDecoder(decoder);
+    }
+
+    // Returns true if THIS client negotiated the given capability
+    public boolean hasCapability(Capability capability) {
+        return capabilities.contains(capability);
+    }
+
+    // Queues an encoded message for THIS client, applying the overflow policy if it has fallen too far behind
+    protected void write(Frame frame) throws IOException {
+        Frame encoded = !binaryFraming ? frame : compression ? frame.compressed() : frame.binary();
+        if (!outbound.offer(encoded)) {
+            server.getMetrics().slowConsumerDisconnected();
+            throw new IOException("outbound queue overflowed at " + outbound.depth() + " messages");
+        }
+    }
+
+    // Removes THIS client from the server, tells everyone it went offline and closes its connection. Logoffs, read
+    // errors, failed sends and the idle reaper all end up here, possibly at the same time, but only the call that
+    // actually removes the client from the registry announces it, so offline goes out exactly once.
+    protected void disconnect() {
+        SessionRegistry sessions = server.getSessions();
+        if (sessions.remove(this)) {
+            PresenceTracker presence = server.getPresence();
+            presence.unsubscribe(this);
+            if (login != null) {
+                // send other online users current user's status. Roster clients get it in the next batched delta.
+                Frame offlineMsg = Frame.of("offline " + login + "\n");
+                for (ClientController clientController : sessions.sessions()) {
+                    if (!clientController.hasCapability(Capability.ROSTER)) {
+                        clientController.send(offlineMsg);
+                    }
+                }
+                presence.offline(login);
+                announceOfflineToCluster();
             }
+            leaveRooms();
         }
         try {
             // Try to close the input and socket
-            inputStream.close();
-            socket.close();
+            closeConnection();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Couldn't close the connection of " + login, e);
+        }
+    }
+
+    // Return how long it has been since THIS client last sent anything
+    public long idleNanos() {
+        return System.nanoTime() - lastReadNanos;
+    }
+
+    // Closes the socket of THIS client, which also ends its reader, and stops its writer
+    protected void closeConnection() throws IOException {
+        socket.close();
+        if (writerThread != null) {
+            writerThread.interrupt();
         }
     }
 
+    // Return the address THIS client connected from
+    protected InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    // Return the queue of messages waiting to be written to THIS client, used for queue depth metrics
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
     // Return the login for this controller
     public String getLogin() {
         return login;
     }
+
+    // Counts the bytes read from a blocking socket into the server's metrics
+    private static class MeteredInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        private MeteredInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) metrics.bytesRead(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) metrics.bytesRead(read);
+            return read;
+        }
+    }
 }
@@ -0,0 +1,409 @@
+/*
+ * Author: Adin Geist
+ * Description: Joins this server to a cluster of chat servers over plain TCP, so users on different nodes see one
+ *              chat. Every node dials each of its peers and sends its own users' messages, room events and presence
+ *              over that link, and reads what the peers send over the connections they dial in. A login is only
+ *              handed out once every connected peer has agreed nobody else holds it, and when a node goes away its
+ *              users are announced offline. Nodes prove to each other that they know the cluster's shared secret
+ *              before anything else is said, so only real nodes can speak for their users.
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClusterNode {
+    // How long a login waits for every peer to agree to it before it is turned down
+    private static final long CLAIM_TIMEOUT_MILLIS = ServerConfig.getLong("cluster.claimTimeoutMillis", 1000);
+    // How long a peer that dialed in has to prove it knows the secret
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Server server;
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    // Key every node of the cluster shares, proven with a MAC over a fresh nonce so it never goes over the wire
+    private final SecretKeySpec secret;
+    // Outgoing links, one per configured peer
+    private final List<PeerLink> links = new ArrayList<>();
+    // The connection each peer dialed in on, by node id. A peer that reconnects replaces its old one.
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    // Logins waiting for the peers' answers, by claim id
+    private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaimId = new AtomicLong();
+
+    // Starts the node configured with -Dchat.cluster.port and -Dchat.cluster.peers, or returns null when the server
+    // runs alone
+    public static ClusterNode startConfigured(Server server) {
+        int port = ServerConfig.getInt("cluster.port", 0);
+        if (port <= 0) return null;
+        String secret = ServerConfig.getString("cluster.secret", "");
+        if (secret.isEmpty()) {
+            Log.warn("-Dchat.cluster.secret isn't set, so peers couldn't be told from strangers. Running alone.");
+            return null;
+        }
+        String nodeId = ServerConfig.getString("cluster.nodeId", "");
+        if (nodeId.isEmpty()) {
+            try {
+                nodeId = InetAddress.getLocalHost().getHostAddress() + ":" + port;
+            } catch (IOException e) {
+                nodeId = "node-" + port;
+            }
+        }
+        ClusterNode node = new ClusterNode(server, nodeId, ServerConfig.getString("cluster.bindAddress", "127.0.0.1"),
+                port, secret);
+        for (String peer : ServerConfig.getString("cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            try {
+                node.links.add(new PeerLink(node, peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                Log.warn("Cluster peer \"" + peer + "\" isn't host:port. Leaving it out.");
+            }
+        }
+        try {
+            node.start();
+        } catch (IOException e) {
+            Log.error("Couldn't listen for cluster peers on " + node.bindAddress + ":" + port + ". Running alone.", e);
+            return null;
+        }
+        return node;
+    }
+
+    // Constructor that accepts the server whose clients this node serves, its id in the cluster, the address and port
+    // it listens for peers on and the secret the nodes share
+    public ClusterNode(Server server, String nodeId, String bindAddress, int port, String secret) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    // Starts listening for peers and dialing them
+    private void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        Log.info("Cluster node " + nodeId + " listening for peers at " + bindAddress + ":" + port);
+        daemon(() -> acceptLoop(serverSocket), "cluster-accept").start();
+        for (PeerLink link : links) {
+            link.start();
+        }
+    }
+
+    // Asks every connected peer whether the login is free, holding it on their side while we wait. The future
+    // completes with true once all of them agreed, on the thread that read the last answer, so nobody blocks on it.
+    // A peer that says no or doesn't answer in time turns the login down, and the others let go.
+    public CompletableFuture<Boolean> claim(String login) {
+        List<PeerLink> connected = new ArrayList<>();
+        for (PeerLink link : links) {
+            if (link.getPeerId() != null) {
+                connected.add(link);
+            }
+        }
+        if (connected.isEmpty()) return CompletableFuture.completedFuture(true);
+
+        long id = nextClaimId.incrementAndGet();
+        Claim claim = new Claim(connected.size());
+        claims.put(id, claim);
+        claim.result.completeOnTimeout(false, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        CompletableFuture<Boolean> result = claim.result.whenComplete((granted, error) -> {
+            claims.remove(id);
+            if (!granted) {
+                release(login);
+            }
+        });
+        Frame request = Frame.of("claim " + id + " " + login + "\n");
+        for (PeerLink link : connected) {
+            link.send(request);
+        }
+        return result;
+    }
+
+    // Tells the peers a login this node claimed won't be used after all
+    public void release(String login) {
+        relay(Frame.of("release " + login + "\n"));
+    }
+
+    // Tells the peers a user of this node logged in
+    public void online(String login) {
+        relay(Frame.of("online " + login + "\n"));
+    }
+
+    // Tells the peers a user of this node is gone
+    public void offline(String login) {
+        relay(Frame.of("offline " + login + "\n"));
+    }
+
+    // Sends an already encoded event to every peer. Its body is escaped, so line breaks of a v2 body get across.
+    public void relay(Frame frame) {
+        Frame escaped = frame.escaped();
+        for (PeerLink link : links) {
+            link.send(escaped);
+        }
+    }
+
+    // Passes a direct message on to the node the recipient is logged in on. Returns false if no peer has them.
+    public boolean forwardDirect(String toLogin, String fromLogin, ProtocolLine line) {
+        String node = server.getSessions().findRemote(toLogin);
+        if (node == null) return false;
+        for (PeerLink link : links) {
+            if (node.equals(link.getPeerId())) {
+                link.send(Frame.of("dm " + toLogin + " " + fromLogin + " ", line, 1).escaped());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns an "online" line for every user logged in on this node, sent first whenever a link to a peer comes up
+    List<Frame> snapshot() {
+        List<Frame> frames = new ArrayList<>();
+        for (ClientController session : server.getSessions().sessions()) {
+            String login = session.getLogin();
+            if (login != null) {
+                frames.add(Frame.of("online " + login + "\n"));
+            }
+        }
+        return frames;
+    }
+
+    // Records a peer's answer to one of our claims
+    void claimAnswered(long id, boolean granted) {
+        Claim claim = claims.get(id);
+        if (claim == null) return;
+        if (!granted) {
+            // One refusal is enough, there is no need to wait for the others
+            claim.result.complete(false);
+        } else if (claim.answers.decrementAndGet() == 0) {
+            claim.result.complete(true);
+        }
+    }
+
+    // Returns a fresh random nonce for a handshake
+    static String nonce() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return hex(bytes);
+    }
+
+    // Returns the proof that this node knows the secret, a MAC over the role of the side giving it, the nonce the
+    // other side picked and the giver's node id. The role keeps a proof from being sent back as the other side's.
+    String proof(String role, String nonce, String id) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            return hex(mac.doFinal((role + " " + nonce + " " + id).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 isn't available", e);
+        }
+    }
+
+    // Returns true if the proof is the one expected, compared in constant time
+    boolean verify(String proof, String role, String nonce, String id) {
+        return proof != null && MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8),
+                proof(role, nonce, id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Returns the bytes as lower case hex
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // Return the id this node goes by in the cluster
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Accepts peers dialing in, each read on its own thread
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept(); // blocking!
+                socket.setTcpNoDelay(true);
+                daemon(() -> readPeer(socket), "cluster-peer-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                Log.warn("Couldn't accept a cluster peer.", e);
+            }
+        }
+    }
+
+    // Reads everything a peer sends until it goes away. The peer says which node it is along with a nonce, and we
+    // answer with ours, a nonce of our own and the proof over its nonce. It then has to send its proof over ours
+    // before anything it says is believed.
+    private void readPeer(Socket socket) {
+        String peer = null;
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            LineReader reader = new LineReader(socket.getInputStream());
+            OutputStream outputStream = socket.getOutputStream();
+            // Received: node id nonce
+            ProtocolLine line = reader.readLine();
+            if (line == null || line.command() != ProtocolCommand.NODE || line.argumentCount() < 2) return;
+            String id = line.argument(0);
+            String nonce = nonce();
+            Frame.of("node " + nodeId + " " + nonce + " " + proof("accept", line.argument(1), nodeId) + "\n")
+                    .writeTo(outputStream);
+            // Received: node id proof
+            line = reader.readLine();
+            if (line == null || line.command() != ProtocolCommand.NODE || line.argumentCount() < 2
+                    || !line.argument(0).equals(id) || !verify(line.argument(1), "dial", nonce, id)) {
+                Log.warn("Turned away " + socket.getRemoteSocketAddress() + ", it doesn't know the cluster secret.");
+                return;
+            }
+            socket.setSoTimeout(0);
+            peer = id;
+
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            // Whatever we knew about the peer is from before it reconnected, it sends a fresh snapshot next
+            nodeLost(peer);
+            Log.info("Cluster peer " + peer + " connected.");
+
+            while ((line = reader.readLine()) != null) { // Blocking!
+                handlePeerLine(peer, line, outputStream);
+            }
+        } catch (IOException e) {
+            // The peer went away, cleaned up below
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.warn("Couldn't close the connection of cluster peer " + peer, e);
+            }
+            if (peer != null && inbound.remove(peer, socket)) {
+                Log.info("Cluster peer " + peer + " disconnected.");
+                nodeLost(peer);
+            }
+        }
+    }
+
+    // Handles a single line from a peer, delivering it to this node's own clients. Message bodies arrive escaped.
+    private void handlePeerLine(String peer, ProtocolLine line, OutputStream outputStream) throws IOException {
+        SessionRegistry sessions = server.getSessions();
+        switch (line.command()) {
+            case CLAIM: {
+                // Received: claim id login
+                boolean granted = sessions.reserveRemote(line.argument(1), peer);
+                Frame answer = Frame.of("claimed " + line.argument(0) + (granted ? " ok\n" : " taken\n"));
+                synchronized (outputStream) {
+                    answer.writeTo(outputStream);
+                }
+                break;
+            }
+            case RELEASE:
+                // Received: release login, the peer's claim fell through
+                sessions.removeRemote(line.argument(0), peer);
+                break;
+            case ONLINE:
+                // Received: online login
+                if (sessions.addRemote(line.argument(0), peer)) {
+                    announce("online", line.argument(0));
+                }
+                break;
+            case OFFLINE:
+                // Received: offline login
+                if (sessions.removeRemote(line.argument(0), peer)) {
+                    announce("offline", line.argument(0));
+                }
+                break;
+            case MSG:
+                // Received: msg user msgBody, broadcast here like one of our own
+                server.broadcast(line.argument(0), Frame.unescape(line, 1));
+                break;
+            case RMSG:
+                // Received: rmsg room user msgBody
+                sendToRoom(line.argument(0), Frame.of("rmsg " + line.argument(0) + " " + line.argument(1) + " ",
+                        Frame.unescape(line, 2), 0));
+                break;
+            case JOIN:
+            case PART:
+                // Received: join room user or part room user
+                sendToRoom(line.argument(0),
+                        Frame.of(line.command().verb() + " " + line.argument(0) + " " + line.argument(1) + "\n"));
+                break;
+            case DM: {
+                // Received: dm toUser fromUser msgBody
+                ClientController recipient = sessions.find(line.argument(0));
+                if (recipient != null) {
+                    recipient.send(Frame.of("dm " + line.argument(1) + " ", Frame.unescape(line, 2), 0));
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    // Announces every user of a node that left the cluster as offline
+    private void nodeLost(String peer) {
+        for (String login : server.getSessions().removeNode(peer)) {
+            announce("offline", login);
+        }
+    }
+
+    // Tells this node's clients that a user on another node came or went. Roster clients get it in the next
+    // batched delta, the others get an online or offline line.
+    private void announce(String verb, String login) {
+        Frame frame = Frame.of(verb + " " + login + "\n");
+        for (ClientController clientController : server.getSessions().sessions()) {
+            if (!clientController.hasCapability(Capability.ROSTER)) {
+                clientController.send(frame);
+            }
+        }
+        if (verb.equals("online")) {
+            server.getPresence().online(login);
+        } else {
+            server.getPresence().offline(login);
+        }
+    }
+
+    // Sends a frame to the members of a room on this node
+    private void sendToRoom(String room, Frame frame) {
+        for (ClientController member : server.getRooms().members(room)) {
+            member.send(frame);
+        }
+    }
+
+    // Creates a background thread that doesn't keep the server running on its own
+    static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // A login waiting for every connected peer's answer
+    private static class Claim {
+        // Peers that haven't agreed yet
+        private final AtomicInteger answers;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Claim(int peers) {
+            this.answers = new AtomicInteger(peers);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Author: Adin Geist
+ * Description: A single selector thread that services the reads and writes of many non-blocking connections.
+ *              A handler or task that throws only costs the client it was working for its connection, the loop and
+ *              every other connection on it carry on.
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop extends Thread {
+    private final Selector selector;
+    // Work handed to this loop by other threads, run between selects so channels are only touched by this thread
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Delayed work ordered by deadline, only ever touched by this loop's thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(timer -> timer.deadline));
+
+    // Constructor that names the thread and opens the selector it will wait on
+    public EventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+    }
+
+    // Registers a new connection with this loop's selector
+    public void register(NioClientController clientController) {
+        execute(clientController, () -> clientController.register(selector));
+    }
+
+    // Runs the given task on this loop's thread and wakes the selector up so it happens promptly
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Runs the given task for a client on this loop's thread. The client is disconnected if the task throws.
+    public void execute(NioClientController clientController, Runnable task) {
+        execute(new ClientTask(clientController, task));
+    }
+
+    // Runs the given task on this loop's thread once the delay has passed
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    // Runs the given task for a client on this loop's thread once the delay has passed. The client is disconnected
+    // if the task throws.
+    public void schedule(NioClientController clientController, Runnable task, long delayNanos) {
+        schedule(new ClientTask(clientController, task), delayNanos);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Blocking until a channel is ready, another thread wakes us up or the next timer is due
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    // Rounded up, as a wait cut short of the deadline would spin on selectNow() until it passes
+                    long waitNanos = next.deadline - System.nanoTime();
+                    long waitMillis = waitNanos > 0 ? (waitNanos + 999_999) / 1_000_000 : 0;
+                    if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioClientController clientController = (NioClientController) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            clientController.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            clientController.handleWrite();
+                        }
+                    } catch (RuntimeException e) {
+                        failed(clientController, e);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Event loop " + getName() + " failed to select.", e);
+            }
+        }
+    }
+
+    // Run every timer whose deadline has passed
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            runTask(timers.poll().task);
+        }
+    }
+
+    // Run everything other threads queued up for this loop
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runTask(task);
+        }
+    }
+
+    // Runs one task, keeping whatever it throws from reaching the loop
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            failed(task instanceof ClientTask ? ((ClientTask) task).clientController : null, e);
+        }
+    }
+
+    // Logs a handler or task that threw and disconnects the client it was for, if it was for one
+    private void failed(NioClientController clientController, RuntimeException e) {
+        if (clientController == null) {
+            Log.error("A task on event loop " + getName() + " failed.", e);
+            return;
+        }
+        Log.error("Disconnecting " + clientController.getLogin() + " after an error on event loop " + getName() + ".", e);
+        try {
+            clientController.disconnect();
+        } catch (RuntimeException disconnectFailure) {
+            Log.error("Couldn't disconnect " + clientController.getLogin() + ".", disconnectFailure);
+        }
+    }
+
+    // A task done for one client, which is the one disconnected if it throws
+    private static class ClientTask implements Runnable {
+        private final NioClientController clientController;
+        private final Runnable task;
+
+        private ClientTask(NioClientController clientController, Runnable task) {
+            this.clientController = clientController;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    // A task waiting for its deadline
+    private static class Timer {
+        private final long deadline;
+        private final Runnable task;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
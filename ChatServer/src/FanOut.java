@@ -0,0 +1,164 @@
+/*
+ * Author: Adin Geist
+ * Description: Sends broadcasts to very large audiences on several threads at once. Every connected client belongs
+ *              to one shard of the session registry for as long as it is connected, and every shard has one thread
+ *              that sends it the broadcasts one after another in the order they were handed over. A sender's messages
+ *              therefore still reach each client in the order they were sent, while the shards work in parallel.
+ *              The sender only queues the broadcast on each shard and goes back to reading its client. Sending to
+ *              a client never waits for it, a client too slow to keep up overflows its own queue and is disconnected,
+ *              so a shard only falls behind when the fan-out threads are short of CPU. A shard that has fallen a
+ *              whole queue behind has the sender deliver its oldest broadcast itself to make room, the way
+ *              broadcasts go out without fan-out threads, so every client still gets every broadcast in order.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public class FanOut {
+    // Threads and shards used for broadcasts, 0 or 1 sends them on the sender's thread
+    private static final int THREADS = ServerConfig.getInt("fanout.threads", 0);
+    // Broadcasts a shard may fall behind by before senders deliver for it
+    private static final int QUEUE = Math.max(1, ServerConfig.getInt("fanout.queue", 65536));
+    // Set on threads while they deliver broadcasts for a shard, which must never wait for one of its clients
+    private static final ThreadLocal<Boolean> DELIVERING = ThreadLocal.withInitial(() -> false);
+
+    private final Shard[] shards;
+    private final ServerMetrics metrics;
+
+    // Constructor that starts a thread for every shard of the registry
+    private FanOut(SessionRegistry sessions, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.shards = new Shard[sessions.shardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(sessions, i, metrics);
+            shards[i].thread.start();
+        }
+    }
+
+    // Returns true while the current thread delivers broadcasts for a shard, so a full client queue disconnects
+    // the client instead of making the whole shard wait under the block policy
+    public static boolean isDelivering() {
+        return DELIVERING.get();
+    }
+
+    // Returns the number of shards the session registry should be split into, 0 when broadcasts aren't sharded
+    public static int configuredShards() {
+        return THREADS > 1 ? THREADS : 0;
+    }
+
+    // Starts the fan-out threads if -Dchat.fanout.threads asks for more than one. Returns null otherwise.
+    public static FanOut startConfigured(SessionRegistry sessions, ServerMetrics metrics) {
+        if (sessions.shardCount() < 2) return null;
+        Log.info("Broadcasts fan out on " + sessions.shardCount() + " threads.");
+        return new FanOut(sessions, metrics);
+    }
+
+    // Queues a broadcast on every shard. The fan-out latency is recorded from the given start once the last shard has
+    // sent it. Never waits for a client, since the sender may be an event loop serving many other clients. While a
+    // shard's queue is full the sender delivers its oldest broadcast to make room, which is counted, and it is logged
+    // once each time a shard falls behind until it catches up again.
+    public void send(Frame msgWithId, Frame msg, long startNanos) {
+        Broadcast broadcast = new Broadcast(msgWithId, msg, startNanos, shards.length);
+        for (Shard shard : shards) {
+            if (!shard.queue.offer(broadcast)) {
+                if (!shard.overflowing) {
+                    shard.overflowing = true;
+                    Log.warn("Fan-out shard " + shard.index + " is " + QUEUE
+                            + " broadcasts behind, its senders deliver for it.");
+                }
+                do {
+                    metrics.fanOutOverflowed();
+                    shard.deliverForSender();
+                } while (!shard.queue.offer(broadcast));
+            }
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    // One broadcast on its way through the shards
+    private static class Broadcast {
+        private final Frame msgWithId;
+        private final Frame msg;
+        private final long startNanos;
+        // Shards that haven't sent it yet
+        private final AtomicInteger remaining;
+
+        // Constructor that takes both variants of the message, when it was started and how many shards will send it
+        private Broadcast(Frame msgWithId, Frame msg, long startNanos, int shards) {
+            this.msgWithId = msgWithId;
+            this.msg = msg;
+            this.startNanos = startNanos;
+            this.remaining = new AtomicInteger(shards);
+        }
+
+        // Counts a shard as done with it, and records the fan-out latency once it was the last
+        private void shardDone(ServerMetrics metrics) {
+            if (remaining.decrementAndGet() == 0) {
+                metrics.messageBroadcast(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    // The queue and thread of one shard
+    private static class Shard implements Runnable {
+        private final BlockingQueue<Broadcast> queue = new ArrayBlockingQueue<>(QUEUE);
+        private final Thread thread;
+        private final SessionRegistry sessions;
+        private final int index;
+        private final ServerMetrics metrics;
+        // Set from when senders find the queue full until the shard catches up, so falling behind is logged once
+        private volatile boolean overflowing = false;
+
+        // Constructor that takes the registry, which of its shards this is and where to record the fan-out latency
+        private Shard(SessionRegistry sessions, int index, ServerMetrics metrics) {
+            this.sessions = sessions;
+            this.index = index;
+            this.metrics = metrics;
+            this.thread = new Thread(this, "fan-out-" + index);
+            thread.setDaemon(true);
+        }
+
+        // Sends each queued broadcast to the clients of the shard, oldest first, and sleeps while there is none.
+        // Senders wake it up after every broadcast they queue.
+        @Override
+        public void run() {
+            DELIVERING.set(true);
+            while (!Thread.interrupted()) {
+                if (!deliverOldest()) {
+                    overflowing = false; // Caught up
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        // Delivers the oldest broadcast on the sender's thread, which for that long counts as delivering for the
+        // shard. At most waits for the shard's own thread to finish the broadcast it is on.
+        private void deliverForSender() {
+            boolean delivering = DELIVERING.get();
+            DELIVERING.set(true);
+            try {
+                deliverOldest();
+            } finally {
+                DELIVERING.set(delivering);
+            }
+        }
+
+        // Sends the oldest queued broadcast to the clients of the shard. Returns false if there was none. Taking it
+        // and sending it happen under the shard's lock, so a sender delivering for the shard can't overtake it.
+        private synchronized boolean deliverOldest() {
+            Broadcast broadcast = queue.poll();
+            if (broadcast == null) return false;
+            try {
+                for (ClientController controller : sessions.shard(index)) {
+                    controller.send(controller.hasCapability(Capability.IDS) ? broadcast.msgWithId : broadcast.msg);
+                }
+            } catch (RuntimeException e) {
+                Log.error("Fan-out failed on shard " + index + ".", e);
+            }
+            broadcast.shardDone(metrics);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Author: Adin Geist
+ * Description: Moves files between users on a port of its own, so a big upload never shares a socket, a reader or
+ *              an event loop with chat lines. A user asks for an upload over chat and gets a file id and a one time
+ *              token back. They then connect to the transfer port, send "put <id> <token>" and the file's bytes,
+ *              which go straight from the socket into a spool file, and everyone who asked for files hears about it
+ *              in chat. Anyone with the id can connect and send "get <id>" to have the spool file sent to them from
+ *              the page cache with transferTo, without the bytes passing through the heap. Every transfer runs on
+ *              its own thread and moves a chunk at a time, optionally paced, so TCP flow control holds back a fast
+ *              sender instead of the server buffering for it. A transfer that stops moving, or a connection that
+ *              never says what it wants, is closed after the idle timeout so it can't hold a slot forever.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FileTransfers {
+    // Biggest file that may be uploaded
+    private static final long MAX_FILE_BYTES = ServerConfig.getLong("files.maxBytes", 1L << 30);
+    // Bytes moved per transfer call, and so how often a transfer checks its pace
+    private static final int CHUNK_BYTES = Math.max(4096, ServerConfig.getInt("files.chunkBytes", 1 << 20));
+    // Bandwidth of a single transfer, 0 leaves it to TCP
+    private static final long BYTES_PER_SECOND = ServerConfig.getLong("files.bytesPerSecond", 0);
+    // Transfers running at once, connections past that are turned away
+    private static final int MAX_TRANSFERS = Math.max(1, ServerConfig.getInt("files.maxTransfers", 16));
+    // How long a file is kept after its upload was granted, unfinished uploads included
+    private static final long RETAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            ServerConfig.getLong("files.retainMillis", 3600000));
+    // Total size of the files granted and not yet swept, so uploads can't fill the disk
+    private static final long MAX_SPOOL_BYTES = ServerConfig.getLong("files.maxSpoolBytes", 8L << 30);
+    // How long a transfer may go without finishing a chunk, and how long a new connection has to send its request
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            ServerConfig.getLong("files.idleTimeoutMillis", 30000));
+    private static final long WATCHDOG_INTERVAL_MILLIS = 1000;
+    // Longest "put <id> <token>" or "get <id>" line a transfer may start with
+    private static final int MAX_REQUEST_BYTES = 256;
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private final Server server;
+    private final Path directory;
+    private final int port;
+    private final ServerSocketChannel listener;
+    private final ConcurrentHashMap<String, SpoolFile> files = new ConcurrentHashMap<>();
+    // Sizes of the files in the map added up, whether they were uploaded yet or not
+    private final AtomicLong spooled = new AtomicLong();
+    private final Semaphore slots = new Semaphore(MAX_TRANSFERS);
+    // Transfers holding a slot, checked by the watchdog for ones that stalled
+    private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    // Starts the transfer port configured with -Dchat.files.port, or returns null when file transfers are turned off
+    public static FileTransfers startConfigured(Server server, ScheduledExecutorService scheduler) {
+        int port = ServerConfig.getInt("files.port", 0);
+        if (port <= 0) return null;
+        Path directory = Paths.get(ServerConfig.getString("files.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "chat-files").toString()));
+        try {
+            FileTransfers transfers = new FileTransfers(server, directory, port);
+            scheduler.scheduleWithFixedDelay(transfers::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+            scheduler.scheduleWithFixedDelay(transfers::closeStalled, WATCHDOG_INTERVAL_MILLIS,
+                    WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            Thread acceptor = new Thread(transfers::acceptLoop, "file-transfers");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            Log.info("File transfers on port " + port + ", spooled in " + directory);
+            return transfers;
+        } catch (IOException e) {
+            Log.warn("Couldn't start file transfers on port " + port + ". Running without them.", e);
+            return null;
+        }
+    }
+
+    // Constructor that accepts the server to announce files on, the spool directory and the port to listen on
+    public FileTransfers(Server server, Path directory, int port) throws IOException {
+        this.server = server;
+        this.directory = directory;
+        this.port = port;
+        Files.createDirectories(directory);
+        // Whatever was spooled before a restart can't be announced or fetched any more
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(directory, "*.spool")) {
+            for (Path path : old) {
+                Files.deleteIfExists(path);
+            }
+        }
+        this.listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    // Grants an upload of the given size to a user and returns it, or returns null if the file is too big or
+    // doesn't fit in what is left of the spool
+    public SpoolFile grant(String login, long size, String name) {
+        if (size < 0 || size > MAX_FILE_BYTES) return null;
+        long total;
+        do {
+            total = spooled.get();
+            if (total + size > MAX_SPOOL_BYTES) return null;
+        } while (!spooled.compareAndSet(total, total + size));
+        String id = randomHex(16);
+        SpoolFile file = new SpoolFile(id, randomHex(16), login, size, name, directory.resolve(id + ".spool"));
+        files.put(id, file);
+        return file;
+    }
+
+    // Return the port clients connect to for transfers
+    public int getPort() {
+        return port;
+    }
+
+    // Accepts transfer connections and hands each to its own thread while there is a free slot
+    private void acceptLoop() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept(); // Blocking!
+            } catch (IOException e) {
+                Log.warn("File transfer port closed.", e);
+                return;
+            }
+            if (!slots.tryAcquire()) {
+                reply(channel, "busy");
+                close(channel);
+                continue;
+            }
+            Transfer transfer = new Transfer(channel);
+            active.add(transfer);
+            Thread thread = new Thread(() -> {
+                try {
+                    serve(transfer);
+                } finally {
+                    active.remove(transfer);
+                    slots.release();
+                    close(channel);
+                }
+            }, "file-transfer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Reads the request a transfer starts with and runs it. The request has to arrive within the idle timeout of
+    // connecting, reading it doesn't count as progress.
+    private void serve(Transfer transfer) {
+        SocketChannel channel = transfer.channel;
+        try {
+            String request = readRequest(channel);
+            String[] words = request == null ? new String[0] : request.split(" ");
+            if (words.length == 3 && words[0].equalsIgnoreCase("put")) {
+                receive(transfer, words[1], words[2]);
+            } else if (words.length == 2 && words[0].equalsIgnoreCase("get")) {
+                send(transfer, words[1]);
+            } else {
+                reply(channel, "error Expected put <id> <token> or get <id>");
+            }
+        } catch (IOException e) {
+            Log.info("File transfer broke off: " + e.getMessage());
+        }
+    }
+
+    // Command format:  put id token, followed by exactly the granted number of bytes
+    // Spools the upload straight from the socket into the file, then answers ok and announces it in chat
+    private void receive(Transfer transfer, String id, String token) throws IOException {
+        SocketChannel channel = transfer.channel;
+        SpoolFile file = files.get(id);
+        if (file == null || !file.token.equals(token) || !file.claimUpload()) {
+            reply(channel, "error Unknown upload");
+            return;
+        }
+        boolean complete = false;
+        try (FileChannel spool = FileChannel.open(file.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Pacer pacer = new Pacer();
+            long position = 0;
+            while (position < file.size) {
+                long chunk = Math.min(CHUNK_BYTES, file.size - position);
+                pacer.await(chunk);
+                transfer.progress();
+                long moved = spool.transferFrom(channel, position, chunk); // Blocking!
+                if (moved <= 0) {
+                    // transferFrom can't tell a closed connection from a pause, a blocking read can
+                    ByteBuffer probe = ByteBuffer.allocate(1);
+                    if (channel.read(probe) < 0) break;
+                    probe.flip();
+                    spool.write(probe, position);
+                    moved = 1;
+                }
+                position += moved;
+                transfer.progress();
+            }
+            complete = position == file.size;
+        } finally {
+            if (!complete) {
+                remove(file);
+            }
+        }
+        if (!complete) return;
+        file.complete = true;
+        reply(channel, "ok");
+        Log.info(file.owner + " uploaded " + file.name + " (" + file.size + " bytes) as " + id);
+        announce(file);
+    }
+
+    // Command format:  get id
+    // Answers "ok <size>" and sends the spooled file with transferTo, a chunk at a time
+    private void send(Transfer transfer, String id) throws IOException {
+        SocketChannel channel = transfer.channel;
+        SpoolFile file = files.get(id);
+        if (file == null || !file.complete) {
+            reply(channel, "error Unknown file");
+            return;
+        }
+        try (FileChannel spool = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            reply(channel, "ok " + file.size);
+            Pacer pacer = new Pacer();
+            long position = 0;
+            while (position < file.size) {
+                long chunk = Math.min(CHUNK_BYTES, file.size - position);
+                pacer.await(chunk);
+                transfer.progress();
+                position += spool.transferTo(position, chunk, channel); // Blocking!
+                transfer.progress();
+            }
+        }
+    }
+
+    // Tells everyone who asked for files that one is ready, with its name as the body so it may hold spaces
+    private void announce(SpoolFile file) {
+        Frame frame = Frame.of("file " + file.id + " " + file.owner + " " + file.size + " " + port + " ",
+                file.name.getBytes(StandardCharsets.UTF_8), 0);
+        for (ClientController client : server.getSessions().sessions()) {
+            if (client.hasCapability(Capability.FILES)) {
+                client.send(frame);
+            }
+        }
+    }
+
+    // Reads the request line a byte at a time, so none of the upload behind it is read into a buffer
+    private static String readRequest(SocketChannel channel) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        byte[] line = new byte[MAX_REQUEST_BYTES];
+        int length = 0;
+        while (length < line.length) {
+            b.clear();
+            if (channel.read(b) < 0) return null;
+            byte c = b.get(0);
+            if (c == '\n') return new String(line, 0, length, StandardCharsets.UTF_8).trim();
+            line[length++] = c;
+        }
+        return null;
+    }
+
+    // Writes an answer line, a transfer that went away in the meantime doesn't need one
+    private static void reply(SocketChannel channel, String line) {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            // The other side is gone
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Closes every transfer that went the idle timeout without progress. Closing the channel wakes its thread up
+    // from the blocked read or write with an exception, which ends the transfer and frees its slot.
+    private void closeStalled() {
+        long now = System.nanoTime();
+        for (Transfer transfer : active) {
+            if (now - transfer.lastProgressNanos > IDLE_TIMEOUT_NANOS && active.remove(transfer)) {
+                Log.info("Closing a stalled file transfer from " + transfer.address());
+                close(transfer.channel);
+            }
+        }
+    }
+
+    // Deletes files past the retention, along with uploads that never finished
+    private void sweep() {
+        long now = System.nanoTime();
+        for (SpoolFile file : files.values()) {
+            if (now - file.grantedNanos > RETAIN_NANOS) {
+                remove(file);
+            }
+        }
+    }
+
+    // Forgets the file, deletes it and gives its size back to the spool, once even if the upload and the sweep
+    // both get to it
+    private void remove(SpoolFile file) {
+        if (!files.remove(file.id, file)) return;
+        spooled.addAndGet(-file.size);
+        try {
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            Log.warn("Couldn't delete the spooled file " + file.path, e);
+        }
+    }
+
+    // Returns the given number of random bytes as hex, hard enough to guess to serve as a capability
+    private String randomHex(int bytes) {
+        byte[] raw = new byte[bytes];
+        random.nextBytes(raw);
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        for (byte b : raw) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // A connection to the transfer port and when it last moved a chunk
+    private static class Transfer {
+        private final SocketChannel channel;
+        private volatile long lastProgressNanos = System.nanoTime();
+
+        private Transfer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Records that the transfer is still moving
+        private void progress() {
+            lastProgressNanos = System.nanoTime();
+        }
+
+        // Returns who the transfer is with, for logging
+        private String address() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "a closed connection";
+            }
+        }
+    }
+
+    // Keeps one transfer to the configured bandwidth, does nothing when there is none
+    private static class Pacer {
+        private final TokenBucket bucket = BYTES_PER_SECOND > 0
+                ? new TokenBucket(BYTES_PER_SECOND, Math.max(BYTES_PER_SECOND, CHUNK_BYTES)) : null;
+
+        // Waits until the transfer may move the given number of bytes
+        private void await(long bytes) throws IOException {
+            if (bucket == null) return;
+            try {
+                while (!bucket.tryAcquire(bytes)) {
+                    Thread.sleep(5);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while pacing a transfer");
+            }
+        }
+    }
+
+    // A granted upload and, once it is complete, the file everyone can fetch
+    public static class SpoolFile {
+        private final String id;
+        private final String token;
+        private final String owner;
+        private final long size;
+        private final String name;
+        private final Path path;
+        private final long grantedNanos = System.nanoTime();
+        private boolean uploading = false;
+        private volatile boolean complete = false;
+
+        private SpoolFile(String id, String token, String owner, long size, String name, Path path) {
+            this.id = id;
+            this.token = token;
+            this.owner = owner;
+            this.size = size;
+            this.name = name;
+            this.path = path;
+        }
+
+        // Returns true for the one connection that gets to upload the file
+        private synchronized boolean claimUpload() {
+            if (uploading) return false;
+            uploading = true;
+            return true;
+        }
+
+        // Return the id the file is fetched by
+        public String getId() {
+            return id;
+        }
+
+        // Return the token that lets its owner upload it
+        public String getToken() {
+            return token;
+        }
+    }
+}
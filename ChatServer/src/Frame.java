@@ -0,0 +1,211 @@
+/*
+ * Author: Adin Geist
+ * Description: A protocol line that has already been encoded to bytes. A broadcast encodes its line once and every
+ *              recipient writes from the same shared, read-only bytes. Clients speaking the binary v2 protocol share
+ *              a second encoding, made the first time one of them needs it, and large ones a compressed copy of it.
+ *              Line breaks in a body only survive in the binary encoding, so the journal is given the body as it was
+ *              received and cluster links get it escaped.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+public final class Frame {
+    // Binary frames smaller than this aren't worth compressing
+    private static final int COMPRESS_MIN_BYTES = ServerConfig.getInt("compress.minBytes", 512);
+    private static final int COMPRESS_LEVEL = ServerConfig.getInt("compress.level", Deflater.BEST_SPEED);
+    // Deflaters hold native memory, so a few are kept for reuse instead of one per sending thread, which could be
+    // one per client with virtual threads
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(
+            ServerConfig.getInt("compress.deflaters", Runtime.getRuntime().availableProcessors()));
+
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    // Where the message body starts in the text line, -1 if the line has none
+    private final int bodyStart;
+    // The body as it was received, kept only when it held line breaks the text line had to replace
+    private final byte[] rawBody;
+    // The same message as a binary v2 frame, encoded the first time a v2 client needs it and shared after that
+    private volatile Frame binary;
+    // The binary frame compressed, or the binary frame itself when compressing isn't worth it
+    private volatile Frame compressed;
+
+    // Constructor that wraps already encoded bytes, which must never be modified afterwards
+    private Frame(byte[] bytes, int bodyStart, byte[] rawBody) {
+        this.bytes = bytes;
+        this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        this.bodyStart = bodyStart;
+        this.rawBody = rawBody;
+    }
+
+    // Encodes the given line once as UTF-8
+    public static Frame of(String line) {
+        return new Frame(line.getBytes(StandardCharsets.UTF_8), -1, null);
+    }
+
+    // Encodes the prefix and appends the body of a received line straight from its bytes, ending it with a newline
+    public static Frame of(String prefix, ProtocolLine line, int skipArguments) {
+        int bodyOffset = line.bodyOffset(skipArguments);
+        return withBody(prefix, line.buffer(), bodyOffset, line.end() - bodyOffset);
+    }
+
+    // Encodes the prefix and appends already encoded body bytes from the offset on, ending it with a newline
+    public static Frame of(String prefix, byte[] body, int offset) {
+        return withBody(prefix, body, offset, body.length - offset);
+    }
+
+    // Builds a text line from the prefix and body. A body from a v2 client may hold line breaks, which would end the
+    // line early for text clients, so they become spaces there and the original is kept for v2 clients.
+    private static Frame withBody(String prefix, byte[] body, int offset, int length) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[prefixBytes.length + length + 1];
+        System.arraycopy(prefixBytes, 0, bytes, 0, prefixBytes.length);
+        System.arraycopy(body, offset, bytes, prefixBytes.length, length);
+        bytes[bytes.length - 1] = '\n';
+        byte[] rawBody = null;
+        for (int i = prefixBytes.length; i < bytes.length - 1; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                if (rawBody == null) {
+                    rawBody = Arrays.copyOfRange(body, offset, offset + length);
+                }
+                bytes[i] = ' ';
+            }
+        }
+        return new Frame(bytes, prefixBytes.length, rawBody);
+    }
+
+    // Returns a read-only view of the line from the offset up to its trailing newline, with the body as it was
+    // received, line breaks and all
+    public ByteBuffer payload(int offset) {
+        if (rawBody == null) {
+            ByteBuffer payload = buffer();
+            payload.position(offset);
+            payload.limit(bytes.length - 1);
+            return payload;
+        }
+        byte[] payload = new byte[bodyStart - offset + rawBody.length];
+        System.arraycopy(bytes, offset, payload, 0, bodyStart - offset);
+        System.arraycopy(rawBody, 0, payload, bodyStart - offset, rawBody.length);
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    // Returns this message as a text line for a cluster link, where every backslash, line feed and carriage return
+    // of the body as it was received is escaped with a backslash. The frame itself is returned when there is
+    // nothing to escape. unescape() turns the body back.
+    public Frame escaped() {
+        if (bodyStart < 0) return this;
+        byte[] body = rawBody != null ? rawBody : Arrays.copyOfRange(bytes, bodyStart, bytes.length - 1);
+        int extra = 0;
+        for (byte b : body) {
+            if (b == '\\' || b == '\n' || b == '\r') extra++;
+        }
+        if (extra == 0) return this;
+        byte[] line = new byte[bodyStart + body.length + extra + 1];
+        System.arraycopy(bytes, 0, line, 0, bodyStart);
+        int length = bodyStart;
+        for (byte b : body) {
+            if (b == '\\' || b == '\n' || b == '\r') {
+                line[length++] = '\\';
+                b = b == '\n' ? (byte) 'n' : b == '\r' ? (byte) 'r' : b;
+            }
+            line[length++] = b;
+        }
+        line[length] = '\n';
+        return new Frame(line, bodyStart, null);
+    }
+
+    // Returns the body of a line from a cluster link after skipping the given number of arguments, with the escapes
+    // escaped() added turned back into what they stand for
+    public static byte[] unescape(ProtocolLine line, int skipArguments) {
+        byte[] buffer = line.buffer();
+        int end = line.end();
+        byte[] body = new byte[end - line.bodyOffset(skipArguments)];
+        int length = 0;
+        for (int i = line.bodyOffset(skipArguments); i < end; i++) {
+            byte b = buffer[i];
+            if (b == '\\' && i + 1 < end) {
+                byte escaped = buffer[++i];
+                b = escaped == 'n' ? (byte) '\n' : escaped == 'r' ? (byte) '\r' : escaped;
+            }
+            body[length++] = b;
+        }
+        return length == body.length ? body : Arrays.copyOf(body, length);
+    }
+
+    // Returns this message as a binary v2 frame. It is converted once, however many v2 clients it goes to.
+    public Frame binary() {
+        Frame converted = binary;
+        if (converted == null) {
+            int lineLength = bytes.length - 1; // Without the newline
+            byte[] frame = rawBody == null
+                    ? BinaryCodec.fromText(bytes, lineLength, bodyStart)
+                    : BinaryCodec.fromText(bytes, lineLength, bodyStart, rawBody, 0, rawBody.length);
+            converted = new Frame(frame, -1, null);
+            converted.binary = converted;
+            binary = converted; // Racing converters build equal frames, so whichever wins is fine
+        }
+        return converted;
+    }
+
+    // Returns this message as a binary v2 frame for clients that negotiated deflate. A large message is compressed
+    // once on whichever thread sends it first, and every other recipient shares those bytes.
+    public Frame compressed() {
+        Frame result = compressed;
+        if (result != null) return result;
+        Frame uncompressed = binary();
+        if (uncompressed.length() < COMPRESS_MIN_BYTES) {
+            compressed = uncompressed;
+            return uncompressed;
+        }
+        synchronized (this) {
+            if (compressed == null) {
+                byte[] frame = compress(uncompressed.bytes);
+                compressed = frame == uncompressed.bytes ? uncompressed : new Frame(frame, -1, null);
+            }
+            return compressed;
+        }
+    }
+
+    // Compresses a binary frame with a pooled Deflater. When every pooled one is in use the frame gets a new one
+    // rather than waiting, and it's kept if the pool has room again or freed right away if not.
+    private static byte[] compress(byte[] frame) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(COMPRESS_LEVEL);
+        }
+        try {
+            return BinaryCodec.compress(frame, deflater);
+        } finally {
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    // Returns a read-only view of the bytes with its own position, so many writers can share them
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    // Writes the bytes to a blocking stream without copying them
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+
+    // Copies the bytes into a batch buffer at the given offset and returns the offset just past them
+    public int copyTo(byte[] batch, int offset) {
+        System.arraycopy(bytes, 0, batch, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    // Return the number of encoded bytes
+    public int length() {
+        return bytes.length;
+    }
+}
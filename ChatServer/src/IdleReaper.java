@@ -0,0 +1,47 @@
+/*
+ * Author: Adin Geist
+ * Description: Periodically checks every client that negotiated heartbeats. One that has been quiet for a whole
+ *              interval gets a ping, and one that stays quiet past the timeout is a dead or half-open connection
+ *              and is disconnected. A single task on the shared server scheduler covers every client, instead of a
+ *              timer per connection.
+ */
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class IdleReaper implements Runnable {
+    private static final long INTERVAL_MILLIS = ServerConfig.getLong("heartbeat.intervalMillis", 15000);
+    private static final long TIMEOUT_MILLIS = ServerConfig.getLong("heartbeat.timeoutMillis", 45000);
+    // Shared by every ping, encoded once
+    private static final Frame PING = Frame.of("ping\n");
+
+    private final SessionRegistry sessions;
+    private final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS);
+    private final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+
+    // Constructor that accepts the registry of clients to check
+    public IdleReaper(SessionRegistry sessions) {
+        this.sessions = sessions;
+    }
+
+    // Schedules the check on the scheduler every interval, unless heartbeats were turned off with an interval of 0
+    public void start(ScheduledExecutorService scheduler) {
+        if (INTERVAL_MILLIS <= 0) return;
+        scheduler.scheduleWithFixedDelay(this, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Pings the quiet clients and disconnects the ones that have been quiet for too long
+    @Override
+    public void run() {
+        for (ClientController session : sessions.sessions()) {
+            if (!session.hasCapability(Capability.HEARTBEAT)) continue;
+            long idle = session.idleNanos();
+            if (idle >= timeoutNanos) {
+                Log.info(session.getLogin() + " timed out.");
+                session.disconnect();
+            } else if (idle >= intervalNanos) {
+                session.send(PING);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+/*
+ * Author: Adin Geist
+ * Description: How often the message journal forces what it wrote to disk.
+ */
+
+public enum JournalDurability {
+    // Never fsync, the operating system writes the pages out when it wants to
+    NONE,
+    // fsync at most once per configured interval while there are unsynced writes
+    INTERVAL,
+    // fsync after every batch of records, before the next batch is written
+    BATCH
+}
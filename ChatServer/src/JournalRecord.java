@@ -0,0 +1,40 @@
+/*
+ * Author: Adin Geist
+ * Description: One message read back from the journal.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public class JournalRecord {
+    private final long id;
+    private final long timestamp;
+    private final byte[] payload;
+
+    // Constructor that accepts the message id, the time it was sent and its "sender body" payload
+    public JournalRecord(long id, long timestamp, byte[] payload) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.payload = payload;
+    }
+
+    // Return the id of the message
+    public long getId() {
+        return id;
+    }
+
+    // Return the time the message was sent, in milliseconds since the epoch
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // Return the "sender body" bytes of the message
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    // Return the payload as text
+    @Override
+    public String toString() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
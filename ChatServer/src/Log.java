@@ -0,0 +1,109 @@
+/*
+ * Author: Adin Geist
+ * Description: The server's console log. Lines below the level set with -Dchat.log.level are thrown away before
+ *              anything is formatted, and the rest are queued and printed by a background thread, so a client thread
+ *              never waits on the console. If the console falls a whole queue behind, lines are dropped and counted
+ *              instead of slowing the server down.
+ */
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class Log {
+    private static final LogLevel LEVEL = ServerConfig.getEnum("log.level", LogLevel.INFO);
+    private static final BlockingQueue<String> LINES =
+            new ArrayBlockingQueue<>(Math.max(1, ServerConfig.getInt("log.queueCapacity", 8192)));
+    // Lines thrown away because the queue was full, reported once the console catches up
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Print whatever is still queued when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    // Returns true if lines of the given level are logged. Callers check this before building an expensive line.
+    public static boolean isEnabled(LogLevel level) {
+        return LEVEL != LogLevel.OFF && level.compareTo(LEVEL) >= 0;
+    }
+
+    // Logs a line that is only interesting while debugging
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message, null);
+    }
+
+    // Logs a normal event
+    public static void info(String message) {
+        log(LogLevel.INFO, message, null);
+    }
+
+    // Logs something that went wrong but the server carried on from
+    public static void warn(String message) {
+        log(LogLevel.WARN, message, null);
+    }
+
+    // Logs something that went wrong along with the exception that caused it
+    public static void warn(String message, Throwable cause) {
+        log(LogLevel.WARN, message, cause);
+    }
+
+    // Logs a failure that stopped part of the server along with the exception that caused it
+    public static void error(String message, Throwable cause) {
+        log(LogLevel.ERROR, message, cause);
+    }
+
+    // Queues the line, and the stack trace if there is one, for the writer thread
+    private static void log(LogLevel level, String message, Throwable cause) {
+        if (!isEnabled(level)) return;
+        String line = message;
+        if (cause != null) {
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            line = message + System.lineSeparator() + trace.toString().trim();
+        }
+        if (!LINES.offer(line)) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    // Prints queued lines as they arrive, everything that piled up in between in a single flush
+    private static void writeLoop() {
+        try {
+            while (true) {
+                String line = LINES.take(); // Blocking!
+                System.out.println(line);
+                drain();
+            }
+        } catch (InterruptedException e) {
+            // The server is going away
+        }
+    }
+
+    // Prints every queued line and how many were dropped since the last time
+    private static void drain() {
+        List<String> lines = new ArrayList<>();
+        LINES.drainTo(lines);
+        StringBuilder out = new StringBuilder();
+        for (String line : lines) {
+            out.append(line).append(System.lineSeparator());
+        }
+        long dropped = DROPPED.getAndSet(0);
+        if (dropped > 0) {
+            out.append("(").append(dropped).append(" log lines dropped)").append(System.lineSeparator());
+        }
+        if (out.length() > 0) {
+            System.out.print(out);
+        }
+        System.out.flush();
+    }
+}
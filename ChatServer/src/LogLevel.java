@@ -0,0 +1,17 @@
+/*
+ * Author: Adin Geist
+ * Description: How much the server logs. Every level includes the ones below it in this list.
+ */
+
+public enum LogLevel {
+    // Everything, including a line per message sent
+    DEBUG,
+    // Logins, logoffs and other events worth seeing while the server runs
+    INFO,
+    // Things that went wrong but the server carried on from
+    WARN,
+    // Failures that stopped part of the server
+    ERROR,
+    // Nothing at all
+    OFF
+}
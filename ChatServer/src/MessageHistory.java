@@ -0,0 +1,133 @@
+/*
+ * Author: Adin Geist
+ * Description: Hands out the ids of broadcast messages and keeps them around for clients that reconnect. The most
+ *              recent messages stay in a fixed-size ring buffer in memory, and anything older is read back from the
+ *              journal through its sparse index.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MessageHistory {
+    // Rounded up to a power of two so a slot is just the id masked
+    private static final int RING_SIZE =
+            Integer.highestOneBit(Math.max(2, ServerConfig.getInt("history.ringSize", 4096)) * 2 - 1);
+
+    // Null when the server runs without a journal, then only the ring buffer can be replayed
+    private final MessageJournal journal;
+    private final AtomicLong lastId;
+    // Every id up to this one has been recorded. Broadcasts record in whatever order their senders get there, so ids
+    // after it may be handed out but still on their way into the ring.
+    private final AtomicLong recordedThrough;
+    // Messages from before a restart are only in the journal
+    private final long firstIdInRing;
+    // Slot id & mask holds message id, once the ring wraps the slot is taken over by id + RING_SIZE
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private final int mask = RING_SIZE - 1;
+
+    // Constructor that accepts the journal to read older messages from, and carries on from its newest id
+    public MessageHistory(MessageJournal journal) {
+        this.journal = journal;
+        this.lastId = new AtomicLong(journal != null ? journal.lastId() : 0);
+        this.firstIdInRing = lastId.get() + 1;
+        this.recordedThrough = new AtomicLong(lastId.get());
+    }
+
+    // Returns the id for a new broadcast, one more than the last one handed out
+    public long nextId() {
+        return lastId.incrementAndGet();
+    }
+
+    // Return the newest id handed out so far
+    public long lastId() {
+        return lastId.get();
+    }
+
+    // Return the newest id that every older message has been recorded up to. Readers stop here, as read() skips an
+    // id it can't find, and one that is only taken so far would be skipped for good.
+    public long recordedThrough() {
+        return recordedThrough.get();
+    }
+
+    // Keeps the encoded "msgid <id> <from> <body>" frame of a broadcast and queues it for the journal. The payload
+    // offset is where "<from> <body>" starts in the frame.
+    public void record(long id, Frame frame, int payloadOffset) {
+        ring.set((int) id & mask, new Entry(id, frame));
+        if (journal != null) {
+            journal.append(id, frame, payloadOffset);
+        }
+        advanceRecorded();
+    }
+
+    // Moves the watermark past every id recorded right after it. Each recorder fills its slot before looking at the
+    // watermark, so whichever of two neighbours gets here last moves it past both.
+    private void advanceRecorded() {
+        long through = recordedThrough.get();
+        while (true) {
+            long next = through + 1;
+            Entry entry = ring.get((int) next & mask);
+            // A slot already taken over by a newer id means the ring has long moved past this one
+            if (entry == null || entry.id < next) return;
+            if (recordedThrough.compareAndSet(through, next)) {
+                through = next;
+            } else {
+                through = recordedThrough.get();
+            }
+        }
+    }
+
+    // Adds the frames of up to max messages with ids after afterId, up to and including upToId, to the list, oldest
+    // first. Returns the id it got through, which is where the next read should carry on from. Messages that
+    // are neither in the ring nor in the journal any more are skipped.
+    public long read(long afterId, long upToId, int max, List<Frame> frames) throws IOException {
+        long oldestInRing = Math.max(firstIdInRing, lastId.get() - RING_SIZE + 1);
+        long next = afterId + 1;
+        if (next < oldestInRing) {
+            long journalUpTo = Math.min(upToId, oldestInRing - 1);
+            if (journal != null) {
+                long[] readThrough = {afterId};
+                journal.read(afterId, journalUpTo, record -> {
+                    // The payload is "<from> <body>", the body is everything after the first space
+                    byte[] payload = record.getPayload();
+                    int space = 0;
+                    while (space < payload.length && payload[space] != ' ') {
+                        space++;
+                    }
+                    String from = new String(payload, 0, space, StandardCharsets.UTF_8);
+                    frames.add(Frame.of("msgid " + record.getId() + " " + from + " ", payload,
+                            Math.min(space + 1, payload.length)));
+                    readThrough[0] = record.getId();
+                    return frames.size() < max;
+                });
+                if (frames.size() >= max) return readThrough[0];
+            }
+            next = journalUpTo + 1;
+        }
+        for (; next <= upToId && frames.size() < max; next++) {
+            Entry entry = ring.get((int) next & mask);
+            if (entry == null) continue;
+            if (entry.id > next && journal != null) {
+                // The ring wrapped past us while reading, the journal has the rest
+                break;
+            }
+            if (entry.id == next) {
+                frames.add(entry.frame);
+            }
+        }
+        return next - 1;
+    }
+
+    // One message in the ring buffer
+    private static class Entry {
+        private final long id;
+        private final Frame frame;
+
+        private Entry(long id, Frame frame) {
+            this.id = id;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Author: Adin Geist
+ * Description: Durable, append-only log of every broadcast message. Senders only hand the already encoded frame to a
+ *              queue, and a single writer thread batches the records into segment files through a FileChannel,
+ *              forces them to disk according to the durability policy, and rolls and retires segments as they fill.
+ *              A sparse index of every few records' positions lets old messages be found without scanning from the
+ *              start of the log.
+ *
+ *              Record layout: int payload length | int CRC32 of the rest | long id | long timestamp | payload
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+public class MessageJournal {
+    public static final int HEADER_BYTES = 24;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    // Every this many records get an entry in the sparse index
+    private static final int INDEX_INTERVAL = ServerConfig.getInt("journal.indexInterval", 64);
+    // How long a record waits for the records with lower ids before it is written without them
+    private static final long REORDER_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int retainSegments;
+    private final JournalDurability durability;
+    private final long fsyncIntervalMillis;
+    private final ServerMetrics metrics;
+    // Messages waiting for the writer. Senders never wait for room, a record that finds it full is dropped.
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // Set once the writer stopped on an error, after which nothing is queued any more
+    private volatile boolean failed = false;
+    // Set while senders find the queue full, so falling behind is logged once and not for every record
+    private volatile boolean overflowing = false;
+    // Sparse index from a record's id to where it starts on disk, readable from any thread
+    private final ConcurrentSkipListMap<Long, Position> index = new ConcurrentSkipListMap<>();
+    // Id of the newest record the writer has taken off the queue, where the server's ids carry on after a restart
+    private volatile long lastId;
+
+    // Everything below is only touched by the writer thread once the journal is open
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    private final ByteBuffer idAndTimestamp = ByteBuffer.allocate(16);
+    private final CRC32 crc = new CRC32();
+    private FileChannel segment;
+    private Path segmentPath;
+    private long recordsInSegment = 0;
+    // Ids are assigned before records are queued, so concurrent senders may queue them slightly out of order.
+    // Records are held here until every lower id has been written.
+    private final PriorityQueue<Entry> reorder = new PriorityQueue<>(Comparator.comparingLong(entry -> entry.id));
+    private boolean dirty = false;
+    private long lastSyncNanos = System.nanoTime();
+
+    // Opens the journal configured with -Dchat.journal.dir, or returns null when journaling is turned off. Records
+    // that couldn't be journaled are counted in the metrics.
+    public static MessageJournal openConfigured(ServerMetrics metrics) {
+        String dir = ServerConfig.getString("journal.dir", "");
+        if (dir.isEmpty()) return null;
+        try {
+            return new MessageJournal(Paths.get(dir),
+                    ServerConfig.getLong("journal.segmentBytes", 64L * 1024 * 1024),
+                    ServerConfig.getInt("journal.retainSegments", 16),
+                    ServerConfig.getEnum("journal.durability", JournalDurability.INTERVAL),
+                    ServerConfig.getLong("journal.fsyncIntervalMillis", 1000), metrics);
+        } catch (IOException e) {
+            Log.error("Couldn't open the message journal in " + dir + ". Running without one.", e);
+            return null;
+        }
+    }
+
+    // Constructor that opens or creates the journal in the directory, recovers its last segment and starts the writer
+    public MessageJournal(Path directory, long segmentBytes, int retainSegments, JournalDurability durability,
+                          long fsyncIntervalMillis, ServerMetrics metrics) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = Math.max(1, retainSegments);
+        this.durability = durability;
+        this.fsyncIntervalMillis = Math.max(1, fsyncIntervalMillis);
+        this.metrics = metrics;
+        Files.createDirectories(directory);
+        recover();
+        this.writer = new Thread(this::writeLoop, "message-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queues a broadcast for the journal under the id the server gave it. The payload is the frame's bytes from the
+    // offset up to its trailing newline, with the body as it was received. Copying and writing happen on the
+    // journal's own thread, never on the sender's, which may be an event loop serving many other clients. So the
+    // sender never waits either: a record that finds the queue full, or the writer stopped, is dropped and counted.
+    public void append(long id, Frame frame, int payloadOffset) {
+        if (closed) return;
+        if (!failed && queue.offer(new Entry(id, frame, payloadOffset, System.currentTimeMillis()))) {
+            overflowing = false;
+            return;
+        }
+        metrics.journalDropped();
+        if (!failed && !overflowing) {
+            overflowing = true;
+            Log.warn("The message journal is " + QUEUE_CAPACITY + " records behind, dropping records until it"
+                    + " catches up.");
+        }
+    }
+
+    // Writes out everything still queued, forces it to disk and closes the journal
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the id of the newest record in the journal, 0 for an empty one
+    public long lastId() {
+        return lastId;
+    }
+
+    // Reads records with ids after afterId, up to and including upToId, oldest first. The sparse index finds where
+    // to start, so only a few records before afterId are scanned. Stops early once the visitor returns false.
+    public void read(long afterId, long upToId, Predicate<JournalRecord> visitor) throws IOException {
+        Map.Entry<Long, Position> start = index.floorEntry(afterId + 1);
+        if (start == null) {
+            start = index.firstEntry(); // Older records were already deleted, start from the oldest kept
+            if (start == null) return;
+        }
+        Path path = start.getValue().segment;
+        long position = start.getValue().offset;
+        boolean[] more = {true};
+        while (more[0] && path != null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                scan(channel, position, record -> {
+                    if (record.getId() > upToId) return more[0] = false;
+                    if (record.getId() <= afterId) return true;
+                    return more[0] = visitor.test(record);
+                });
+            } catch (NoSuchFileException e) {
+                // The segment was retired while we were reading it, carry on with the next one
+            }
+            Long next = index.higherKey(firstId(path));
+            path = null;
+            position = 0;
+            // Move on to the next segment, which starts at the next index entry that is at offset 0
+            while (next != null) {
+                Position candidate = index.get(next);
+                if (candidate.offset == 0) {
+                    path = candidate.segment;
+                    break;
+                }
+                next = index.higherKey(next);
+            }
+        }
+    }
+
+    // Reads the valid records of a segment from the position onwards and returns the position just past the last
+    // one. Reading stops at the first record that is cut short or fails its checksum, or when the visitor returns false.
+    public static long scan(FileChannel channel, long position, Predicate<JournalRecord> visitor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        long size = channel.size();
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_BYTES + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_BYTES);
+            crc.reset();
+            crc.update(header.array(), 8, 16);
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+            boolean keepGoing = visitor.test(new JournalRecord(header.getLong(8), header.getLong(16), payload.array()));
+            position += HEADER_BYTES + length;
+            if (!keepGoing) break;
+        }
+        return position;
+    }
+
+    // Returns the journal's segment files, oldest first
+    public List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Returns the id of the first record in a segment, which is also its name
+    public static long firstId(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Rebuilds the sparse index after a restart and reopens the newest segment, cutting off a record that was only
+    // partly written
+    private void recover() throws IOException {
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            lastId = 0;
+            openSegment(1);
+            return;
+        }
+        for (Path path : segments) {
+            boolean newest = path.equals(segments.get(segments.size() - 1));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long[] position = {0};
+            long[] count = {0};
+            long end = scan(channel, 0, record -> {
+                if (count[0]++ % INDEX_INTERVAL == 0) {
+                    index.put(record.getId(), new Position(path, position[0]));
+                }
+                position[0] += HEADER_BYTES + record.getPayload().length;
+                lastId = Math.max(lastId, record.getId());
+                return true;
+            });
+            if (!newest) {
+                channel.close();
+                continue;
+            }
+            if (end < channel.size()) {
+                Log.warn("Journal segment " + path.getFileName() + " ends in a damaged record, truncating it.");
+                channel.truncate(end);
+            }
+            channel.position(end);
+            segment = channel;
+            segmentPath = path;
+            recordsInSegment = count[0];
+        }
+        lastId = Math.max(lastId, firstId(segmentPath) - 1);
+    }
+
+    // Writes batches of queued records until the journal is closed and drained
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Entry first = queue.poll(reorder.isEmpty() ? fsyncIntervalMillis : 10, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    reorder.add(first);
+                    queue.drainTo(reorder);
+                }
+                takeInOrder(batch);
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                syncIfDue();
+            }
+            // Whatever is still waiting on a missing id goes out as it is
+            batch.addAll(reorder);
+            batch.sort(Comparator.comparingLong(entry -> entry.id));
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            if (dirty) {
+                segment.force(false);
+            }
+            segment.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failed = true;
+            queue.clear();
+            Log.error("The message journal failed and stopped writing. New broadcasts won't be journaled.", e);
+        }
+    }
+
+    // Moves the records that are next in id order into the batch. A record whose lower ids still haven't shown up
+    // after the reorder timeout is written anyway, the sender that took the missing id is not coming back.
+    private void takeInOrder(List<Entry> batch) {
+        long now = System.nanoTime();
+        while (!reorder.isEmpty()) {
+            Entry next = reorder.peek();
+            boolean inOrder = next.id <= lastId + 1;
+            if (!inOrder && now - next.queuedNanos < REORDER_TIMEOUT_NANOS) break;
+            batch.add(reorder.poll());
+            lastId = Math.max(lastId, next.id); // Provisional until the batch is written, only the writer reads it here
+        }
+    }
+
+    // Appends every record of the batch through the write buffer, rolling to a new segment when one fills up
+    private void writeBatch(List<Entry> batch) throws IOException {
+        for (Entry entry : batch) {
+            // Without the trailing newline, and with line breaks of a v2 body kept as they were received
+            ByteBuffer payload = entry.frame.payload(entry.payloadOffset);
+            int recordBytes = HEADER_BYTES + payload.remaining();
+
+            long written = segment.position() + writeBuffer.position();
+            if (written > 0 && written + recordBytes > segmentBytes) {
+                flushWriteBuffer();
+                roll(entry.id);
+            }
+            if (recordBytes > writeBuffer.remaining()) {
+                flushWriteBuffer();
+            }
+
+            long id = entry.id;
+            if (recordsInSegment++ % INDEX_INTERVAL == 0) {
+                index.put(id, new Position(segmentPath, segment.position() + writeBuffer.position()));
+            }
+            idAndTimestamp.clear();
+            idAndTimestamp.putLong(id).putLong(entry.timestamp);
+            crc.reset();
+            crc.update(idAndTimestamp.array(), 0, 16);
+            crc.update(payload.duplicate());
+
+            if (recordBytes <= writeBuffer.remaining()) {
+                writeBuffer.putInt(payload.remaining()).putInt((int) crc.getValue()).put(idAndTimestamp.flip()).put(payload);
+            } else {
+                // Bigger than the whole write buffer, so write it straight from the frame's bytes
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(payload.remaining()).putInt((int) crc.getValue()).flip();
+                ByteBuffer[] record = {header, idAndTimestamp.flip(), payload};
+                while (payload.hasRemaining()) {
+                    segment.write(record);
+                }
+            }
+        }
+        flushWriteBuffer();
+        dirty = true;
+        if (durability == JournalDurability.BATCH) {
+            sync();
+        }
+    }
+
+    // Writes whatever is in the write buffer to the current segment
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segment.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    // Forces unsynced writes to disk when the INTERVAL policy says it's time
+    private void syncIfDue() throws IOException {
+        if (dirty && durability == JournalDurability.INTERVAL &&
+                System.nanoTime() - lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis)) {
+            sync();
+        }
+    }
+
+    // Forces the current segment to disk
+    private void sync() throws IOException {
+        segment.force(false);
+        dirty = false;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    // Closes the full segment, starts a new one named after the next record's id and deletes segments past the
+    // retention along with their index entries
+    private void roll(long nextId) throws IOException {
+        if (durability != JournalDurability.NONE) {
+            segment.force(false);
+        }
+        segment.close();
+        openSegment(nextId);
+        dirty = false;
+
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size() - retainSegments; i++) {
+            index.headMap(firstId(segments.get(i + 1))).clear();
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    // Creates the segment file whose first record will have the given id and makes it the current one
+    private void openSegment(long firstId) throws IOException {
+        segmentPath = directory.resolve(String.format("%020d%s", firstId, SEGMENT_SUFFIX));
+        segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recordsInSegment = 0;
+    }
+
+    // Reads until the buffer is full or the file ends
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+    }
+
+    // A queued broadcast waiting to be written
+    private static class Entry {
+        private final long id;
+        private final Frame frame;
+        private final int payloadOffset;
+        private final long timestamp;
+        private final long queuedNanos = System.nanoTime();
+
+        private Entry(long id, Frame frame, int payloadOffset, long timestamp) {
+            this.id = id;
+            this.frame = frame;
+            this.payloadOffset = payloadOffset;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Where a record starts on disk
+    private static class Position {
+        private final Path segment;
+        private final long offset;
+
+        private Position(Path segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
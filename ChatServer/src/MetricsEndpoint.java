@@ -0,0 +1,118 @@
+/*
+ * Author: Adin Geist
+ * Description: Serves the server's metrics as plain text at http://<host>:<port>/metrics, in the Prometheus text
+ *              format so any scraper or a plain curl can read them. It only listens on the address configured with
+ *              -Dchat.metrics.host, the loopback address unless told otherwise.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+public class MetricsEndpoint {
+    private final ServerMetrics metrics;
+
+    // Starts the endpoint configured with -Dchat.metrics.port, or returns null when it is turned off
+    public static MetricsEndpoint startConfigured(ServerMetrics metrics) {
+        int port = ServerConfig.getInt("metrics.port", 0);
+        if (port <= 0) return null;
+        String host = ServerConfig.getString("metrics.host", "127.0.0.1");
+        MetricsEndpoint endpoint = new MetricsEndpoint(metrics);
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", endpoint::handle);
+            http.start();
+            Log.info("Metrics at http://" + host + ":" + port + "/metrics");
+        } catch (IOException e) {
+            Log.warn("Couldn't serve metrics on " + host + ":" + port + ". Running without them.", e);
+            return null;
+        }
+        return endpoint;
+    }
+
+    // Constructor that accepts the metrics to serve
+    public MetricsEndpoint(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Answers a scrape with the current metrics
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Writes every metric as one "name value" line, with its type above it
+    String render() {
+        StringBuilder out = new StringBuilder(1024);
+        gauge(out, "chat_sessions", metrics.getConnectedSessions());
+        gauge(out, "chat_logged_in_users", metrics.getLoggedInUsers());
+        counter(out, "chat_logins_total", metrics.getLogins());
+        gauge(out, "chat_logins_per_second", metrics.getLoginsPerSecond());
+        counter(out, "chat_messages_total", metrics.getMessages());
+        gauge(out, "chat_messages_per_second", metrics.getMessagesPerSecond());
+        counter(out, "chat_bytes_in_total", metrics.getBytesIn());
+        counter(out, "chat_bytes_out_total", metrics.getBytesOut());
+        counter(out, "chat_slow_consumer_disconnects_total", metrics.getSlowConsumerDisconnects());
+        gauge(out, "chat_process_cpu_load", metrics.getProcessCpuLoad());
+        gauge(out, "chat_heap_used_bytes", metrics.getHeapUsedBytes());
+        counter(out, "chat_rate_limited_lines_total", metrics.getRateLimitedLines());
+        counter(out, "chat_rate_limit_disconnects_total", metrics.getRateLimitDisconnects());
+        counter(out, "chat_fanout_overflows_total", metrics.getFanOutOverflows());
+        counter(out, "chat_journal_dropped_total", metrics.getJournalDrops());
+
+        LatencyHistogram fanOut = metrics.getFanOutLatency();
+        out.append("# TYPE chat_fanout_latency_seconds summary\n");
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            out.append("chat_fanout_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(fanOut.percentile(quantile))).append('\n');
+        }
+        out.append("chat_fanout_latency_seconds_count ").append(fanOut.count()).append('\n');
+        out.append("# TYPE chat_fanout_latency_max_seconds gauge\n")
+                .append("chat_fanout_latency_max_seconds ").append(seconds(fanOut.max())).append('\n');
+
+        // One line per logged in client, so a slow one stands out
+        out.append("# TYPE chat_outbound_queue_depth gauge\n");
+        long dropped = 0;
+        for (ClientController session : metrics.getSessions().sessions()) {
+            OutboundQueue queue = session.getOutboundQueue();
+            dropped += queue.dropped();
+            String login = session.getLogin();
+            if (login != null) {
+                out.append("chat_outbound_queue_depth{login=\"").append(login).append("\"} ")
+                        .append(queue.depth()).append('\n');
+            }
+        }
+        // Only clients still connected count, so this can go down when one leaves
+        gauge(out, "chat_outbound_dropped", dropped);
+        return out.toString();
+    }
+
+    // Writes a metric that only goes up
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    // Writes a metric that goes up and down
+    private static void gauge(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ')
+                .append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+    }
+
+    // Writes a metric that goes up and down and is a whole number
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    // Converts nanoseconds to seconds
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Author: Adin Geist
+ * Description: Handles interactions between a single client and the server over a non-blocking channel. Bytes are
+ *              framed into lines as they arrive and handed to the same command handling as the blocking controller.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+public class NioClientController extends ClientController {
+    private static final int BUFFER_SIZE = 8192;
+    // Most frames handed to one gathering write
+    private static final int MAX_BATCH_FRAMES = 256;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // Frames the received bytes into lines, keeping a line that hasn't ended yet for the next read. Swapped for a
+    // binary decoder when the client switches to v2.
+    private ProtocolDecoder decoder = new LineDecoder();
+    // Read-only views of the queued frames, written to the channel together with one gathering write
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private int batchCount = 0;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    // Set while a login waits for the cluster. Lines after it stay in the read buffer, and nothing more is read,
+    // until it is finished. Only touched on the event loop's thread.
+    private boolean readsSuspended = false;
+
+    // Constructor that accepts the server, the client's channel and the event loop that will service it
+    public NioClientController(Server server, SocketChannel channel, EventLoop eventLoop) {
+        super(server);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    // Registers the channel for reads, called on the event loop's thread
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            disconnect();
+        }
+    }
+
+    // Decodes the rest of what the client sends with the given decoder, called on the event loop's thread
+    @Override
+    protected void useDecoder(ProtocolDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    // Reads whatever the channel has available and handles every complete line in it
+    void handleRead() {
+        if (readsSuspended) return; // The read buffer still holds lines waiting for a login
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) { // The client closed its end of the connection
+                Log.info(getLogin() + " disconnected.");
+                disconnect();
+                return;
+            }
+            server.getMetrics().bytesRead(read);
+            readBuffer.flip();
+            handleBufferedLines();
+        } catch (IOException e) {
+            Log.info(getLogin() + " disconnected.");
+            disconnect();
+        }
+    }
+
+    // Handles every complete line left in the read buffer, unless one of them suspends reading
+    private void handleBufferedLines() throws IOException {
+        ProtocolLine line;
+        while (!readsSuspended && (line = decoder.decode(readBuffer)) != null) {
+            handleLine(line);
+            if (closed) return; // The line may have been a logoff
+        }
+    }
+
+    // Finishes the login on the event loop once the cluster has answered, instead of waiting for it there. Until then
+    // the client's next lines wait, so nothing it sends after the login is handled before it.
+    @Override
+    protected void afterClaim(CompletableFuture<Boolean> claim, Consumer<Boolean> then) {
+        if (claim.isDone()) {
+            super.afterClaim(claim, then);
+            return;
+        }
+        readsSuspended = true;
+        updateInterest();
+        claim.whenComplete((granted, error) -> eventLoop.execute(this, () -> {
+            then.accept(granted != null && granted);
+            readsSuspended = false;
+            if (closed) return;
+            try {
+                handleBufferedLines();
+            } catch (IOException e) {
+                Log.info(getLogin() + " disconnected.");
+                disconnect();
+                return;
+            }
+            updateInterest();
+        }));
+    }
+
+    // Copies pending messages into the write buffer and writes as much as the channel will take
+    void handleWrite() {
+        try {
+            while (true) {
+                fillBatch();
+                if (batchCount == 0) break;
+                server.getMetrics().bytesWritten(channel.write(batch, 0, batchCount));
+                if (!dropWrittenFrames()) break; // The socket is full, wait until the selector says it is writable again
+            }
+            updateInterest();
+        } catch (IOException e) {
+            // If the message can't send, the connection is broken. Disconnect the user from the server.
+            Log.info("Broken " + getLogin());
+            disconnect();
+        }
+    }
+
+    // Asks for read readiness unless reads are suspended, and for write readiness only while there is something left
+    // to write
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        int ops = readsSuspended ? 0 : SelectionKey.OP_READ;
+        if (batchCount > 0 || !outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    // Adds queued frames to the batch until it holds the most frames or bytes a single write should carry
+    private void fillBatch() {
+        long bytes = 0;
+        for (int i = 0; i < batchCount; i++) {
+            bytes += batch[i].remaining();
+        }
+        while (batchCount < batch.length && bytes < MAX_BATCH_BYTES) {
+            Frame frame = outbound.poll();
+            if (frame == null) return;
+            batch[batchCount++] = frame.buffer(); // A read-only view of the shared bytes, not a copy
+            bytes += frame.length();
+        }
+    }
+
+    // Removes fully written frames from the front of the batch. Returns true if the whole batch was written.
+    private boolean dropWrittenFrames() {
+        int written = 0;
+        while (written < batchCount && !batch[written].hasRemaining()) {
+            written++;
+        }
+        System.arraycopy(batch, written, batch, 0, batchCount - written);
+        for (int i = batchCount - written; i < batchCount; i++) {
+            batch[i] = null;
+        }
+        batchCount -= written;
+        return batchCount == 0;
+    }
+
+    // Queues an encoded message for THIS client and makes sure the event loop will flush it, may be called from any thread
+    @Override
+    protected void write(Frame frame) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        super.write(frame);
+        // Only one flush needs to be scheduled no matter how many messages are queued before it runs, so
+        // everything queued during one turn of the event loop, or within the linger time, goes out in one write
+        if (flushScheduled.compareAndSet(false, true)) {
+            Runnable flush = () -> {
+                flushScheduled.set(false);
+                handleWrite();
+            };
+            if (LINGER_NANOS > 0) {
+                eventLoop.schedule(this, flush, LINGER_NANOS);
+            } else {
+                eventLoop.execute(this, flush);
+            }
+        }
+    }
+
+    // Closes the channel of THIS client, which also cancels its selection key
+    @Override
+    protected void closeConnection() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    // Return the address THIS client connected from
+    @Override
+    protected InetAddress getInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Author: Adin Geist
+ * Description: Non-blocking variant of the server. Accepts new clients onto a ServerSocketChannel and hands each
+ *              connection to one of a small fixed pool of event loops instead of starting a thread per client.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class NioServer extends Server {
+    private final EventLoop[] eventLoops;
+    private int nextLoop = 0;
+
+    // Constructor takes in a port and creates one event loop per available core
+    public NioServer(int port) {
+        super(port);
+        this.eventLoops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Start the event loops before any connection can be handed to them
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop("event-loop-" + i);
+                eventLoops[i].start();
+            }
+
+            // Bind a ServerSocketChannel to the provided port
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(this.port));
+            String ip = InetAddress.getLocalHost().getHostAddress();
+            // Print out the ip and port
+            Log.info("Server listening at: " + ip + ":" + port + " (non-blocking, " + eventLoops.length + " event loops)");
+            if (OutboundQueue.configuredPolicy() == OverflowPolicy.BLOCK) {
+                Log.warn("Event loops never wait for a slow client, so the block policy disconnects it when a"
+                        + " message from an event loop finds its queue full.");
+            }
+            // Continuously check for new connections
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // blocking, only this acceptor thread waits here
+                channel.configureBlocking(false);
+                // Lets the OS find half-open connections of clients that don't do heartbeats
+                channel.socket().setKeepAlive(true);
+                // Queued lines are already written in batches, Nagle would only hold them back until an ack arrives
+                channel.socket().setTcpNoDelay(true);
+                // Spread the connections over the event loops round robin
+                EventLoop eventLoop = eventLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+                NioClientController clientController = new NioClientController(this, channel, eventLoop);
+                getSessions().add(clientController);
+                eventLoop.register(clientController);
+            }
+        } catch (IOException e) {
+            Log.error("The server stopped accepting clients.", e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Author: Adin Geist
+ * Description: Bounded queue of messages waiting to be written to a single client. Senders only enqueue, and the
+ *              client's own writer drains it, so one slow reader can't hold up everybody else's messages.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutboundQueue {
+    private static final int CAPACITY = ServerConfig.getInt("outbound.capacity", 1024);
+    private static final OverflowPolicy POLICY = ServerConfig.getEnum("outbound.policy", OverflowPolicy.DISCONNECT);
+    private static final long BLOCK_TIMEOUT_MILLIS = ServerConfig.getLong("outbound.blockTimeoutMillis", 1000);
+
+    private final ArrayBlockingQueue<Frame> frames;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    // Metrics for this client
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Constructor that uses the capacity and overflow policy configured for the server
+    public OutboundQueue() {
+        this(CAPACITY, POLICY, BLOCK_TIMEOUT_MILLIS);
+    }
+
+    // Constructor that takes an explicit capacity, overflow policy and timeout for the BLOCK policy
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.frames = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    // Queues a message for the client. Returns false if the queue overflowed and the client should be disconnected.
+    public boolean offer(Frame frame) {
+        boolean queued = frames.offer(frame);
+        if (!queued) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    // Keep dropping from the head until the new message fits, the writer may be racing us for room
+                    while (!queued) {
+                        if (frames.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                        queued = frames.offer(frame);
+                    }
+                    break;
+                case BLOCK:
+                    // An event loop serves many other clients and a fan-out shard a share of all of them, neither
+                    // waits for one, so there block is disconnect
+                    if (Thread.currentThread() instanceof EventLoop || FanOut.isDelivering()) break;
+                    try {
+                        queued = frames.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                case DISCONNECT:
+                    break;
+            }
+        }
+        if (queued) {
+            peakDepth.accumulateAndGet(frames.size(), Math::max);
+        }
+        return queued;
+    }
+
+    // Returns the overflow policy configured for the server
+    public static OverflowPolicy configuredPolicy() {
+        return POLICY;
+    }
+
+    // Returns the next message without waiting, or null if there is none
+    public Frame poll() {
+        return frames.poll();
+    }
+
+    // Waits up to the given time for the next message, or returns null if none arrived
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return frames.poll(timeout, unit);
+    }
+
+    // Waits for the next message
+    public Frame take() throws InterruptedException {
+        return frames.take();
+    }
+
+    // Returns true if nothing is waiting to be written
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    // Return the number of messages waiting to be written
+    public int depth() {
+        return frames.size();
+    }
+
+    // Return the most messages that can be waiting before the overflow policy kicks in
+    public int capacity() {
+        return frames.size() + frames.remainingCapacity();
+    }
+
+    // Return the most messages that have ever been waiting at once
+    public int peakDepth() {
+        return peakDepth.get();
+    }
+
+    // Return the number of messages thrown away by the DROP_OLDEST policy
+    public long dropped() {
+        return dropped.get();
+    }
+}
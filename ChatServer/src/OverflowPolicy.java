@@ -0,0 +1,14 @@
+/*
+ * Author: Adin Geist
+ * Description: What happens when a client's outbound queue is full because it reads slower than the room talks.
+ */
+
+public enum OverflowPolicy {
+    // Throw away the oldest queued message to make room for the newest one
+    DROP_OLDEST,
+    // Disconnect the slow client right away
+    DISCONNECT,
+    // Make the sender wait for room, and disconnect the slow client if it doesn't free up in time. An nio event loop
+    // never waits, since that would stall every client on it, so a message it sends disconnects the slow client.
+    BLOCK
+}
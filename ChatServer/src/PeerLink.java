@@ -0,0 +1,145 @@
+/*
+ * Author: Adin Geist
+ * Description: The connection this node dials to one cluster peer. Events are queued and written by the link's own
+ *              thread, so a slow or unreachable peer never holds up local clients. When the connection drops it is
+ *              dialed again with backoff, and a fresh snapshot of this node's users is sent before anything else.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PeerLink implements Runnable {
+    private static final int QUEUE_CAPACITY = ServerConfig.getInt("cluster.queueCapacity", 64 * 1024);
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final ClusterNode node;
+    private final String host;
+    private final int port;
+    // Events waiting to be written to the peer. Nothing is queued while the link is down, the snapshot sent on
+    // reconnect brings the peer up to date instead.
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean connected = false;
+    // The peer's node id once it has answered our hello, null while the link is down
+    private volatile String peerId = null;
+
+    // Constructor that accepts the local node and the address of the peer to dial
+    public PeerLink(ClusterNode node, String host, int port) {
+        this.node = node;
+        this.host = host;
+        this.port = port;
+    }
+
+    // Starts dialing the peer on the link's own thread
+    public void start() {
+        ClusterNode.daemon(this, "cluster-link-" + host + ":" + port).start();
+    }
+
+    // Queues an event for the peer. It is dropped if the link is down or the peer has fallen a whole queue behind.
+    public void send(Frame frame) {
+        if (connected && !queue.offer(frame)) {
+            Log.warn("Cluster peer " + peerId + " is too far behind, dropping an event.");
+        }
+    }
+
+    // Return the node id of the peer, or null while the link is down
+    public String getPeerId() {
+        return peerId;
+    }
+
+    // Keeps the link up for as long as the server runs, dialing again with exponential backoff after it drops
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                backoff = MIN_BACKOFF_MILLIS;
+                serve(socket);
+            } catch (IOException e) {
+                // Down or unreachable, try again after the backoff
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+                peerId = null;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // Says hello, proves both sides know the cluster secret, sends the snapshot and then writes queued events until
+    // the connection breaks
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        LineReader inputStream = new LineReader(socket.getInputStream());
+        String nonce = ClusterNode.nonce();
+        Frame.of("node " + node.getNodeId() + " " + nonce + "\n").writeTo(outputStream);
+        outputStream.flush();
+        // Received: node id nonce proof
+        ProtocolLine line = inputStream.readLine(); // blocking
+        if (line == null || line.command() != ProtocolCommand.NODE || line.argumentCount() < 3) {
+            throw new IOException("peer " + host + ":" + port + " didn't say which node it is");
+        }
+        String id = line.argument(0);
+        if (!node.verify(line.argument(2), "accept", nonce, id)) {
+            Log.warn("Cluster peer at " + host + ":" + port + " doesn't know the cluster secret.");
+            throw new IOException("peer " + host + ":" + port + " doesn't know the cluster secret");
+        }
+        Frame.of("node " + node.getNodeId() + " " + node.proof("dial", line.argument(1), node.getNodeId()) + "\n")
+                .writeTo(outputStream);
+        // The peer answers our claims on the same connection
+        ClusterNode.daemon(() -> readAnswers(socket, inputStream), "cluster-answers-" + id).start();
+
+        // Anything queued before now is covered by the snapshot
+        queue.clear();
+        connected = true;
+        for (Frame frame : node.snapshot()) {
+            frame.writeTo(outputStream);
+        }
+        outputStream.flush();
+        peerId = id;
+        Log.info("Linked to cluster peer " + id + " at " + host + ":" + port);
+
+        while (!socket.isClosed()) {
+            Frame frame = queue.poll(1, TimeUnit.SECONDS);
+            if (frame == null) continue;
+            frame.writeTo(outputStream);
+            // Everything already queued goes out in the same write
+            if (queue.isEmpty()) {
+                outputStream.flush();
+            }
+        }
+    }
+
+    // Reads the peer's answers to our claims until the connection closes, then closes it from our side too
+    private void readAnswers(Socket socket, LineReader inputStream) {
+        try {
+            ProtocolLine line;
+            while ((line = inputStream.readLine()) != null) { // Blocking!
+                if (line.command() == ProtocolCommand.CLAIMED) {
+                    // Received: claimed id ok|taken
+                    node.claimAnswered(Long.parseLong(line.argument(0)), line.argument(1).equals("ok"));
+                }
+            }
+        } catch (IOException e) {
+            // The connection broke, the writer notices the closed socket
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.warn("Couldn't close the link to cluster peer " + host + ":" + port, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Author: Adin Geist
+ * Description: Remembers the client ids of the latest posts of every login together with the message ids they were
+ *              broadcast under. A client that lost its connection before the ack arrived sends its unacked posts
+ *              again with the same ids, and those are acked with the original message id instead of going out twice.
+ *              Logins that stopped posting are forgotten after a while, so only recent posters cost memory.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public class PostTracker {
+    // Client ids remembered per login, a resend older than this many posts is broadcast again
+    private static final int WINDOW = Math.max(1, ServerConfig.getInt("ack.window", 1024));
+    // How long the ids of a login are kept after its last post, long enough to cover a reconnect
+    private static final long RETAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("ack.retainMillis", 300000));
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private final ConcurrentHashMap<String, Window> byLogin = new ConcurrentHashMap<>();
+
+    // Constructor that accepts the scheduler that forgets logins that stopped posting
+    public PostTracker(ScheduledExecutorService scheduler) {
+        scheduler.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Returns the message id of the login's post with the given client id. The first time the id is seen the
+    // broadcast is run to get one, later times it is the id that broadcast returned. Posts of one login are handled
+    // one at a time, so a resend racing the original is still only broadcast once.
+    public long post(String login, String clientId, LongSupplier broadcast) {
+        String key = login.toLowerCase(Locale.ROOT);
+        Window window = byLogin.computeIfAbsent(key, k -> new Window());
+        synchronized (window) {
+            window.lastPostNanos = System.nanoTime();
+            Long id = window.ids.get(clientId);
+            if (id == null) {
+                id = broadcast.getAsLong();
+                window.ids.put(clientId, id);
+            }
+            // A sweep may have dropped the window while we were using it, put it back so the id isn't lost
+            byLogin.putIfAbsent(key, window);
+            return id;
+        }
+    }
+
+    // Forgets every login that hasn't posted within the retain time
+    private void sweep() {
+        long now = System.nanoTime();
+        byLogin.values().removeIf(window -> {
+            synchronized (window) {
+                return now - window.lastPostNanos > RETAIN_NANOS;
+            }
+        });
+    }
+
+    // The latest client ids of one login, oldest first
+    private static class Window {
+        private final Map<String, Long> ids = new LinkedHashMap<String, Long>(16, 0.75f) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > WINDOW;
+            }
+        };
+        private long lastPostNanos = System.nanoTime();
+    }
+}
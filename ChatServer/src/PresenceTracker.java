@@ -0,0 +1,102 @@
+/*
+ * Author: Adin Geist
+ * Description: Keeps clients that negotiated the roster capability up to date on who is online. They get one roster
+ *              snapshot when they log in, then logins and logoffs are coalesced over a short window and sent as a
+ *              single versioned presence delta instead of one line per user.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PresenceTracker {
+    private static final long WINDOW_MILLIS = ServerConfig.getLong("presence.windowMillis", 100);
+
+    private final SessionRegistry sessions;
+    private final ScheduledExecutorService scheduler;
+    // Clients receiving snapshots and deltas
+    private final Set<ClientController> subscribers = ConcurrentHashMap.newKeySet();
+    // Changes since the last delta, "+login" for online and "-login" for offline
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Bumped on every delta, only changed while holding this tracker's lock
+    private long version = 0;
+
+    // Constructor that accepts the registry to snapshot and the scheduler that runs the delta flushes
+    public PresenceTracker(SessionRegistry sessions, ScheduledExecutorService scheduler) {
+        this.sessions = sessions;
+        this.scheduler = scheduler;
+    }
+
+    // Sends the roster snapshot to a client that just logged in and subscribes it to future deltas. Holding the lock
+    // means no delta can be flushed between the snapshot and the subscription, so the client never misses one.
+    // Changes still pending may already show in the snapshot, and the next delta repeats them.
+    public synchronized void subscribe(ClientController clientController) {
+        StringBuilder roster = new StringBuilder("roster ").append(version);
+        for (ClientController session : sessions.sessions()) {
+            String login = session.getLogin();
+            if (login != null) {
+                roster.append(' ').append(login);
+            }
+        }
+        for (String login : sessions.remoteLogins()) {
+            roster.append(' ').append(login);
+        }
+        clientController.send(Frame.of(roster.append('\n').toString()));
+        subscribers.add(clientController);
+    }
+
+    // Stops sending deltas to a client that logged off or disconnected
+    public void unsubscribe(ClientController clientController) {
+        subscribers.remove(clientController);
+    }
+
+    // Records that a user logged in
+    public void online(String login) {
+        pending.add("+" + login);
+        scheduleFlush();
+    }
+
+    // Records that a user logged off
+    public void offline(String login) {
+        pending.add("-" + login);
+        scheduleFlush();
+    }
+
+    // Flushes once the window closes, however many changes arrive before then
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Sends every change since the last delta to all subscribers as one line
+    private synchronized void flush() {
+        flushScheduled.set(false);
+        // Keep only the last change per user. A user who came and went inside the window is still sent, as the
+        // snapshot of a client that logged in meanwhile may have caught them in between. Every change is the user's
+        // state, not a toggle, so a subscriber that already has it is left as it was.
+        Map<String, String> changes = new LinkedHashMap<>();
+        String change;
+        while ((change = pending.poll()) != null) {
+            changes.put(change.substring(1), change);
+        }
+        StringBuilder delta = new StringBuilder();
+        for (String last : changes.values()) {
+            delta.append(' ').append(last);
+        }
+        if (delta.length() == 0) return;
+
+        version++;
+        Frame frame = Frame.of("presence " + version + delta + "\n");
+        for (ClientController subscriber : subscribers) {
+            subscriber.send(frame);
+        }
+    }
+}
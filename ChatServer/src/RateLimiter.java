@@ -0,0 +1,121 @@
+/*
+ * Author: Adin Geist
+ * Description: Token bucket limits on how fast clients may send. Every login and every address gets its own
+ *              buckets for chat messages, bytes and login attempts, so a user can't get around the limit by
+ *              reconnecting and one address can't get around it by logging in under many names. Buckets that
+ *              have refilled completely are forgotten now and then, so idle users and addresses cost nothing.
+ *              Clients on the server's own host share the loopback address, so it isn't limited by default.
+ *              The limits are off unless given a rate, since bots and bridges legitimately send in bursts.
+ */
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter {
+    private static final double MESSAGES_PER_SECOND = ServerConfig.getInt("limit.messagesPerSecond", 0);
+    private static final int MESSAGE_BURST = ServerConfig.getInt("limit.messageBurst", 40);
+    private static final double BYTES_PER_SECOND = ServerConfig.getInt("limit.bytesPerSecond", 0);
+    private static final int BYTE_BURST = ServerConfig.getInt("limit.byteBurst", 256 * 1024);
+    private static final double LOGINS_PER_SECOND = ServerConfig.getInt("limit.loginsPerSecond", 0);
+    private static final int LOGIN_BURST = ServerConfig.getInt("limit.loginBurst", 10);
+    // An address may send this many times what a single login may, since several users can share one. 0 turns the
+    // address limits off, logins are then not limited at all.
+    private static final int ADDRESS_FACTOR = Math.max(0, ServerConfig.getInt("limit.addressFactor", 4));
+    // Whether clients on the server's own host are left out of the address limits
+    private static final boolean EXEMPT_LOOPBACK = ServerConfig.getBoolean("limit.exemptLoopback", true);
+    // Rate limit violations a connection may rack up, one more every second, before it is disconnected
+    private static final int MAX_VIOLATIONS = ServerConfig.getInt("limit.maxViolations", 10);
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private final ConcurrentHashMap<String, Limits> byLogin = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Limits> byAddress = new ConcurrentHashMap<>();
+
+    // Constructor that accepts the scheduler that forgets idle buckets
+    public RateLimiter(ScheduledExecutorService scheduler) {
+        scheduler.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Returns true if a line of the given command and size from the given address, and login if there is one, is
+    // within every limit. Logins only count against the address, chat messages and bytes against both. A line
+    // refused by one bucket gives back what the others took for it, so refused lines cost nothing.
+    public boolean allow(InetAddress address, String login, ProtocolCommand command, int bytes) {
+        boolean limitAddress = ADDRESS_FACTOR > 0 && !(EXEMPT_LOOPBACK && address.isLoopbackAddress());
+        Limits addressLimits = limitAddress ? limits(byAddress, address.getHostAddress(), ADDRESS_FACTOR) : null;
+        if (command == ProtocolCommand.LOGIN) {
+            return addressLimits == null || addressLimits.allowLogin();
+        }
+        boolean message = command == ProtocolCommand.MSG || command == ProtocolCommand.POST
+                || command == ProtocolCommand.RMSG || command == ProtocolCommand.DM || command == ProtocolCommand.SEARCH
+                || command == ProtocolCommand.UPLOAD;
+        if (addressLimits != null && !addressLimits.allow(message, bytes)) return false;
+        if (login == null || limits(byLogin, login.toLowerCase(Locale.ROOT), 1).allow(message, bytes)) return true;
+        if (addressLimits != null) addressLimits.release(message, bytes);
+        return false;
+    }
+
+    // Returns a bucket of the violations one connection may still commit before it is disconnected, or null if
+    // violations never disconnect
+    public static TokenBucket violationBucket() {
+        return MAX_VIOLATIONS > 0 ? new TokenBucket(1, MAX_VIOLATIONS) : null;
+    }
+
+    // Returns the buckets of a login or address, creating them on first use
+    private static Limits limits(ConcurrentHashMap<String, Limits> map, String key, int factor) {
+        Limits limits = map.get(key);
+        if (limits == null) {
+            Limits created = new Limits(factor);
+            limits = map.putIfAbsent(key, created);
+            if (limits == null) limits = created;
+        }
+        return limits;
+    }
+
+    // Forgets every login and address whose buckets have all refilled
+    private void sweep() {
+        byLogin.values().removeIf(Limits::isIdle);
+        byAddress.values().removeIf(Limits::isIdle);
+    }
+
+    // The buckets of one login or address. A limit of 0 or less turns that bucket off.
+    private static class Limits {
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+        private final TokenBucket logins;
+
+        private Limits(int factor) {
+            this.messages = bucket(MESSAGES_PER_SECOND * factor, (long) MESSAGE_BURST * factor);
+            this.bytes = bucket(BYTES_PER_SECOND * factor, (long) BYTE_BURST * factor);
+            this.logins = bucket(LOGINS_PER_SECOND * factor, (long) LOGIN_BURST * factor);
+        }
+
+        private static TokenBucket bucket(double perSecond, long burst) {
+            return perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+        }
+
+        // Takes a message, if it is one, and its bytes, or takes nothing and returns false if either is over
+        private boolean allow(boolean message, int length) {
+            if (message && messages != null && !messages.tryAcquire(1)) return false;
+            if (bytes == null || bytes.tryAcquire(length)) return true;
+            if (message && messages != null) messages.release(1);
+            return false;
+        }
+
+        // Gives back what allow took for a line
+        private void release(boolean message, int length) {
+            if (message && messages != null) messages.release(1);
+            if (bytes != null) bytes.release(length);
+        }
+
+        private boolean allowLogin() {
+            return logins == null || logins.tryAcquire(1);
+        }
+
+        private boolean isIdle() {
+            return (messages == null || messages.isFull()) && (bytes == null || bytes.isFull())
+                    && (logins == null || logins.isFull());
+        }
+    }
+}
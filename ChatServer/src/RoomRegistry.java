@@ -0,0 +1,60 @@
+/*
+ * Author: Adin Geist
+ * Description: Index of chat rooms and their members. A room message only touches the members of its room, so the
+ *              cost of sending it grows with the room, not with everybody connected to the server.
+ */
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RoomRegistry {
+    // Rooms keyed by their lower case name. A room only exists while it has members.
+    private final ConcurrentHashMap<String, Set<ClientController>> rooms = new ConcurrentHashMap<>();
+
+    // Adds the client to the room, creating the room if nobody is in it yet. Returns false if it was already a member.
+    public boolean join(String room, ClientController clientController) {
+        boolean[] joined = new boolean[1];
+        // Done inside compute so a concurrent part can't remove the room while we add to it
+        rooms.compute(key(room), (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            joined[0] = members.add(clientController);
+            return members;
+        });
+        return joined[0];
+    }
+
+    // Removes the client from the room, dropping the room once it is empty. Returns false if it wasn't a member.
+    public boolean part(String room, ClientController clientController) {
+        boolean[] parted = new boolean[1];
+        rooms.computeIfPresent(key(room), (name, members) -> {
+            parted[0] = members.remove(clientController);
+            return members.isEmpty() ? null : members;
+        });
+        return parted[0];
+    }
+
+    // Returns a live read-only view of the room's members that is safe to iterate from any thread
+    public Set<ClientController> members(String room) {
+        Set<ClientController> members = rooms.get(key(room));
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    // Returns true if the client is a member of the room
+    public boolean isMember(String room, ClientController clientController) {
+        return members(room).contains(clientController);
+    }
+
+    // Returns the number of rooms that have members
+    public int size() {
+        return rooms.size();
+    }
+
+    // Room names are compared without case
+    private static String key(String room) {
+        return room.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Author: Adin Geist
+ * Description: Full-text search over the broadcast history. An inverted index maps every word of a message body,
+ *              and its sender as "from:<user>", to the ids of the messages that contain it. The ids of a word are kept
+ *              as varint deltas in blocks of a byte array, with the first id of every block in a skip list, so a
+ *              posting costs a byte or two and a lookup only decodes the blocks it lands in. The index follows the
+ *              message history on its own thread, so broadcasting never waits for it, and after a restart it
+ *              catches up from the journal. Searches run on a few shared threads and only return messages the
+ *              history still has.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SearchIndex {
+    // Results sent per search, the last line tells the client where the next page starts
+    private static final int PAGE_SIZE = Math.max(1, ServerConfig.getInt("search.pageSize", 20));
+    // Messages read from the history and indexed under one write lock
+    private static final int BATCH_SIZE = Math.max(1, ServerConfig.getInt("search.batchSize", 1024));
+    // How long the indexer waits before looking for new messages once it has caught up
+    private static final long INTERVAL_MILLIS = Math.max(1, ServerConfig.getLong("search.intervalMillis", 100));
+    // Words a search may ask for, more are ignored
+    private static final int MAX_QUERY_TERMS = 8;
+    // Words shorter than this aren't indexed, they are in nearly every message anyway
+    private static final int MIN_TERM_BYTES = 2;
+    // Longer words are cut off at this many bytes, both when indexing and when searching
+    private static final int MAX_TERM_BYTES = 64;
+    private static final String FROM = "from:";
+    // Shared by every search so lookups and journal reads never run on a reader or event loop thread
+    private static final ExecutorService SEARCHERS = Executors.newFixedThreadPool(
+            Math.max(1, ServerConfig.getInt("search.threads", 2)), new SearchThreadFactory());
+
+    private final MessageHistory history;
+    private final SessionRegistry sessions;
+    // Only the indexer thread changes the postings, under the write lock. Searches read them under the read lock.
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Every message up to this id has been indexed
+    private volatile long indexedThrough = 0;
+    private final Thread indexer;
+
+    // Constructor that accepts the history to index and where to find the clients that search
+    public SearchIndex(MessageHistory history, SessionRegistry sessions) {
+        this.history = history;
+        this.sessions = sessions;
+        this.indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+    }
+
+    // Creates and starts the index unless -Dchat.search.enabled=false, in which case it returns null
+    public static SearchIndex startConfigured(MessageHistory history, SessionRegistry sessions) {
+        if (!ServerConfig.getBoolean("search.enabled", true)) return null;
+        SearchIndex index = new SearchIndex(history, sessions);
+        index.indexer.start();
+        return index;
+    }
+
+    // Reads new messages from the history in batches and indexes them until the server stops. It only reads up to
+    // the ids that are recorded, an id handed out but not recorded yet would otherwise be skipped for good. Words
+    // are picked out before taking the lock, so searches are only held up while the postings are appended.
+    private void indexLoop() {
+        List<Frame> frames = new ArrayList<>(BATCH_SIZE);
+        long[] ids = new long[BATCH_SIZE];
+        List<List<String>> words = new ArrayList<>(BATCH_SIZE);
+        TermScanner scanner = new TermScanner();
+        while (true) {
+            long through = indexedThrough;
+            frames.clear();
+            try {
+                through = history.read(indexedThrough, history.recordedThrough(), BATCH_SIZE, frames);
+            } catch (IOException e) {
+                // Whatever can't be read can't be shown either, carry on after it
+                Log.warn("Couldn't read the message journal for the search index: " + e.getMessage());
+                through = Math.min(history.recordedThrough(), indexedThrough + BATCH_SIZE);
+            }
+            if (frames.isEmpty() && through == indexedThrough) {
+                try {
+                    Thread.sleep(INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            words.clear();
+            for (int i = 0; i < frames.size(); i++) {
+                Message message = Message.parse(frames.get(i));
+                ids[i] = message.id;
+                List<String> found = scanner.scan(message.bytes, message.bodyStart, message.bodyEnd);
+                found.add(FROM + message.from.toLowerCase(Locale.ROOT));
+                words.add(found);
+            }
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < frames.size(); i++) {
+                    for (String word : words.get(i)) {
+                        Postings postings = terms.get(word);
+                        if (postings == null) {
+                            postings = new Postings();
+                            terms.put(word, postings);
+                        }
+                        postings.add(ids[i]);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            indexedThrough = through;
+        }
+    }
+
+    // Searches on a shared thread and sends the client a page of "found <id> <user> <body>" lines, newest first,
+    // for messages older than beforeId that contain every word of the query, then "searched <id>" with the id to
+    // search before for the next page, or 0 if there are no more. A beforeId of 0 starts from the newest message.
+    public void search(ClientController client, long beforeId, List<String> query) {
+        SEARCHERS.execute(() -> {
+            if (!sessions.contains(client)) return; // The client went away in the meantime
+            List<Long> ids = find(queryTerms(query), beforeId > 0 ? beforeId : Long.MAX_VALUE, PAGE_SIZE + 1);
+            boolean more = ids.size() > PAGE_SIZE;
+            long next = 0;
+            List<Frame> frames = new ArrayList<>(1);
+            for (int i = 0; i < Math.min(ids.size(), PAGE_SIZE); i++) {
+                long id = ids.get(i);
+                frames.clear();
+                try {
+                    history.read(id - 1, id, 1, frames);
+                } catch (IOException e) {
+                    Log.warn("Couldn't read the message journal for " + client.getLogin() + ": " + e.getMessage());
+                }
+                if (!frames.isEmpty()) {
+                    Message message = Message.parse(frames.get(0));
+                    client.send(Frame.of("found " + id + " " + message.from + " ",
+                            Arrays.copyOf(message.bytes, message.bodyEnd), message.bodyStart));
+                }
+                next = id;
+            }
+            client.send(Frame.of("searched " + (more ? next : 0) + "\n"));
+        });
+    }
+
+    // Returns the ids of up to limit messages below beforeId that have every term, newest first. The rarest term
+    // drives the search and the others are only checked for the ids it turns up.
+    List<Long> find(List<String> query, long beforeId, int limit) {
+        List<Long> found = new ArrayList<>();
+        if (query.isEmpty()) return found;
+        lock.readLock().lock();
+        try {
+            List<Cursor> cursors = new ArrayList<>(query.size());
+            for (String term : query) {
+                Postings postings = terms.get(term);
+                if (postings == null) return found; // Nothing has this word, so nothing has all of them
+                cursors.add(new Cursor(postings));
+            }
+            cursors.sort(Comparator.comparingInt(cursor -> cursor.postings.count));
+            Cursor driver = cursors.get(0);
+            long id = driver.below(beforeId);
+            while (id > 0 && found.size() < limit) {
+                boolean all = true;
+                for (int i = 1; i < cursors.size() && all; i++) {
+                    all = cursors.get(i).contains(id);
+                }
+                if (all) found.add(id);
+                id = driver.below(id);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    // Turns the words of a query into index terms the same way message bodies are, "from:<user>" stays whole
+    private static List<String> queryTerms(List<String> query) {
+        List<String> result = new ArrayList<>();
+        TermScanner scanner = new TermScanner();
+        for (String word : query) {
+            if (word.regionMatches(true, 0, FROM, 0, FROM.length()) && word.length() > FROM.length()) {
+                result.add(word.toLowerCase(Locale.ROOT));
+            } else {
+                byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+                result.addAll(scanner.scan(bytes, 0, bytes.length));
+            }
+            if (result.size() >= MAX_QUERY_TERMS) return result.subList(0, MAX_QUERY_TERMS);
+        }
+        return result;
+    }
+
+    // Return the id of the newest message that has been indexed
+    public long indexedThrough() {
+        return indexedThrough;
+    }
+
+    // The ids of the messages that contain one term, in increasing order. Each block starts with an id kept in the
+    // skip list and holds the gaps to the ids after it as varints in the data array.
+    private static class Postings {
+        private static final int BLOCK_SIZE = 128;
+
+        private byte[] data = new byte[8];
+        private int length = 0;
+        private long[] blockFirstId = new long[1];
+        private int[] blockStart = new int[1];
+        private int blocks = 0;
+        private int count = 0;
+        private long lastId = 0;
+
+        // Adds an id bigger than any added before, a word that is in a message twice is only added once
+        private void add(long id) {
+            if (count > 0 && id <= lastId) return;
+            if (count % BLOCK_SIZE == 0) {
+                if (blocks == blockFirstId.length) {
+                    blockFirstId = Arrays.copyOf(blockFirstId, blocks * 2);
+                    blockStart = Arrays.copyOf(blockStart, blocks * 2);
+                }
+                blockFirstId[blocks] = id;
+                blockStart[blocks] = length;
+                blocks++;
+            } else {
+                long gap = id - lastId;
+                if (length + 10 > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+                }
+                while (gap >= 0x80) {
+                    data[length++] = (byte) (gap | 0x80);
+                    gap >>>= 7;
+                }
+                data[length++] = (byte) gap;
+            }
+            lastId = id;
+            count++;
+        }
+
+        // Returns the block the id would be in, the last one starting at or below it, or -1 if it is below them all
+        private int blockOf(long id) {
+            int low = 0;
+            int high = blocks - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (blockFirstId[middle] <= id) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        // Decodes the ids of a block into the array and returns how many there are
+        private int decode(int block, long[] ids) {
+            long id = blockFirstId[block];
+            ids[0] = id;
+            int n = 1;
+            int end = block + 1 < blocks ? blockStart[block + 1] : length;
+            int position = blockStart[block];
+            while (position < end) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                ids[n++] = id;
+            }
+            return n;
+        }
+    }
+
+    // Walks the postings of one term during a search, keeping the last decoded block since the ids asked for keep
+    // going down
+    private static class Cursor {
+        private final Postings postings;
+        private final long[] ids = new long[Postings.BLOCK_SIZE];
+        private int block = -1;
+        private int size = 0;
+
+        private Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        // Returns the biggest id below the given one, or 0 if there is none
+        private long below(long id) {
+            int b = postings.blockOf(id - 1);
+            if (b < 0) return 0;
+            load(b);
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            index = index >= 0 ? index - 1 : -index - 2;
+            return index >= 0 ? ids[index] : 0;
+        }
+
+        // Returns true if the term is in the message with the given id
+        private boolean contains(long id) {
+            int b = postings.blockOf(id);
+            if (b < 0) return false;
+            load(b);
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        private void load(int b) {
+            if (b != block) {
+                size = postings.decode(b, ids);
+                block = b;
+            }
+        }
+    }
+
+    // Splits text into lower case words of letters and digits. Bytes of multi-byte characters count as letters, so
+    // words in any script are kept whole, and only those words are decoded to be lower cased.
+    private static class TermScanner {
+        private final byte[] term = new byte[MAX_TERM_BYTES];
+
+        // Returns the distinct terms of the bytes from start up to end
+        private List<String> scan(byte[] bytes, int start, int end) {
+            List<String> found = new ArrayList<>();
+            int length = 0;
+            boolean ascii = true;
+            for (int i = start; i <= end; i++) {
+                int b = i < end ? bytes[i] : ' ';
+                boolean letter = b < 0 || (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+                if (letter) {
+                    if (b < 0) {
+                        ascii = false;
+                    } else if (b >= 'A' && b <= 'Z') {
+                        b += 'a' - 'A';
+                    }
+                    if (length < term.length) term[length++] = (byte) b;
+                    continue;
+                }
+                if (length >= MIN_TERM_BYTES) {
+                    String word = ascii ? new String(term, 0, length, StandardCharsets.US_ASCII)
+                            : new String(term, 0, length, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+                    if (!found.contains(word)) found.add(word);
+                }
+                length = 0;
+                ascii = true;
+            }
+            return found;
+        }
+    }
+
+    // The parts of an encoded "msgid <id> <from> <body>" frame from the history
+    private static class Message {
+        private final long id;
+        private final String from;
+        private final byte[] bytes;
+        private final int bodyStart;
+        private final int bodyEnd;
+
+        private Message(long id, String from, byte[] bytes, int bodyStart, int bodyEnd) {
+            this.id = id;
+            this.from = from;
+            this.bytes = bytes;
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyEnd;
+        }
+
+        private static Message parse(Frame frame) {
+            byte[] bytes = new byte[frame.length()];
+            frame.copyTo(bytes, 0);
+            int idStart = "msgid ".length();
+            int idEnd = indexOf(bytes, ' ', idStart);
+            int fromEnd = indexOf(bytes, ' ', idEnd + 1);
+            int bodyEnd = bytes.length > 0 && bytes[bytes.length - 1] == '\n' ? bytes.length - 1 : bytes.length;
+            long id = Long.parseLong(new String(bytes, idStart, idEnd - idStart, StandardCharsets.US_ASCII));
+            String from = new String(bytes, idEnd + 1, fromEnd - idEnd - 1, StandardCharsets.UTF_8);
+            return new Message(id, from, bytes, Math.min(fromEnd + 1, bodyEnd), bodyEnd);
+        }
+
+        private static int indexOf(byte[] bytes, char c, int from) {
+            int i = from;
+            while (i < bytes.length && bytes[i] != c && bytes[i] != '\n') {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    // Names the search threads and keeps them from holding the server up on shutdown
+    private static class SearchThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "search-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -5,16 +5,68 @@
 
 import java.io.IOException;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 public class Server extends Thread {
-    private int port;
-    private ArrayList<ClientController> controllerList = new ArrayList<>();
+    protected int port;
+    private final SessionRegistry sessions = new SessionRegistry(FanOut.configuredShards());
+    // Counters and latencies of the hot paths, scraped over HTTP or read over JMX
+    private final ServerMetrics metrics = new ServerMetrics(sessions);
+    // Threads that send broadcasts to the shards of the registry, null when -Dchat.fanout.threads isn't above 1
+    private final FanOut fanOut = FanOut.startConfigured(sessions, metrics);
+    // One shared timer thread for periodic and delayed server work, instead of a thread per timer
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "server-timers");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final PresenceTracker presence = new PresenceTracker(sessions, scheduler);
+    private final RoomRegistry rooms = new RoomRegistry();
+    // Token buckets that keep any one login or address from flooding the server
+    private final RateLimiter rateLimiter = new RateLimiter(scheduler);
+    // Client ids of recent posts, so a post resent after a reconnect isn't broadcast twice
+    private final PostTracker posts = new PostTracker(scheduler);
+    // Durable log of every broadcast, null when -Dchat.journal.dir isn't set
+    private final MessageJournal journal;
+    // Hands out message ids and keeps recent broadcasts for replay
+    private final MessageHistory history;
+    // Full-text index over the history, null when -Dchat.search.enabled=false
+    private final SearchIndex search;
+    // Spool and port for file transfers, null when -Dchat.files.port isn't set
+    private final FileTransfers files;
+    // Link to the other nodes of the cluster, null when -Dchat.cluster.port isn't set
+    private final ClusterNode cluster;
+    // Creates the thread each client controller runs on
+    private final ThreadFactory clientThreadFactory;
 
-    // Constructor takes in a port, which is set to this server's field
+    // Constructor takes in a port, which is set to this server's field. Clients get a platform thread each.
     public Server(int port) {
+        this(port, false);
+    }
+
+    // Constructor takes in a port and whether each client should run on a virtual thread instead of a platform thread
+    public Server(int port, boolean virtualThreads) {
         this.port = port;
+        ThreadFactory factory = virtualThreads ? virtualThreadFactory() : null;
+        if (virtualThreads && factory == null) {
+            Log.warn("Virtual threads need Java 21 or newer. Falling back to platform threads.");
+        }
+        this.clientThreadFactory = factory != null ? factory : Thread::new;
+
+        this.journal = MessageJournal.openConfigured(metrics);
+        if (journal != null) {
+            // Write out whatever is still queued when the server is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "journal-shutdown"));
+        }
+        this.history = new MessageHistory(journal);
+        this.search = SearchIndex.startConfigured(history, sessions);
+        this.files = FileTransfers.startConfigured(this, scheduler);
+        this.cluster = ClusterNode.startConfigured(this);
+        new IdleReaper(sessions).start(scheduler);
+        metrics.start(scheduler);
+        MetricsEndpoint.startConfigured(metrics);
     }
 
     @Override
@@ -24,29 +76,149 @@ public class Server extends Thread {
             ServerSocket serverSocket = new ServerSocket(this.port);
             String ip = InetAddress.getLocalHost().getHostAddress();
             // Print out the ip and port
-            System.out.println("Server listening at: " + ip + ":"+ port);
+            Log.info("Server listening at: " + ip + ":"+ port);
             // Continuouslly check for new connections
             while (true) {
                 // Whenever a user connects to port, a socket is formed
                 Socket socket = serverSocket.accept(); // blocking!
+                // Lets the OS find half-open connections of clients that don't do heartbeats
+                socket.setKeepAlive(true);
+                // Queued lines are already written in batches, Nagle would only hold them back until an ack arrives
+                socket.setTcpNoDelay(true);
                 // Create a new client controller and pass the server object and the socket to it
                 ClientController clientController = new ClientController(this, socket);
-                controllerList.add(clientController);
+                sessions.add(clientController);
                 // Handle future requests with this client on a separate thread
-                clientController.start();
+                newClientThread(clientController).start();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("The server stopped accepting clients.", e);
+        }
+    }
+
+    // Stamps a broadcast with the next id, keeps it for replay and sends it to every connected client. The body is
+    // copied straight from the received line after skipping the given number of arguments. Returns the plain
+    // "msg <from> <body>" frame, which is also what gets relayed to the rest of the cluster.
+    public Frame broadcast(String from, ProtocolLine line, int skipArguments) {
+        return broadcast(history.nextId(), from, line, skipArguments);
+    }
+
+    // Same as above with an id that was already taken from nextMessageId, for callers that need to know it
+    public Frame broadcast(long id, String from, ProtocolLine line, int skipArguments) {
+        long start = System.nanoTime();
+        // Frame and encode the message once per protocol variant. Every recipient writes the same bytes.
+        String idPrefix = "msgid " + id + " ";
+        return broadcast(id, idPrefix.length(), Frame.of(idPrefix + from + " ", line, skipArguments),
+                Frame.of("msg " + from + " ", line, skipArguments), start);
+    }
+
+    // Same as above for a body that was already decoded into bytes of its own, like one relayed by another node
+    public Frame broadcast(String from, byte[] body) {
+        long start = System.nanoTime();
+        long id = history.nextId();
+        String idPrefix = "msgid " + id + " ";
+        return broadcast(id, idPrefix.length(), Frame.of(idPrefix + from + " ", body, 0),
+                Frame.of("msg " + from + " ", body, 0), start);
+    }
+
+    // Keeps the framed broadcast for replay and sends it to every connected client, the variant with the id to
+    // clients that asked for ids
+    private Frame broadcast(long id, int idPrefixLength, Frame msgWithId, Frame msg, long start) {
+        // Keep it for replay before the fan-out, the journal copies and writes it on its own thread
+        history.record(id, msgWithId, idPrefixLength);
+        if (fanOut != null) {
+            // The shard threads send it and record the latency once the last of them is done
+            fanOut.send(msgWithId, msg, start);
+            return msg;
         }
+        // Send a message to each controller connected
+        for (ClientController controller : sessions.sessions()) {
+            controller.send(controller.hasCapability(Capability.IDS) ? msgWithId : msg);
+        }
+        metrics.messageBroadcast(System.nanoTime() - start);
+        return msg;
+    }
+
+    // Returns the id for a new broadcast, to be passed to broadcast
+    public long nextMessageId() {
+        return history.nextId();
+    }
+
+    // Creates an unstarted thread for client work, virtual or platform depending on the server mode
+    public Thread newClientThread(Runnable task) {
+        return clientThreadFactory.newThread(task);
+    }
+
+    // Looks up Thread.ofVirtual() reflectively so the server still compiles and runs on JDKs older than 21.
+    // Returns null when virtual threads aren't available.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "client-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Getter method that returns the registry of every connected client
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    // Getter method that returns the tracker that sends roster snapshots and presence deltas
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+
+    // Getter method that returns the index of chat rooms and their members
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    // Getter method that returns the message journal, or null when the server runs without one
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    // Getter method that returns the history that assigns message ids and replays missed broadcasts
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    // Getter method that returns this node's link to the rest of the cluster, or null when it runs alone
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    // Getter method that returns the counters and latencies of the server
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Getter method that returns the rate limits every client's lines are checked against
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    // Getter method that returns the full-text index over the history, or null when search is turned off
+    public SearchIndex getSearch() {
+        return search;
+    }
+
+    // Getter method that returns the file transfers, or null when they are turned off
+    public FileTransfers getFiles() {
+        return files;
     }
 
-    // Getter method that returns the list of controllers to the caller
-    public List<ClientController> getControllerList () {
-        return controllerList;
+    // Getter method that returns the client ids of recent posts
+    public PostTracker getPosts() {
+        return posts;
     }
 
-    // Method that removes the gives controller
-    public void removeController(ClientController clientController) {
-        controllerList.remove(clientController);
+    // Getter method that returns the shared scheduler for timed server work
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
     }
 }
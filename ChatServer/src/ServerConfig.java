@@ -0,0 +1,64 @@
+/*
+ * Author: Adin Geist
+ * Description: Reads the server's tuning settings from -Dchat.* system properties, falling back to sensible defaults
+ *              when a setting is missing or can't be parsed.
+ */
+
+import java.util.Locale;
+
+public class ServerConfig {
+    private ServerConfig() {
+    }
+
+    // Returns the integer setting with the given name, e.g. getInt("outbound.capacity", 1024) reads chat.outbound.capacity
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getProperty("chat." + name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Setting chat." + name + " isn't an integer. Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    // Returns the long setting with the given name
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getProperty("chat." + name);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Setting chat." + name + " isn't an integer. Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    // Returns the true or false setting with the given name
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getProperty("chat." + name);
+        if (value == null) return defaultValue;
+        if (value.trim().equalsIgnoreCase("true")) return true;
+        if (value.trim().equalsIgnoreCase("false")) return false;
+        System.out.println("Setting chat." + name + " isn't true or false. Using " + defaultValue + ".");
+        return defaultValue;
+    }
+
+    // Returns the string setting with the given name
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty("chat." + name);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    // Returns the enum setting with the given name, matched without case and with - standing in for _
+    public static <E extends Enum<E>> E getEnum(String name, E defaultValue) {
+        String value = System.getProperty("chat." + name);
+        if (value == null) return defaultValue;
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Setting chat." + name + " can't be \"" + value + "\". Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
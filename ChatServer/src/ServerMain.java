@@ -23,8 +23,21 @@ public class ServerMain {
                 System.out.println("Port provided wasn't an integer. Starting on port 8818.");
             }
         }
+        // Ask the server admin how connections should be handled
+        System.out.println("Enter server mode, threads, virtual or nio (press enter for default, threads):\n");
+        String mode = scanner.nextLine().trim();
         // Start a new server on the provided or default port
-        Server server = new Server(port);
+        Server server;
+        if (mode.equalsIgnoreCase("nio")) {
+            server = new NioServer(port); // A few event loops handle every connection
+        } else if (mode.equalsIgnoreCase("virtual")) {
+            server = new Server(port, true); // One cheap virtual thread per connection
+        } else {
+            if (!mode.isEmpty() && !mode.equalsIgnoreCase("threads")) {
+                System.out.println("Unknown server mode \"" + mode + "\". Starting in threads mode.");
+            }
+            server = new Server(port); // One thread per connection
+        }
         server.start();
     }
 }
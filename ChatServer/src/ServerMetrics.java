@@ -0,0 +1,242 @@
+/*
+ * Author: Adin Geist
+ * Description: Counters and latencies of the server's hot paths. Counting is a LongAdder increment or a histogram
+ *              bucket increment, so every client thread can record without contending on a lock, and the totals are
+ *              only added up when someone reads them through the scrape endpoint or JMX.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class ServerMetrics implements ServerMetricsMBean {
+    private final SessionRegistry sessions;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    private final LongAdder rateLimitedLines = new LongAdder();
+    private final LongAdder rateLimitDisconnects = new LongAdder();
+    // Broadcasts a sender delivered for a fan-out shard that had fallen a whole queue behind, counted per shard
+    private final LongAdder fanOutOverflows = new LongAdder();
+    // Broadcasts the journal couldn't take because it had fallen a whole queue behind or stopped on an error
+    private final LongAdder journalDrops = new LongAdder();
+    // How long it takes to hand one broadcast to every client's queue
+    private final LatencyHistogram fanOutLatency = new LatencyHistogram();
+    // Rates over the last second, worked out by the sampler on the server's timer thread
+    private volatile double loginsPerSecond = 0;
+    private volatile double messagesPerSecond = 0;
+    private long lastLogins = 0;
+    private long lastMessages = 0;
+    private long lastSampleNanos = System.nanoTime();
+
+    // Constructor that accepts the registry whose clients are counted
+    public ServerMetrics(SessionRegistry sessions) {
+        this.sessions = sessions;
+    }
+
+    // Starts working out the rates every second on the scheduler and shows the metrics over JMX
+    public void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+        } catch (JMException e) {
+            Log.warn("Couldn't show the server metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    // Counts a successful login
+    public void loginSucceeded() {
+        logins.increment();
+    }
+
+    // Counts a broadcast and how long its fan-out took
+    public void messageBroadcast(long fanOutNanos) {
+        messages.increment();
+        fanOutLatency.record(fanOutNanos);
+    }
+
+    // Counts bytes read from a client
+    public void bytesRead(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    // Counts bytes written to a client
+    public void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    // Counts a client disconnected because its outbound queue overflowed
+    public void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    // Counts a line dropped for going over the rate limits
+    public void lineRateLimited() {
+        rateLimitedLines.increment();
+    }
+
+    // Counts a client disconnected for going over the rate limits too often
+    public void rateLimitDisconnected() {
+        rateLimitDisconnects.increment();
+    }
+
+    // Counts a broadcast a sender delivered itself because a fan-out shard was a whole queue behind
+    public void fanOutOverflowed() {
+        fanOutOverflows.increment();
+    }
+
+    // Counts a broadcast that wasn't journaled
+    public void journalDropped() {
+        journalDrops.increment();
+    }
+
+    // Return the histogram of fan-out latencies in nanoseconds
+    public LatencyHistogram getFanOutLatency() {
+        return fanOutLatency;
+    }
+
+    // Return the registry of clients, for per-client numbers
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    // Works out the rates since the last sample
+    private void sample() {
+        long now = System.nanoTime();
+        long currentLogins = logins.sum();
+        long currentMessages = messages.sum();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        if (seconds > 0) {
+            loginsPerSecond = (currentLogins - lastLogins) / seconds;
+            messagesPerSecond = (currentMessages - lastMessages) / seconds;
+        }
+        lastLogins = currentLogins;
+        lastMessages = currentMessages;
+        lastSampleNanos = now;
+    }
+
+    @Override
+    public int getConnectedSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        return sessions.loginCount();
+    }
+
+    @Override
+    public long getLogins() {
+        return logins.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public double getLoginsPerSecond() {
+        return loginsPerSecond;
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getRateLimitedLines() {
+        return rateLimitedLines.sum();
+    }
+
+    @Override
+    public long getRateLimitDisconnects() {
+        return rateLimitDisconnects.sum();
+    }
+
+    @Override
+    public long getFanOutOverflows() {
+        return fanOutOverflows.sum();
+    }
+
+    @Override
+    public long getJournalDrops() {
+        return journalDrops.sum();
+    }
+
+    @Override
+    public long getFanOutLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanOutLatency.percentile(0.5));
+    }
+
+    @Override
+    public long getFanOutLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanOutLatency.percentile(0.99));
+    }
+
+    @Override
+    public long getFanOutLatencyP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanOutLatency.percentile(0.999));
+    }
+
+    @Override
+    public long getFanOutLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(fanOutLatency.max());
+    }
+
+    @Override
+    public int getOutboundQueueDepthMax() {
+        int max = 0;
+        for (ClientController session : sessions.sessions()) {
+            max = Math.max(max, session.getOutboundQueue().depth());
+        }
+        return max;
+    }
+
+    @Override
+    public double getProcessCpuLoad() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getOutboundQueueDepthTotal() {
+        long total = 0;
+        for (ClientController session : sessions.sessions()) {
+            total += session.getOutboundQueue().depth();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Author: Adin Geist
+ * Description: What the server's metrics show over JMX, under chat:type=ServerMetrics. Latencies are in
+ *              microseconds, rates are per second over the last second.
+ */
+
+public interface ServerMetricsMBean {
+    int getConnectedSessions();
+
+    int getLoggedInUsers();
+
+    long getLogins();
+
+    long getMessages();
+
+    double getLoginsPerSecond();
+
+    double getMessagesPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSlowConsumerDisconnects();
+
+    long getRateLimitedLines();
+
+    long getRateLimitDisconnects();
+
+    long getFanOutOverflows();
+
+    long getJournalDrops();
+
+    long getFanOutLatencyP50Micros();
+
+    long getFanOutLatencyP99Micros();
+
+    long getFanOutLatencyP999Micros();
+
+    long getFanOutLatencyMaxMicros();
+
+    int getOutboundQueueDepthMax();
+
+    long getOutboundQueueDepthTotal();
+
+    // Between 0 and 1 of the whole machine, -1 if the JVM can't tell
+    double getProcessCpuLoad();
+
+    long getHeapUsedBytes();
+}
@@ -0,0 +1,213 @@
+/*
+ * Author: Adin Geist
+ * Description: Thread-safe registry of every client connected to the server, with an index of logged in users by
+ *              their login name. Iterating never locks or throws while other threads connect and disconnect clients.
+ *              In a cluster it also holds the logins of users on the other nodes, so names stay unique everywhere.
+ *              Clients can also be split into fixed shards, so broadcasts can be sent to each shard on its own thread.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SessionRegistry {
+    // Placeholder for clients that haven't claimed a login yet, since the map can't hold nulls
+    private static final String NO_LOGIN = "";
+
+    // Every connected client, logged in or not, mapped to the key of the login it holds
+    private final ConcurrentHashMap<ClientController, String> sessions = new ConcurrentHashMap<>();
+    // Logged in clients keyed by their lower case login, so names are unique regardless of case
+    private final ConcurrentHashMap<String, ClientController> byLogin = new ConcurrentHashMap<>();
+    // Logins held by users on other cluster nodes, keyed the same way
+    private final ConcurrentHashMap<String, RemoteLogin> remote = new ConcurrentHashMap<>();
+    // Every connected client again, split by shard. Empty when the registry isn't sharded.
+    private final List<Set<ClientController>> shards = new ArrayList<>();
+
+    // Constructor for a registry that isn't split into shards
+    public SessionRegistry() {
+        this(0);
+    }
+
+    // Constructor for a registry whose clients are split into the given number of shards
+    public SessionRegistry(int shardCount) {
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    // Adds a newly connected client
+    public void add(ClientController clientController) {
+        sessions.put(clientController, NO_LOGIN);
+        if (!shards.isEmpty()) {
+            shardOf(clientController).add(clientController);
+        }
+    }
+
+    // Removes a client and releases its login. Returns false if it was already removed.
+    public boolean remove(ClientController clientController) {
+        String key = sessions.remove(clientController);
+        if (key == null) return false;
+        if (!shards.isEmpty()) {
+            shardOf(clientController).remove(clientController);
+        }
+        if (!key.equals(NO_LOGIN)) {
+            byLogin.remove(key, clientController);
+        }
+        return true;
+    }
+
+    // Atomically reserves the login for the given client and releases the one it held before, if any. Returns false
+    // if another client already holds the login or the client disconnected in the meantime.
+    public boolean claimLogin(String login, ClientController clientController) {
+        String key = key(login);
+        ClientController owner = byLogin.putIfAbsent(key, clientController);
+        if (owner != null && owner != clientController) return false;
+        if (owner == null && remote.containsKey(key)) {
+            // A user on another node has it. reserveRemote() checks the other way round, so at most one side wins.
+            byLogin.remove(key, clientController);
+            return false;
+        }
+
+        // Record the claim on the session. This can't interleave with remove(), so either remove() sees the new key
+        // and releases it, or we see the session is gone and release it ourselves.
+        String[] previous = new String[1];
+        String current = sessions.computeIfPresent(clientController, (session, oldKey) -> {
+            previous[0] = oldKey;
+            return key;
+        });
+        if (current == null) {
+            byLogin.remove(key, clientController);
+            return false;
+        }
+        if (!previous[0].equals(NO_LOGIN) && !previous[0].equals(key)) {
+            byLogin.remove(previous[0], clientController); // Logging in again under a new name frees up the old one
+        }
+        return true;
+    }
+
+    // Gives up a login taken with claimLogin(), used when another cluster node turned it down
+    public void releaseLogin(String login, ClientController clientController) {
+        String key = key(login);
+        sessions.computeIfPresent(clientController, (session, oldKey) -> oldKey.equals(key) ? NO_LOGIN : oldKey);
+        byLogin.remove(key, clientController);
+    }
+
+    // Reserves the login for a user on another node while that node checks it with the cluster. Returns false if a
+    // local client or a different node already holds it.
+    public boolean reserveRemote(String login, String node) {
+        String key = key(login);
+        RemoteLogin holder = remote.computeIfAbsent(key, k -> new RemoteLogin(login, node));
+        if (!holder.node.equals(node)) return false;
+        if (byLogin.containsKey(key)) {
+            remote.remove(key, holder);
+            return false;
+        }
+        return true;
+    }
+
+    // Marks a user on another node as online, reserving the login first if it wasn't already. Returns true if they
+    // weren't online before, so they should be announced.
+    public boolean addRemote(String login, String node) {
+        if (!reserveRemote(login, node)) return false;
+        RemoteLogin holder = remote.get(key(login));
+        if (holder == null || holder.online) return false;
+        holder.online = true;
+        return true;
+    }
+
+    // Drops a user of another node. Returns true if they had been announced online, so they should be announced
+    // offline.
+    public boolean removeRemote(String login, String node) {
+        String key = key(login);
+        RemoteLogin holder = remote.get(key);
+        return holder != null && holder.node.equals(node) && remote.remove(key, holder) && holder.online;
+    }
+
+    // Drops every user of a node that left the cluster and returns the ones that had been announced online
+    public List<String> removeNode(String node) {
+        List<String> removed = new ArrayList<>();
+        for (RemoteLogin holder : remote.values()) {
+            if (holder.node.equals(node) && remote.remove(key(holder.login), holder) && holder.online) {
+                removed.add(holder.login);
+            }
+        }
+        return removed;
+    }
+
+    // Returns the node a user on another node is logged in on, or null if no other node has them
+    public String findRemote(String login) {
+        RemoteLogin holder = remote.get(key(login));
+        return holder != null && holder.online ? holder.node : null;
+    }
+
+    // Returns the logins of everyone online on the other nodes
+    public List<String> remoteLogins() {
+        List<String> logins = new ArrayList<>();
+        for (RemoteLogin holder : remote.values()) {
+            if (holder.online) {
+                logins.add(holder.login);
+            }
+        }
+        return logins;
+    }
+
+    // Returns the client logged in with the given login, or null if nobody is
+    public ClientController find(String login) {
+        return byLogin.get(key(login));
+    }
+
+    // Returns a live read-only view of every connected client that is safe to iterate from any thread
+    public Set<ClientController> sessions() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    // Returns the number of shards the clients are split into, 0 when they aren't
+    public int shardCount() {
+        return shards.size();
+    }
+
+    // Returns a view of the clients in one shard. A client stays in the same shard for as long as it is connected.
+    public Set<ClientController> shard(int index) {
+        return Collections.unmodifiableSet(shards.get(index));
+    }
+
+    // Returns the shard a client belongs to, picked by its identity so it never changes
+    private Set<ClientController> shardOf(ClientController clientController) {
+        return shards.get(Math.floorMod(System.identityHashCode(clientController), shards.size()));
+    }
+
+    // Returns true if the client is still connected
+    public boolean contains(ClientController clientController) {
+        return sessions.containsKey(clientController);
+    }
+
+    // Returns the number of connected clients
+    public int size() {
+        return sessions.size();
+    }
+
+    // Returns the number of logged in clients
+    public int loginCount() {
+        return byLogin.size();
+    }
+
+    // Logins are compared without case
+    private static String key(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    // A login held on another cluster node. It is only reserved until that node announces the user online.
+    private static class RemoteLogin {
+        private final String login;
+        private final String node;
+        private volatile boolean online = false;
+
+        private RemoteLogin(String login, String node) {
+            this.login = login;
+            this.node = node;
+        }
+    }
+}
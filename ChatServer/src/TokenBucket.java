@@ -0,0 +1,50 @@
+/*
+ * Author: Adin Geist
+ * Description: Lock-free token bucket. Instead of a token count that a timer tops up, it keeps the single time at
+ *              which the bucket will be full again, so taking tokens is a clock read and one compare-and-set, and
+ *              refilling costs nothing at all.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+    private final long capacity;
+    // How long the bucket takes to refill a single token
+    private final long nanosPerToken;
+    // How far fullAt may be ahead of now, the time a completely empty bucket takes to refill
+    private final long burstNanos;
+    // When the bucket will be full again if nothing else is taken, in System.nanoTime()
+    private final AtomicLong fullAt;
+
+    // Constructor that accepts how many tokens come back per second and the most the bucket holds. It starts full.
+    public TokenBucket(double tokensPerSecond, long capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond));
+        this.burstNanos = this.capacity * nanosPerToken;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // Takes the given number of tokens and returns true, or returns false and takes none if there aren't enough.
+    // Asking for more than the bucket can hold takes all of it once it is full.
+    public boolean tryAcquire(long tokens) {
+        long cost = Math.min(Math.max(0, tokens), capacity) * nanosPerToken;
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            if (next - now > burstNanos) return false;
+            if (fullAt.compareAndSet(current, next)) return true;
+        }
+    }
+
+    // Gives back tokens taken by tryAcquire, when what they were taken for was refused by another bucket after all
+    public void release(long tokens) {
+        fullAt.getAndAdd(-Math.min(Math.max(0, tokens), capacity) * nanosPerToken);
+    }
+
+    // Returns true if the bucket has refilled completely, so forgetting it would change nothing
+    public boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
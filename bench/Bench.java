@@ -0,0 +1,120 @@
+/*
+ * Author: Adin Geist
+ * Description: What the benchmarks share: their bench.* settings, a server started in the benchmark's own JVM, and
+ *              the allocation counters and percentiles they report with. Plain main classes with a warmup before
+ *              each measurement, as the tree has no benchmark framework to run them under.
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+final class Bench {
+    private Bench() {
+    }
+
+    // Turns off the rate limits and quiets the log. Settings are read once, when the server classes load, so this
+    // has to run before the first server starts. Anything set on the command line wins.
+    static void configure() {
+        setDefault("chat.limit.messagesPerSecond", "0");
+        setDefault("chat.limit.bytesPerSecond", "0");
+        setDefault("chat.limit.loginsPerSecond", "0");
+        setDefault("chat.log.level", "WARN");
+    }
+
+    // Sets a system property unless it was already given
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    // Reads an integer bench.* setting
+    static int integer(String name, int defaultValue) {
+        return Integer.getInteger("bench." + name, defaultValue);
+    }
+
+    // Reads a bench.* setting
+    static String string(String name, String defaultValue) {
+        return System.getProperty("bench." + name, defaultValue);
+    }
+
+    // Reads a comma separated bench.* setting of integers, e.g. the crowd sizes to measure
+    static int[] integers(String name, String defaultValue) {
+        return Arrays.stream(string(name, defaultValue).split(",")).mapToInt(value -> Integer.parseInt(value.trim()))
+                .toArray();
+    }
+
+    // The port of the server given with bench.port, or else of one started in this JVM in the given mode. A
+    // separate server process doubles the connections a benchmark can open before running out of file descriptors.
+    static int serverPort(String mode) throws IOException, InterruptedException {
+        int port = integer("port", 0);
+        return port > 0 ? port : startServer(mode);
+    }
+
+    // Starts a server in the given mode, threads, virtual or nio, and returns its port once it accepts connections
+    static int startServer(String mode) throws IOException, InterruptedException {
+        int port = freePort();
+        Server server = mode.equals("nio") ? new NioServer(port) : new Server(port, mode.equals("virtual"));
+        server.setDaemon(true);
+        server.start();
+        awaitPort(port);
+        return port;
+    }
+
+    // Returns a port nothing listens on right now
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Waits until a server accepts connections on the port, or fails after ten seconds
+    static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // Bytes allocated so far by every platform thread except the given ones, usually the benchmark's own. Virtual
+    // threads aren't counted, so measure allocations in threads or nio mode.
+    static long allocatedBytes(Thread... excluded) {
+        Set<Long> skip = new HashSet<>();
+        for (Thread thread : excluded) {
+            skip.add(thread.getId());
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] > 0 && !skip.contains(ids[i])) {
+                total += allocated[i];
+            }
+        }
+        return total;
+    }
+
+    // The value below which the given fraction of the sorted samples lie
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    // Nanoseconds as milliseconds with a fraction, for printing
+    static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
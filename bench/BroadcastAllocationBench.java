@@ -0,0 +1,57 @@
+/*
+ * Author: Adin Geist
+ * Description: Measures how many bytes the server allocates per broadcast as the number of clients grows. A line
+ *              encoded once and shared by every recipient keeps this nearly flat, where encoding it per recipient
+ *              grows with every client.
+ *
+ *              java -Dbench.mode=nio -Dbench.users=10,100,1000 -cp out BroadcastAllocationBench
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class BroadcastAllocationBench {
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        String mode = Bench.string("mode", "nio");
+        int[] sizes = Bench.integers("users", "10,100,1000");
+        int broadcasts = Bench.integer("broadcasts", 2000);
+        int window = Bench.integer("window", 64);
+        byte[] line = ("msg " + "x".repeat(Bench.integer("payloadBytes", 100)) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        int port = Bench.startServer(mode);
+        System.out.println("mode=" + mode + " broadcasts=" + broadcasts + " payload=" + (line.length - 5) + " bytes");
+        try (Crowd crowd = new Crowd(port, "user", 0, "hello roster")) {
+            Arrays.sort(sizes);
+            for (int users : sizes) {
+                crowd.grow(users);
+                crowd.awaitQuiet(300);
+                broadcast(crowd, line, broadcasts, window); // Warmup
+                long before = Bench.allocatedBytes(Thread.currentThread(), crowd.reader());
+                long start = System.nanoTime();
+                broadcast(crowd, line, broadcasts, window);
+                long elapsed = System.nanoTime() - start;
+                long allocated = Bench.allocatedBytes(Thread.currentThread(), crowd.reader()) - before;
+                System.out.printf("users=%-6d %10.0f bytes/broadcast %8.1f bytes/recipient %9.1f us/broadcast%n",
+                        users, (double) allocated / broadcasts, (double) allocated / broadcasts / users,
+                        elapsed / 1e3 / broadcasts);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Broadcasts the line from the first user, never more than the window ahead of what everyone received
+    private static void broadcast(Crowd crowd, byte[] line, int broadcasts, int window) throws Exception {
+        long base = crowd.awaitQuiet(50);
+        int users = crowd.size();
+        for (int sent = 0; sent < broadcasts; sent++) {
+            if (sent >= window && !crowd.awaitLines(base + (long) (sent - window) * users, 30_000)) {
+                throw new IllegalStateException("Broadcast " + (sent - window) + " never reached everyone");
+            }
+            crowd.send(0, line);
+        }
+        if (!crowd.awaitLines(base + (long) broadcasts * users, 30_000)) {
+            throw new IllegalStateException("The last broadcasts never reached everyone");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Author: Adin Geist
+ * Description: Compares the two wire formats for the line a client receives most, a msgid broadcast. Reports the
+ *              bytes on the wire per line and the time to decode a stream of them and read every field, with
+ *              LineDecoder for text (v1) and BinaryDecoder for binary frames (v2).
+ *
+ *              java -Dbench.lines=1000000 -Dbench.rounds=5 -cp out CodecBench
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class CodecBench {
+    // A typical broadcast as the server sends it to a client with the ids capability
+    private static final String LINE = "msgid 1048576 alice are we still on for the review at three?";
+    // Keeps the JIT from throwing the work away
+    private static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        Bench.configure();
+        int lines = Bench.integer("lines", 1_000_000);
+        int rounds = Bench.integer("rounds", 5);
+        byte[] text = (LINE + "\n").getBytes(StandardCharsets.UTF_8);
+        int bodyStart = LINE.indexOf(' ', LINE.indexOf(' ', "msgid ".length()) + 1) + 1;
+        byte[] frame = BinaryCodec.fromText(text, text.length - 1, bodyStart);
+        System.out.println(lines + " lines: v1 " + text.length + " bytes/line, v2 " + frame.length + " bytes/line");
+
+        byte[] v1 = repeat(text, lines);
+        byte[] v2 = repeat(frame, lines);
+        for (int round = 0; round < rounds; round++) { // Warmup
+            decode(new LineDecoder(), v1);
+            decode(new BinaryDecoder(), v2);
+        }
+        for (int round = 0; round < rounds; round++) {
+            report("v1", lines, new LineDecoder(), v1);
+            report("v2", lines, new BinaryDecoder(), v2);
+        }
+    }
+
+    // Decodes one stream and prints the time and allocations per line
+    private static void report(String name, int lines, ProtocolDecoder decoder, byte[] input) throws IOException {
+        long allocatedBefore = Bench.allocatedBytes();
+        long start = System.nanoTime();
+        sink += decode(decoder, input);
+        long elapsed = System.nanoTime() - start;
+        long allocated = Bench.allocatedBytes() - allocatedBefore;
+        System.out.printf("%s: %6.1f ns/line %7.1f bytes allocated/line%n", name, (double) elapsed / lines,
+                (double) allocated / lines);
+    }
+
+    // Decodes every line and reads its id, sender and body the way ChatClient does
+    private static long decode(ProtocolDecoder decoder, byte[] input) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(input);
+        long checksum = 0;
+        ProtocolLine line;
+        while ((line = decoder.decode(buffer)) != null) {
+            checksum += Long.parseLong(line.argument(0)) + line.argument(1).length() + line.argument(2).length();
+        }
+        return checksum;
+    }
+
+    // The bytes repeated that many times
+    private static byte[] repeat(byte[] bytes, int times) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(bytes.length * times);
+        for (int i = 0; i < times; i++) {
+            stream.write(bytes, 0, bytes.length);
+        }
+        return stream.toByteArray();
+    }
+}
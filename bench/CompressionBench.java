@@ -0,0 +1,133 @@
+/*
+ * Author: Adin Geist
+ * Description: Measures what compressing large v2 broadcasts saves and costs, with a pasted stack trace as the
+ *              body. First the time and size of compressing its frame once at each deflate level, then the same
+ *              broadcasts sent to a crowd of text clients, v2 clients and v2 clients with deflate. Reports the bytes
+ *              each recipient got per broadcast and the CPU time per broadcast, which includes the server started
+ *              in this JVM and the crowd reading, the same for all three.
+ *
+ *              java -Dbench.mode=nio -Dbench.users=200 -Dbench.broadcasts=500 -cp out CompressionBench
+ *              java -Dchat.compress.level=6 -cp out CompressionBench
+ */
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+public class CompressionBench {
+    // Where the stack trace is thrown from, one line of it each
+    private static final String[] CALLS = {
+            "com.example.shop.order.OrderService.submit(OrderService.java:",
+            "com.example.shop.order.OrderValidator.check(OrderValidator.java:",
+            "com.example.shop.inventory.StockClient.reserve(StockClient.java:",
+            "com.example.shop.http.RetryingHttpClient.send(RetryingHttpClient.java:",
+            "java.base/java.util.concurrent.FutureTask.run(FutureTask.java:",
+            "java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:",
+    };
+    // Keeps the JIT from throwing the work away
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        String mode = Bench.string("mode", "nio");
+        int users = Bench.integer("users", 200);
+        int broadcasts = Bench.integer("broadcasts", 500);
+        int compressions = Bench.integer("compressions", 20_000);
+        int window = Bench.integer("window", 16);
+        String body = stackTrace(Bench.integer("traceLines", 60));
+
+        String line = "msgid 1048576 alice " + body;
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = BinaryCodec.fromText(text, text.length, line.length() - body.length());
+        System.out.println("body of " + body.length() + " bytes, v2 frame of " + frame.length + " bytes");
+        for (int level : Bench.integers("levels", "1,6,9")) {
+            compress(level, frame, compressions);
+        }
+
+        int port = Bench.serverPort(mode);
+        System.out.println("mode=" + mode + " users=" + users + " broadcasts=" + broadcasts);
+        broadcast("text", port, null, body, users, broadcasts, window);
+        broadcast("v2", port, "hello v2", body, users, broadcasts, window);
+        broadcast("deflate", port, "hello v2 deflate", body, users, broadcasts, window);
+        System.exit(0);
+    }
+
+    // Compresses the frame over and over with one Deflater, the way the server does once per broadcast, and prints
+    // the size it shrank to and the time it took
+    private static void compress(int level, byte[] frame, int times) {
+        Deflater deflater = new Deflater(level);
+        for (int i = 0; i < times; i++) { // Warmup
+            sink += BinaryCodec.compress(frame, deflater).length;
+        }
+        long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < times; i++) {
+            length = BinaryCodec.compress(frame, deflater).length;
+            sink += length;
+        }
+        long elapsed = System.nanoTime() - start;
+        deflater.end();
+        System.out.printf("level %d: %5d bytes %7.1f us/compression%n", level, length, elapsed / 1e3 / times);
+    }
+
+    // Logs in a crowd with the hello, sends the broadcasts from its first member and prints what the crowd received
+    // and what it cost, once warmed up
+    private static void broadcast(String name, int port, String hello, String body, int users, int broadcasts,
+                                  int window) throws Exception {
+        byte[] message = message(hello, body);
+        try (Crowd crowd = new Crowd(port, name, users, hello)) {
+            for (int round = 0; round < 2; round++) { // The first round is the warmup
+                long baseLines = crowd.awaitQuiet(500);
+                long baseBytes = crowd.bytes();
+                long cpuBefore = processCpuNanos();
+                long start = System.nanoTime();
+                for (int sent = 0; sent < broadcasts; sent++) {
+                    if (sent >= window) await(crowd, baseLines + (long) (sent - window) * users);
+                    crowd.send(0, message);
+                }
+                await(crowd, baseLines + (long) broadcasts * users);
+                long elapsed = System.nanoTime() - start;
+                long cpu = processCpuNanos() - cpuBefore;
+                long received = crowd.bytes() - baseBytes;
+                if (round > 0) {
+                    System.out.printf("%-7s %6.0f bytes/recipient %9.1f MB %8.1f us/broadcast %8.1f us CPU/broadcast%n",
+                            name, (double) received / broadcasts / users, received / 1e6, elapsed / 1e3 / broadcasts,
+                            cpu / 1e3 / broadcasts);
+                }
+            }
+        }
+    }
+
+    // The broadcast as a client with the hello sends it: a text line with the line breaks as spaces, a v2 frame, or
+    // a v2 frame compressed the way ChatClient does
+    private static byte[] message(String hello, String body) {
+        if (hello == null) {
+            return ("msg " + body.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] text = ("msg " + body).getBytes(StandardCharsets.UTF_8);
+        byte[] frame = BinaryCodec.fromText(text, text.length, 4);
+        return hello.contains("deflate") ? BinaryCodec.compress(frame, new Deflater(Deflater.BEST_SPEED)) : frame;
+    }
+
+    // Waits until the crowd received that many lines, or fails
+    private static void await(Crowd crowd, long lines) {
+        if (!crowd.awaitLines(lines, 30_000)) {
+            throw new IllegalStateException("Only " + crowd.lines() + " of " + lines + " lines arrived");
+        }
+    }
+
+    // CPU time used by this whole JVM so far
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    // An exception with that many lines of stack trace, like a user pasting one into the chat
+    private static String stackTrace(int lines) {
+        StringBuilder trace = new StringBuilder("java.lang.IllegalStateException: order 4711 has no lines");
+        for (int i = 0; i < lines; i++) {
+            trace.append("\n\tat ").append(CALLS[i % CALLS.length]).append(41 + i * 7 % 300).append(')');
+        }
+        return trace.toString();
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Author: Adin Geist
+ * Description: Many logged in connections for the benchmarks to send from and measure delivery to. A single selector
+ *              thread reads everything they receive into one reused buffer and only counts lines and bytes, so
+ *              thousands of clients cost the benchmark's JVM next to nothing and it allocates nothing per message.
+ *              A crowd whose hello asks for v2 speaks binary frames after it, and counts frames as lines.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+final class Crowd implements Closeable {
+    private final int port;
+    private final String prefix;
+    private final String hello;
+    // Whether the hello asked for the binary v2 protocol, so logins, sends and counting are in frames
+    private final boolean binary;
+    private final List<Member> members = new ArrayList<>();
+    private final Queue<Member> joining = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final Thread reader;
+    // Lines received by every member together, only written by the reader thread
+    private volatile long lines = 0;
+    // Bytes received by every member together, only written by the reader thread
+    private volatile long bytes = 0;
+    private volatile boolean closed = false;
+
+    // Constructor that logs in the given number of users named prefix0, prefix1 and so on. The hello line, e.g.
+    // "hello roster", is sent before each login, or nothing if it is null.
+    Crowd(int port, String prefix, int users, String hello) throws IOException {
+        this.port = port;
+        this.prefix = prefix;
+        this.hello = hello;
+        this.binary = hello != null && Arrays.asList(hello.split(" ")).contains(Capability.V2.wireName());
+        this.selector = Selector.open();
+        this.reader = new Thread(this::readLoop, "crowd-" + prefix);
+        reader.setDaemon(true);
+        reader.start();
+        grow(users);
+    }
+
+    // Logs in more users until there are the given number of them
+    void grow(int users) throws IOException {
+        while (members.size() < users) {
+            Member member = new Member(login(prefix + members.size()));
+            members.add(member);
+            join(member);
+        }
+    }
+
+    // Logs in more users until there are the given number of them, that many at a time, and returns how long each
+    // login took from connecting to the server's answer, in nanoseconds
+    long[] grow(int users, int parallel) throws IOException, InterruptedException {
+        int first = members.size();
+        Member[] added = new Member[Math.max(0, users - first)];
+        long[] nanos = runParallel(added.length, parallel, i -> {
+            added[i] = new Member(login(prefix + (first + i)));
+            join(added[i]);
+        });
+        members.addAll(Arrays.asList(added));
+        return nanos;
+    }
+
+    // Drops every user's connection and logs them in again under the same name, that many at a time, the way
+    // clients do after a network blip. A name the server hasn't freed yet is tried again until it has. Returns how
+    // long each user took to get back in, in nanoseconds.
+    long[] reconnect(int parallel) throws IOException, InterruptedException {
+        return runParallel(members.size(), parallel, i -> {
+            Member member = members.get(i);
+            member.channel.close();
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (true) {
+                try {
+                    member.channel = login(prefix + i);
+                    break;
+                } catch (IOException e) {
+                    if (System.nanoTime() > deadline) throw e;
+                    Thread.yield();
+                }
+            }
+            join(member);
+        });
+    }
+
+    // Runs the task for every index from 0 to count on that many threads at a time, timing each run
+    private static long[] runParallel(int count, int parallel, IndexTask task) throws IOException,
+            InterruptedException {
+        long[] nanos = new long[count];
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < Math.min(count, parallel); t++) {
+            Thread thread = new Thread(() -> {
+                int i;
+                while (failure.get() == null && (i = next.getAndIncrement()) < count) {
+                    long start = System.nanoTime();
+                    try {
+                        task.run(i);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    nanos[i] = System.nanoTime() - start;
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) throw failure.get();
+        return nanos;
+    }
+
+    // Hands a logged in member to the reader thread
+    private void join(Member member) {
+        joining.add(member);
+        selector.wakeup();
+    }
+
+    // Connects and logs in one user, returning the connection once the login was accepted
+    private SocketChannel login(String name) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        channel.socket().setTcpNoDelay(true);
+        String login = "login " + name;
+        if (binary) {
+            // Everything after the hello is a frame, so the login can't go out before the hello was answered
+            write(channel, ByteBuffer.wrap((hello + "\n").getBytes(StandardCharsets.UTF_8)));
+            while (!readAnswer(channel, null).startsWith("hello")) {
+                // Skip whatever came before the reply
+            }
+            byte[] text = login.getBytes(StandardCharsets.UTF_8);
+            write(channel, ByteBuffer.wrap(BinaryCodec.fromText(text, text.length, -1)));
+        } else {
+            String greeting = (hello == null ? "" : hello + "\n") + login + "\n";
+            write(channel, ByteBuffer.wrap(greeting.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Lines that aren't the answer, like the hello reply, may come first
+        BinaryDecoder decoder = binary ? new BinaryDecoder() : null;
+        String answer;
+        do {
+            answer = readAnswer(channel, decoder);
+        } while (!answer.startsWith("login ") && !answer.startsWith("Username"));
+        if (!answer.equals("login ok")) {
+            channel.close();
+            throw new IOException("Login of " + name + " failed: " + answer);
+        }
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    // Reads the next text line, or the next frame if a decoder is given, and returns it as text. What arrives after
+    // the login's answer is left for the reader thread, which only counts, so reading a byte at a time doesn't lose
+    // anything.
+    private static String readAnswer(SocketChannel channel, BinaryDecoder decoder) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) throw new IOException("Disconnected while logging in");
+            one.flip();
+            if (decoder != null) {
+                ProtocolLine frame = decoder.decode(one);
+                if (frame != null) return frame.toString();
+            } else if (one.get(0) != '\n') {
+                line.append((char) one.get(0));
+            } else {
+                return line.toString();
+            }
+        }
+    }
+
+    // The number of users logged in
+    int size() {
+        return members.size();
+    }
+
+    // Lines every member received together since they logged in
+    long lines() {
+        return lines;
+    }
+
+    // Bytes every member received together since they logged in
+    long bytes() {
+        return bytes;
+    }
+
+    // Lines the given member received since it logged in
+    long lines(int member) {
+        return members.get(member).lines;
+    }
+
+    // Sends a line, which must end in a newline, or a frame for a v2 crowd from the given member
+    void send(int member, byte[] line) throws IOException {
+        Member sender = members.get(member);
+        synchronized (sender) {
+            write(sender.channel, ByteBuffer.wrap(line));
+        }
+    }
+
+    // Writes the whole buffer, waiting for room on a full non-blocking channel
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    // Waits until every member together received at least the given number of lines. Returns false if that didn't
+    // happen in time.
+    boolean awaitLines(long target, long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (lines < target) {
+            if (System.nanoTime() > deadline) return false;
+            LockSupport.parkNanos(50_000);
+        }
+        return true;
+    }
+
+    // Waits until nothing has arrived for the given time, e.g. the presence of users that just logged in, and
+    // returns the line count then
+    long awaitQuiet(long quietMillis) {
+        long seen = lines;
+        long since = System.nanoTime();
+        while (System.nanoTime() - since < quietMillis * 1_000_000) {
+            LockSupport.parkNanos(1_000_000);
+            if (lines != seen) {
+                seen = lines;
+                since = System.nanoTime();
+            }
+        }
+        return seen;
+    }
+
+    // The thread that reads and counts what every member receives
+    Thread reader() {
+        return reader;
+    }
+
+    // Reads every member's connection, counting the lines or frames in what arrives
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!closed) {
+                selector.select();
+                Member member;
+                while ((member = joining.poll()) != null) {
+                    member.channel.register(selector, SelectionKey.OP_READ, member);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Member reading = (Member) key.attachment();
+                    buffer.clear();
+                    int read;
+                    try {
+                        read = ((SocketChannel) key.channel()).read(buffer);
+                    } catch (IOException e) {
+                        read = -1;
+                    }
+                    if (read < 0) {
+                        key.cancel();
+                        key.channel().close();
+                        continue;
+                    }
+                    long counted = binary ? reading.countFrames(buffer, read) : countLines(buffer, read);
+                    reading.lines += counted;
+                    lines += counted;
+                    bytes += read;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        }
+    }
+
+    // Counts the newlines in the first bytes of the buffer
+    private static long countLines(ByteBuffer buffer, int read) {
+        long counted = 0;
+        for (int i = 0; i < read; i++) {
+            if (buffer.get(i) == '\n') counted++;
+        }
+        return counted;
+    }
+
+    // Disconnects every member
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        for (Member member : members) {
+            member.channel.close();
+        }
+    }
+
+    // Something done for one index by runParallel
+    private interface IndexTask {
+        void run(int index) throws IOException;
+    }
+
+    // One logged in user
+    private static class Member {
+        private volatile SocketChannel channel;
+        // Lines received since the login, only written by the reader thread
+        private volatile long lines = 0;
+        // Where the reader is in the frame that arrives in pieces: the bits of its length read so far, -1 while the
+        // opcode is next, and the bytes of its payload still to come
+        private int lengthShift = -1;
+        private int length = 0;
+        private int remaining = 0;
+
+        private Member(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Counts the v2 frames that end in the first bytes of the buffer, only looking at their headers. A frame
+        // cut short is carried over to the next read.
+        private long countFrames(ByteBuffer buffer, int read) {
+            long counted = 0;
+            int i = 0;
+            while (i < read) {
+                if (remaining > 0) {
+                    int skipped = Math.min(remaining, read - i);
+                    remaining -= skipped;
+                    i += skipped;
+                    if (remaining == 0) counted++;
+                } else if (lengthShift < 0) { // The opcode, compressed or not
+                    lengthShift = 0;
+                    length = 0;
+                    i++;
+                } else {
+                    byte b = buffer.get(i++);
+                    length |= (b & 0x7f) << lengthShift;
+                    lengthShift += 7;
+                    if (b >= 0) {
+                        remaining = length;
+                        lengthShift = -1;
+                        if (remaining == 0) counted++;
+                    }
+                }
+            }
+            return counted;
+        }
+    }
+}
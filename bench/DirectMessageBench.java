@@ -0,0 +1,76 @@
+/*
+ * Author: Adin Geist
+ * Description: Compares direct messages with broadcasts in a large crowd. A direct message is one lookup in the
+ *              login index and one queued frame, so its cost shouldn't depend on how many users are online, where a
+ *              broadcast goes to all of them. Reports messages and deliveries per second of both.
+ *
+ *              java -Dbench.mode=nio -Dbench.users=5000 -Dbench.messages=20000 -cp out DirectMessageBench
+ *
+ *              Server and clients together need two file descriptors per user, so for 10000 users start the server
+ *              on its own, with the rate limits off, and point the benchmark at it with -Dbench.port.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class DirectMessageBench {
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        String mode = Bench.string("mode", "nio");
+        int users = Bench.integer("users", 5000);
+        int messages = Bench.integer("messages", 20_000);
+        int broadcasts = Bench.integer("broadcasts", 200);
+        int window = Bench.integer("window", 64);
+        String body = " " + "x".repeat(Bench.integer("payloadBytes", 100)) + "\n";
+
+        int port = Bench.serverPort(mode);
+        try (Crowd crowd = new Crowd(port, "user", 0, "hello roster")) {
+            crowd.grow(users, 64);
+            System.out.println("users=" + users + " messages=" + messages + " broadcasts=" + broadcasts);
+            // Every sender and recipient picked up front, so the benchmark's own work stays out of the timing
+            int[] senders = new int[messages];
+            byte[][] lines = new byte[messages][];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < messages; i++) {
+                senders[i] = random.nextInt(users);
+                lines[i] = ("dm user" + random.nextInt(users) + body).getBytes(StandardCharsets.UTF_8);
+            }
+            byte[] broadcast = ("msg" + body).getBytes(StandardCharsets.UTF_8);
+            for (int round = 0; round < 2; round++) { // The first round is the warmup
+                boolean report = round > 0;
+
+                long base = crowd.awaitQuiet(500);
+                long start = System.nanoTime();
+                for (int sent = 0; sent < messages; sent++) {
+                    if (sent >= window) await(crowd, base + sent - window);
+                    crowd.send(senders[sent], lines[sent]);
+                }
+                await(crowd, base + messages);
+                if (report) print("dm", messages, 1, System.nanoTime() - start);
+
+                base = crowd.awaitQuiet(500);
+                start = System.nanoTime();
+                for (int sent = 0; sent < broadcasts; sent++) {
+                    if (sent >= window) await(crowd, base + (long) (sent - window) * users);
+                    crowd.send(0, broadcast);
+                }
+                await(crowd, base + (long) broadcasts * users);
+                if (report) print("msg", broadcasts, users, System.nanoTime() - start);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Waits until the crowd received that many lines, or fails
+    private static void await(Crowd crowd, long lines) {
+        if (!crowd.awaitLines(lines, 30_000)) {
+            throw new IllegalStateException("Only " + crowd.lines() + " of " + lines + " lines arrived");
+        }
+    }
+
+    // Prints the rates of one kind of message
+    private static void print(String name, int messages, int recipients, long elapsed) {
+        System.out.printf("%-3s %8.1f us/message %10.0f messages/s %12.0f deliveries/s%n", name,
+                elapsed / 1e3 / messages, messages * 1e9 / elapsed, (double) messages * recipients * 1e9 / elapsed);
+    }
+}
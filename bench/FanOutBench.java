@@ -0,0 +1,100 @@
+/*
+ * Author: Adin Geist
+ * Description: Measures broadcasts to a large audience with and without fan-out threads, in process. Recipients are
+ *              clients without a connection that only check every broadcast arrives, in each sender's order, so
+ *              the time is the server's own: building the frame, recording it, and queueing it for every client.
+ *              Several senders broadcast at once, as many clients would. With a small chat.fanout.queue the
+ *              senders have to deliver for the shards that fall behind, and still nothing may be lost or reordered.
+ *
+ *              java -Dchat.fanout.threads=4 -Dbench.recipients=10000 -Dbench.broadcasts=2000 -Dbench.senders=4
+ *                   -cp out FanOutBench
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FanOutBench {
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder misordered = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        int recipients = Bench.integer("recipients", 10_000);
+        int broadcasts = Bench.integer("broadcasts", 2000);
+        int senders = Bench.integer("senders", 4);
+        Server server = new Server(0);
+        for (int i = 0; i < recipients; i++) {
+            server.getSessions().add(new Recipient(server, senders));
+        }
+        System.out.println("fan-out threads=" + System.getProperty("chat.fanout.threads", "0") + " queue="
+                + System.getProperty("chat.fanout.queue", "65536") + " recipients=" + recipients + " broadcasts="
+                + broadcasts + " from each of " + senders + " senders");
+
+        for (int round = 0; round < 3; round++) { // The first round is the warmup
+            delivered.reset();
+            long overflows = server.getMetrics().getFanOutOverflows();
+            long first = (long) round * broadcasts;
+            long start = System.nanoTime();
+            Thread[] threads = new Thread[senders];
+            for (int s = 0; s < senders; s++) {
+                String from = "s" + s;
+                threads[s] = new Thread(() -> {
+                    ProtocolLine line = new ProtocolLine();
+                    for (long b = first + 1; b <= first + broadcasts; b++) {
+                        byte[] bytes = ("msg " + b).getBytes(StandardCharsets.UTF_8);
+                        line.set(bytes, 0, bytes.length);
+                        server.broadcast(from, line, 0);
+                    }
+                });
+                threads[s].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long queued = System.nanoTime() - start;
+            long expected = (long) broadcasts * senders * recipients;
+            long deadline = System.nanoTime() + 60_000_000_000L;
+            while (delivered.sum() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round == 0) continue;
+            System.out.printf("%8.1f ms senders done  %8.1f ms delivered  %7.1f us/broadcast  %,d of %,d delivered"
+                            + "  misordered %d  overflows %d%n", Bench.millis(queued), Bench.millis(elapsed),
+                    elapsed / 1e3 / (broadcasts * senders), delivered.sum(), expected, misordered.sum(),
+                    server.getMetrics().getFanOutOverflows() - overflows);
+        }
+        System.exit(0);
+    }
+
+    // A client without a connection that checks each broadcast came after the previous one from the same sender
+    private static class Recipient extends ClientController {
+        private final byte[] buffer = new byte[256];
+        private final long[] last;
+
+        // Constructor that takes the server and the number of senders to keep the order of
+        private Recipient(Server server, int senders) {
+            super(server);
+            this.last = new long[senders];
+        }
+
+        // Reads "msg s<sender> <number>\n" back out of the frame without allocating. Without fan-out threads every
+        // sender sends on its own thread, so they take turns.
+        @Override
+        synchronized void send(Frame frame) {
+            int end = frame.copyTo(buffer, 0) - 1;
+            int i = end - 1;
+            long number = 0;
+            for (long scale = 1; buffer[i] != ' '; i--, scale *= 10) {
+                number += (buffer[i] - '0') * scale;
+            }
+            int sender = 0;
+            for (int j = 5; j < i; j++) { // After "msg s"
+                sender = sender * 10 + buffer[j] - '0';
+            }
+            if (number <= last[sender]) misordered.increment();
+            last[sender] = number;
+            delivered.increment();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Author: Adin Geist
+ * Description: Checks that file transfers leave chat alone. A chat client pings the server every couple of
+ *              milliseconds and times each pong, first while nothing else happens, then during one big upload and
+ *              then during several parallel downloads of it. Reports the transfer rates and the chat round trip
+ *              percentiles of each phase, which should stay close to the quiet ones since transfers run on their
+ *              own port and threads.
+ *
+ *              java -Dbench.mode=nio -Dbench.fileMegabytes=500 -Dbench.downloads=3 -cp out FileTransferBench
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FileTransferBench {
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        int filesPort = Bench.freePort();
+        System.setProperty("chat.files.port", String.valueOf(filesPort));
+        if (System.getProperty("chat.files.dir") == null) {
+            System.setProperty("chat.files.dir", Files.createTempDirectory("bench-files").toString());
+        }
+        String mode = Bench.string("mode", "nio");
+        long size = Bench.integer("fileMegabytes", 500) * 1_000_000L;
+        int downloads = Bench.integer("downloads", 3);
+        int quietMillis = Bench.integer("quietMillis", 3000);
+        int pingMicros = Bench.integer("pingMicros", 2000);
+        System.setProperty("chat.files.maxBytes", String.valueOf(Math.max(size, 1L << 30)));
+        int port = Bench.startServer(mode);
+        System.out.println(mode + " mode, " + size / 1_000_000 + " MB file, " + downloads
+                + " parallel downloads, a ping every " + pingMicros + " us");
+
+        try (Socket uploader = new Socket("127.0.0.1", port)) {
+            Pinger pinger = new Pinger(port, pingMicros);
+            Thread.sleep(quietMillis); // Also warms up the ping path
+            pinger.phase();
+            Thread.sleep(quietMillis);
+            pinger.report("quiet", 0, 0);
+
+            String[] grant = requestUpload(uploader, size);
+            pinger.phase();
+            long start = System.nanoTime();
+            upload(filesPort, grant[0], grant[1], size);
+            pinger.report("upload", size, System.nanoTime() - start);
+
+            List<Thread> threads = new ArrayList<>();
+            List<Exception> failures = new ArrayList<>();
+            for (int i = 0; i < downloads; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        download(filesPort, grant[0], size);
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }));
+            }
+            pinger.phase();
+            start = System.nanoTime();
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (!failures.isEmpty()) throw failures.get(0);
+            pinger.report(downloads + " downloads", size * downloads, System.nanoTime() - start);
+            pinger.stop();
+        }
+        System.exit(0);
+    }
+
+    // Logs in with the files capability and asks to upload a file of the size, returning its id and token
+    private static String[] requestUpload(Socket socket, long size) throws IOException {
+        socket.setTcpNoDelay(true);
+        OutputStream out = socket.getOutputStream();
+        String request = "hello files\nlogin uploader\nupload bench " + size + " big.bin\n";
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            // upload <client id> <file id> <token> <port>
+            if (line.startsWith("upload bench ")) return Arrays.copyOfRange(line.split(" "), 2, 4);
+            if (line.startsWith("nack bench ")) throw new IOException("The upload was refused: " + line);
+        }
+        throw new IOException("Disconnected before the upload was granted");
+    }
+
+    // Sends the file's bytes to the transfer port and waits for the server to have them all
+    private static void upload(int filesPort, String id, String token, long size) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", filesPort))) {
+            write(channel, ByteBuffer.wrap(("put " + id + " " + token + "\n").getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            for (long sent = 0; sent < size; ) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), size - sent));
+                sent += write(channel, chunk);
+            }
+            String answer = readLine(channel);
+            if (!answer.equals("ok")) throw new IOException("The upload failed: " + answer);
+        }
+    }
+
+    // Fetches the file from the transfer port and throws its bytes away
+    private static void download(int filesPort, String id, long size) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", filesPort))) {
+            write(channel, ByteBuffer.wrap(("get " + id + "\n").getBytes(StandardCharsets.UTF_8)));
+            String answer = readLine(channel);
+            if (!answer.equals("ok " + size)) throw new IOException("The download failed: " + answer);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            long received = 0;
+            while (received < size) {
+                chunk.clear();
+                int read = channel.read(chunk);
+                if (read < 0) throw new IOException("Disconnected after " + received + " of " + size + " bytes");
+                received += read;
+            }
+        }
+    }
+
+    // Writes the whole buffer and returns how many bytes that was
+    private static int write(SocketChannel channel, ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        return length;
+    }
+
+    // Reads an answer line a byte at a time, so nothing after it is read along
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) throw new IOException("Disconnected before answering");
+            char c = (char) one.get(0);
+            if (c == '\n') return line.toString();
+            line.append(c);
+        }
+    }
+
+    // A chat client that pings on a thread of its own and keeps the round trips of the current phase
+    private static class Pinger {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        private final Thread thread;
+        // Round trips of the current phase, swapped for a new list when a phase starts
+        private List<Long> nanos = new ArrayList<>();
+
+        // Constructor that logs in and starts pinging every interval
+        private Pinger(int port, int intervalMicros) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+            out.write("login pinger\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            await("login ");
+            thread = new Thread(() -> run(intervalMicros * 1000L), "pinger");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Pings, waits for the pong, and sleeps until the next one is due
+        private void run(long intervalNanos) {
+            byte[] ping = "ping\n".getBytes(StandardCharsets.UTF_8);
+            long next = System.nanoTime();
+            try {
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    out.write(ping);
+                    out.flush();
+                    await("pong");
+                    long elapsed = System.nanoTime() - start;
+                    synchronized (this) {
+                        nanos.add(elapsed);
+                    }
+                    next += intervalNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } else {
+                        next = System.nanoTime(); // Fell behind, don't ping in a burst to catch up
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("The pinger stopped: " + e);
+            }
+        }
+
+        // Skips lines until one starting with the prefix
+        private void await(String prefix) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) throw new IOException("Disconnected while waiting for " + prefix);
+            } while (!line.startsWith(prefix));
+        }
+
+        // Starts collecting the round trips of a new phase
+        private synchronized void phase() {
+            nanos = new ArrayList<>();
+        }
+
+        // Prints the round trips of the phase so far, and the transfer rate if it moved any bytes
+        private void report(String name, long bytes, long elapsedNanos) {
+            long[] sorted;
+            synchronized (this) {
+                sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            String rate = bytes > 0 ? String.format("%7.1f MB/s in %5.1f s", bytes * 1e3 / elapsedNanos,
+                    elapsedNanos / 1e9) : String.format("%22s", "");
+            System.out.printf("%-12s %s  %6d pings  p50 %6.3f ms  p99 %6.3f ms  max %7.3f ms%n", name, rate,
+                    sorted.length, Bench.millis(Bench.percentile(sorted, 0.5)),
+                    Bench.millis(Bench.percentile(sorted, 0.99)), Bench.millis(Bench.percentile(sorted, 1)));
+        }
+
+        // Stops pinging and logs off
+        private void stop() throws IOException {
+            running.set(false);
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Author: Adin Geist
+ * Description: Runs LoadGenerator against a server in each mode and prints the reports side by side. Each server
+ *              runs in a JVM of its own with its metrics endpoint on, so the report includes its CPU and heap, and
+ *              the load in another, so the two don't share a heap. Every -Dchat.* setting is handed to the servers
+ *              and every -Dload.* setting to the load generator. The reports and logs stay in bench.dir.
+ *
+ *              java -Dbench.modes=threads,nio -Dload.users=1000 -Dload.durationSeconds=20 -cp out LoadBench
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class LoadBench {
+    // Report fields printed for each mode, all of them unique in the report
+    private static final String[] COLUMNS = {"succeeded", "sentPerSecond", "deliveredPerSecond", "deliveryRatio",
+            "p50", "p99", "p999", "cpuLoadAvg", "heapUsedMaxBytes"};
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = Bench.string("modes", "threads,virtual,nio").split(",");
+        Path directory = Paths.get(Bench.string("dir", System.getProperty("java.io.tmpdir")));
+
+        List<String[]> rows = new ArrayList<>();
+        for (String mode : modes) {
+            Path report = directory.resolve("load-" + mode + ".json");
+            run(mode.trim(), directory, report);
+            String json = new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+            String[] row = new String[COLUMNS.length + 1];
+            row[0] = mode;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                row[i + 1] = value(json, COLUMNS[i]);
+            }
+            rows.add(row);
+        }
+
+        StringBuilder header = new StringBuilder(String.format("%-8s", "mode"));
+        for (String column : COLUMNS) {
+            header.append(' ').append(column);
+        }
+        System.out.println(header);
+        for (String[] row : rows) {
+            StringBuilder line = new StringBuilder(String.format("%-8s", row[0]));
+            for (int i = 1; i < row.length; i++) {
+                line.append(String.format(" %" + COLUMNS[i - 1].length() + "s", row[i]));
+            }
+            System.out.println(line);
+        }
+        System.out.println("Reports in " + directory);
+    }
+
+    // Starts a server in the mode, runs the load against it until it wrote its report, then stops the server
+    private static void run(String mode, Path directory, Path report) throws IOException, InterruptedException {
+        int port = Bench.freePort();
+        int metricsPort = Bench.freePort();
+        List<String> server = java("chat.");
+        server.add(1, "-Dchat.metrics.port=" + metricsPort);
+        server.add("ServerMain");
+        Process serverProcess = start(server, directory.resolve("load-" + mode + "-server.log").toFile());
+        try {
+            // ServerMain asks for the port and the mode
+            OutputStream answers = serverProcess.getOutputStream();
+            answers.write((port + "\n" + mode + "\n").getBytes(StandardCharsets.UTF_8));
+            answers.flush();
+            Bench.awaitPort(port);
+
+            List<String> load = java("load.");
+            load.add(1, "-Dload.port=" + port);
+            load.add(1, "-Dload.metricsUrl=http://127.0.0.1:" + metricsPort + "/metrics");
+            load.add(1, "-Dload.label=" + mode);
+            load.add(1, "-Dload.report=" + report);
+            load.add("LoadGenerator");
+            System.out.println(mode + ": running the load, its output goes to load-" + mode + ".log");
+            int exit = start(load, directory.resolve("load-" + mode + ".log").toFile()).waitFor();
+            if (exit != 0) throw new IllegalStateException("The load generator failed in " + mode + " mode");
+        } finally {
+            serverProcess.destroyForcibly().waitFor();
+        }
+    }
+
+    // A java command line with this JVM's class path and every system property starting with the prefix, which
+    // the caller adds the main class to
+    private static List<String> java(String prefix) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        return command;
+    }
+
+    // Starts the command with its output and errors going to the log
+    private static Process start(List<String> command, File log) throws IOException {
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    // The number in the report's field of that name, or - if it isn't there
+    private static String value(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\": ([-0-9.]+)").matcher(json);
+        return matcher.find() ? matcher.group(1) : "-";
+    }
+}
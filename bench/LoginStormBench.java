@@ -0,0 +1,53 @@
+/*
+ * Author: Adin Geist
+ * Description: Logs in a crowd of users many at a time, then drops every connection and has all of them log in again
+ *              under the same names at once, like clients reconnecting after a network blip. Reports the login
+ *              latency percentiles of both, counting a reconnect from dropping the old connection until the server
+ *              freed the name and accepted it again.
+ *
+ *              java -Dbench.mode=nio -Dbench.users=2000 -Dbench.parallel=64 -Dbench.rounds=3 -cp out LoginStormBench
+ *
+ *              Server and clients together need two file descriptors per user, so for 10000 users start the server
+ *              on its own, with the login limits off, and point the benchmark at it with -Dbench.port.
+ */
+
+import java.util.Arrays;
+
+public class LoginStormBench {
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        String mode = Bench.string("mode", "nio");
+        int users = Bench.integer("users", 2000);
+        int parallel = Bench.integer("parallel", 64);
+        int rounds = Bench.integer("rounds", 3);
+
+        int port = Bench.serverPort(mode);
+        String server = Bench.integer("port", 0) > 0 ? "port=" + port : "mode=" + mode;
+        System.out.println(server + " users=" + users + " parallel=" + parallel);
+        // Warmup with a crowd of its own, which logs off again
+        try (Crowd warmup = new Crowd(port, "warmup", 0, "hello roster")) {
+            warmup.grow(Math.min(users, 1000), parallel);
+            warmup.reconnect(parallel);
+        }
+        try (Crowd crowd = new Crowd(port, "user", 0, "hello roster")) {
+            long start = System.nanoTime();
+            report("login", crowd.grow(users, parallel), System.nanoTime() - start);
+            for (int round = 0; round < rounds; round++) {
+                crowd.awaitQuiet(500);
+                start = System.nanoTime();
+                report("reconnect", crowd.reconnect(parallel), System.nanoTime() - start);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Prints the percentiles of the login times and how fast the whole crowd got in
+    private static void report(String name, long[] nanos, long elapsed) {
+        Arrays.sort(nanos);
+        System.out.printf("%-9s %6d users in %7.1f ms (%6.0f/s)  p50 %6.2f ms  p99 %6.2f ms  p999 %6.2f ms"
+                        + "  max %6.2f ms%n",
+                name, nanos.length, Bench.millis(elapsed), nanos.length * 1e9 / elapsed,
+                Bench.millis(Bench.percentile(nanos, 0.5)), Bench.millis(Bench.percentile(nanos, 0.99)),
+                Bench.millis(Bench.percentile(nanos, 0.999)), Bench.millis(nanos[nanos.length - 1]));
+    }
+}
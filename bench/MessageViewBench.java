@@ -0,0 +1,116 @@
+/*
+ * Author: Adin Geist
+ * Description: Measures how long the chat window takes to show a message as the chat grows, headless. MessageView
+ *              appends to the end of the document and keeps it to the scrollback, so the time per message should
+ *              stay flat, once with one append per message and once with messages arriving in bursts. The way
+ *              GUIApp used to do it, reading back the whole HTML and setting it again with the new message, is
+ *              measured next to it for fewer lines, since it gets slower with every message.
+ *
+ *              java -Dbench.lines=100000 -Dbench.scrollback=5000 -Dbench.oldLines=1000 -cp out MessageViewBench
+ */
+
+import javax.swing.JEditorPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.html.HTMLEditorKit;
+import java.lang.reflect.InvocationTargetException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class MessageViewBench {
+    // What a typical chat line says
+    private static final String BODY = "did anyone look at the build failure on main? it's the <flaky> test again & "
+            + "I'd rather not retry it a third time";
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int lines = Bench.integer("lines", 100_000);
+        int scrollback = Bench.integer("scrollback", 5000);
+        int burst = Bench.integer("burst", 50);
+        int oldLines = Bench.integer("oldLines", 1000);
+        int report = Bench.integer("reportEvery", 10_000);
+
+        System.out.println("one append per message, scrollback " + scrollback);
+        MessageView view = onSwingThread(() -> new MessageView(new JEditorPane(), scrollback));
+        double average = run(lines, report, 1, count -> {
+            for (int i = 0; i < count; i++) {
+                view.message("user" + i % 50, BODY);
+                view.flush();
+            }
+        });
+        System.out.printf("average %.3f ms/message%n", average);
+
+        System.out.println("bursts of " + burst + " per append");
+        MessageView burstView = onSwingThread(() -> new MessageView(new JEditorPane(), scrollback));
+        average = run(lines, report, burst, count -> {
+            for (int i = 0; i < count; i++) {
+                burstView.message("user" + i % 50, BODY);
+                if (i % burst == burst - 1) burstView.flush();
+            }
+        });
+        System.out.printf("average %.3f ms/message%n", average);
+
+        System.out.println("the old way, every message sets the whole HTML again");
+        JEditorPane pane = onSwingThread(MessageViewBench::oldPane);
+        average = run(oldLines, Math.max(1, oldLines / 4), 1, count -> {
+            for (int i = 0; i < count; i++) {
+                oldMessage(pane, "user" + i % 50, BODY);
+            }
+        });
+        System.out.printf("average %.3f ms/message%n", average);
+        System.exit(0);
+    }
+
+    // Shows the lines on the Swing thread a step at a time, printing the time per message of each step and
+    // returning the average over all of them. A step is a whole number of bursts.
+    private static double run(int lines, int step, int burst, Step show) throws Exception {
+        step = Math.max(burst, step / burst * burst);
+        long total = 0;
+        for (int shown = 0; shown < lines; shown += step) {
+            int count = Math.min(step, lines - shown);
+            long start = System.nanoTime();
+            SwingUtilities.invokeAndWait(() -> show.run(count));
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            System.out.printf("%8d lines %8.3f ms/message%n", shown + count, Bench.millis(elapsed) / count);
+        }
+        return Bench.millis(total) / lines;
+    }
+
+    // A messages pane set up the way GUIApp used to
+    private static JEditorPane oldPane() {
+        JEditorPane pane = new JEditorPane();
+        HTMLEditorKit kit = new HTMLEditorKit();
+        kit.getStyleSheet().addRule(".serverMsg {color: red;}");
+        kit.getStyleSheet().addRule("p {font-family: Courier New, Arial, Helvetica, sans-serif;}");
+        pane.setEditorKit(kit);
+        pane.setDocument(kit.createDefaultDocument());
+        return pane;
+    }
+
+    // GUIApp's old onMessage: read the whole HTML back, cut out the body and set it again with the message added
+    private static void oldMessage(JEditorPane pane, String username, String body) {
+        body = body.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
+        Matcher matcher = Pattern.compile("(?<=body>).*(?=</body>)", Pattern.DOTALL).matcher(pane.getText());
+        String matched = matcher.find() ? matcher.group() : "";
+        pane.setText(matched + "<p style=\"margin-top: 2px;\"><b>" + username + "</b> " + body + "</p>");
+    }
+
+    // Creates something on the Swing thread and returns it
+    private static <T> T onSwingThread(Create<T> create) throws InterruptedException, InvocationTargetException {
+        Object[] created = new Object[1];
+        SwingUtilities.invokeAndWait(() -> created[0] = create.create());
+        @SuppressWarnings("unchecked")
+        T result = (T) created[0];
+        return result;
+    }
+
+    // Shows that many messages, on the Swing thread
+    private interface Step {
+        void run(int count);
+    }
+
+    // Makes a Swing component or something holding one, on the Swing thread
+    private interface Create<T> {
+        T create();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Author: Adin Geist
+ * Description: Compares reading and handling a mix of received lines the old way, decoding each into a String,
+ *              splitting it on spaces and encoding the outgoing line again, with LineDecoder and ProtocolLine, which
+ *              match the verb in the received bytes and copy a msg body straight into the outgoing Frame. Reports
+ *              the time and the bytes allocated per line.
+ *
+ *              java -Dbench.lines=1000000 -Dbench.rounds=5 -cp out ProtocolParseBench
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ProtocolParseBench {
+    // What a busy client sends, mostly broadcasts
+    private static final String[] MIX = {
+            "msg Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore",
+            "msg short one",
+            "rmsg lobby sed do eiusmod tempor incididunt ut labore et dolore magna aliqua",
+            "dm alice are you there?",
+            "msg Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo",
+            "ping",
+            "join lobby",
+            "msg Duis aute irure dolor in reprehenderit in voluptate velit esse cillum dolore eu fugiat nulla",
+    };
+    // Keeps the JIT from throwing the work away
+    private static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        Bench.configure();
+        int lines = Bench.integer("lines", 1_000_000);
+        int rounds = Bench.integer("rounds", 5);
+        byte[] input = input(lines);
+        System.out.println(lines + " lines, " + input.length / lines + " bytes on average");
+
+        for (int round = 0; round < rounds; round++) { // Warmup
+            split(input);
+            parse(input);
+        }
+        for (int round = 0; round < rounds; round++) {
+            report("split", lines, input, true);
+            report("parse", lines, input, false);
+        }
+    }
+
+    // Runs one pass of either way and prints the time and allocations per line
+    private static void report(String name, int lines, byte[] input, boolean split) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        sink += split ? split(input) : parse(input);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("%s: %6.1f ns/line %7.1f bytes/line%n", name, (double) elapsed / lines,
+                (double) allocated / lines);
+    }
+
+    // The old way: readLine() decodes a String, split() makes one per token and the outgoing line is encoded again
+    private static long split(byte[] input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input),
+                StandardCharsets.UTF_8));
+        long checksum = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.split(" ");
+            switch (tokens[0].toLowerCase()) {
+                case "msg":
+                    String body = line.substring(tokens[0].length() + 1);
+                    checksum += ("msg bench " + body + "\n").getBytes(StandardCharsets.UTF_8).length;
+                    break;
+                case "rmsg":
+                case "dm":
+                    int bodyStart = tokens[0].length() + tokens[1].length() + 2;
+                    checksum += tokens[1].length() + line.substring(bodyStart).length();
+                    break;
+                default:
+                    checksum += tokens.length;
+            }
+        }
+        return checksum;
+    }
+
+    // The current way: lines are framed and matched in the received bytes, and only the parts a command needs
+    // become strings
+    private static long parse(byte[] input) {
+        LineDecoder decoder = new LineDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(input);
+        long checksum = 0;
+        ProtocolLine line;
+        while ((line = decoder.decode(buffer)) != null) {
+            switch (line.command()) {
+                case MSG:
+                    checksum += Frame.of("msg bench ", line, 0).length();
+                    break;
+                case RMSG:
+                case DM:
+                    checksum += line.argument(0).length() + line.length() - line.bodyOffset(1);
+                    break;
+                default:
+                    checksum += line.argumentCount();
+            }
+        }
+        return checksum;
+    }
+
+    // The mix repeated until there are enough lines, each ending in a newline
+    private static byte[] input(int lines) {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            input.append(MIX[i % MIX.length]).append('\n');
+        }
+        return input.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Bytes allocated by this thread so far
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
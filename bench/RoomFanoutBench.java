@@ -0,0 +1,61 @@
+/*
+ * Author: Adin Geist
+ * Description: Compares a room message with a global broadcast in a crowd split evenly over a number of rooms. A
+ *              room message only iterates that room's members, so it should cost about one room's share of a
+ *              broadcast. Reports the time until every recipient got each message, and deliveries per second.
+ *
+ *              java -Dbench.mode=nio -Dbench.users=1000 -Dbench.rooms=10 -Dbench.messages=2000 -cp out RoomFanoutBench
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public class RoomFanoutBench {
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        String mode = Bench.string("mode", "nio");
+        int users = Bench.integer("users", 1000);
+        int rooms = Bench.integer("rooms", 10);
+        int messages = Bench.integer("messages", 2000);
+        int window = Bench.integer("window", 64);
+        String body = "x".repeat(Bench.integer("payloadBytes", 100));
+
+        int port = Bench.startServer(mode);
+        try (Crowd crowd = new Crowd(port, "user", users, "hello roster")) {
+            for (int user = 0; user < users; user++) {
+                crowd.send(user, ("join room" + user % rooms + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            int members = (users + rooms - 1) / rooms; // The first room gets any users left over
+            System.out.println("mode=" + mode + " users=" + users + " rooms=" + rooms + " members=" + members
+                    + " messages=" + messages);
+            byte[] roomMessage = ("rmsg room0 " + body + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] broadcast = ("msg " + body + "\n").getBytes(StandardCharsets.UTF_8);
+            for (int round = 0; round < 2; round++) { // The first round is the warmup
+                run(round == 0 ? null : "room", crowd, roomMessage, members, messages, window);
+                run(round == 0 ? null : "global", crowd, broadcast, users, messages, window);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Sends the line from the first user and waits until each of the recipients got every one of them, never more
+    // than the window ahead. Prints the result unless the name is null.
+    private static void run(String name, Crowd crowd, byte[] line, int recipients, int messages, int window)
+            throws Exception {
+        long base = crowd.awaitQuiet(300);
+        long start = System.nanoTime();
+        for (int sent = 0; sent < messages; sent++) {
+            if (sent >= window && !crowd.awaitLines(base + (long) (sent - window) * recipients, 30_000)) {
+                throw new IllegalStateException("Message " + (sent - window) + " never reached every recipient");
+            }
+            crowd.send(0, line);
+        }
+        if (!crowd.awaitLines(base + (long) messages * recipients, 30_000)) {
+            throw new IllegalStateException("The last messages never reached every recipient");
+        }
+        long elapsed = System.nanoTime() - start;
+        if (name != null) {
+            System.out.printf("%-6s %5d recipients %9.1f us/message %12.0f deliveries/s%n", name, recipients,
+                    elapsed / 1e3 / messages, (double) messages * recipients * 1e9 / elapsed);
+        }
+    }
+}
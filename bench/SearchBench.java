@@ -0,0 +1,116 @@
+/*
+ * Author: Adin Geist
+ * Description: Fills the message history with millions of messages whose words follow a Zipf distribution, like
+ *              real chat, and measures how fast the search index keeps up and the heap it takes. Recording waits
+ *              whenever the index falls half a ring behind, since without a journal it couldn't read messages the
+ *              ring has dropped. Then it times the first page of searches for words from the most common to the
+ *              rarest, a sender, and two words at once.
+ *
+ *              java -Xmx1g -Dbench.messages=10000000 -Dbench.vocabulary=50000 -cp out SearchBench
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class SearchBench {
+    // Keeps the JIT from throwing the work away
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        Bench.configure();
+        if (System.getProperty("chat.history.ringSize") == null) {
+            System.setProperty("chat.history.ringSize", String.valueOf(1 << 18));
+        }
+        int messages = Bench.integer("messages", 10_000_000);
+        int vocabulary = Bench.integer("vocabulary", 50_000);
+        int users = Bench.integer("users", 1000);
+        int queries = Bench.integer("queries", 1000);
+        int ring = Integer.getInteger("chat.history.ringSize");
+
+        MessageHistory history = new MessageHistory(null);
+        SearchIndex index = SearchIndex.startConfigured(history, new SessionRegistry(4));
+        if (index == null) throw new IllegalStateException("Search is turned off with chat.search.enabled");
+        double[] zipf = zipf(vocabulary);
+        Random random = new Random(42);
+        System.out.println(messages + " messages of 8-15 words out of " + vocabulary + ", ring of " + ring);
+
+        long start = System.nanoTime();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            while (history.lastId() - index.indexedThrough() > ring / 2) {
+                Thread.sleep(1);
+            }
+            body.setLength(0);
+            for (int w = 0, words = 8 + random.nextInt(8); w < words; w++) {
+                if (w > 0) body.append(' ');
+                body.append('w').append(word(zipf, random));
+            }
+            long id = history.nextId();
+            String prefix = "msgid " + id + " ";
+            history.record(id, Frame.of(prefix + "user" + random.nextInt(users) + " ",
+                    body.toString().getBytes(StandardCharsets.UTF_8), 0), prefix.length());
+            if ((i + 1) % 1_000_000 == 0) {
+                System.out.printf("%9d recorded, %9d indexed%n", i + 1, index.indexedThrough());
+            }
+        }
+        while (index.indexedThrough() < messages) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("indexed %d messages in %.1f s, %.0f messages/s%n", messages, elapsed / 1e9,
+                messages * 1e9 / elapsed);
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("heap used after a GC: %.0f MB%n", (runtime.totalMemory() - runtime.freeMemory()) / 1e6);
+
+        for (int rank : new int[]{0, 10, 100, 1000, 10_000, vocabulary - 1}) {
+            query(index, queries, "w" + rank);
+        }
+        query(index, queries, "from:user" + users / 2);
+        query(index, queries, "w100", "w200");
+        query(index, queries, "w1000", "w2000");
+        System.exit(0);
+    }
+
+    // Times the first page of results for the terms, after a warmup, and prints the percentiles
+    private static void query(SearchIndex index, int queries, String... terms) {
+        List<String> query = Arrays.asList(terms);
+        for (int i = 0; i < queries; i++) { // Warmup
+            sink += index.find(query, Long.MAX_VALUE, 21).size();
+        }
+        long[] nanos = new long[queries];
+        int found = 0;
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            found = index.find(query, Long.MAX_VALUE, 21).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        sink += found;
+        Arrays.sort(nanos);
+        System.out.printf("%-18s %2d found  p50 %8.1f us  p99 %8.1f us%n", String.join(" ", terms), found,
+                Bench.percentile(nanos, 0.5) / 1e3, Bench.percentile(nanos, 0.99) / 1e3);
+    }
+
+    // Cumulative probabilities of the words by rank, the most common first, each one as common as 1 / (rank + 1)
+    private static double[] zipf(int vocabulary) {
+        double[] cumulative = new double[vocabulary];
+        double sum = 0;
+        for (int rank = 0; rank < vocabulary; rank++) {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < vocabulary; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    // Picks the rank of a word by its probability
+    private static int word(double[] zipf, Random random) {
+        int index = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(zipf.length - 1, index >= 0 ? index : -index - 1);
+    }
+}
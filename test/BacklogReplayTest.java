@@ -0,0 +1,206 @@
+/*
+ * Author: Adin Geist
+ * Description: Replays the message history while broadcasts are still being recorded, against a running server and
+ *              after a restart from the journal. A replay must never skip an id that was handed out but not yet
+ *              recorded, never send one twice, and carry on from the journal across a restart.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class BacklogReplayTest {
+    private static final int RECORDERS = 4;
+    private static final int MESSAGES = 50_000;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.limit.messagesPerSecond", "0");
+        System.setProperty("chat.limit.bytesPerSecond", "0");
+        System.setProperty("chat.history.ringSize", String.valueOf(1 << 17));
+        noGapsWhileRecording();
+        replayWhileBroadcasting();
+        restartFromJournal();
+        Check.passed(BacklogReplayTest.class);
+    }
+
+    // Several threads take ids and record them with a pause in between, like concurrent broadcasts, while a reader
+    // follows them the way a replay does. Every id must come out once and in order.
+    private static void noGapsWhileRecording() throws Exception {
+        MessageHistory history = new MessageHistory(null);
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < RECORDERS; t++) {
+            recorders.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < MESSAGES / RECORDERS; i++) {
+                    long id = history.nextId();
+                    if (random.nextInt(4) == 0) Thread.yield(); // Others take and record ids meanwhile
+                    record(history, id);
+                }
+            }));
+        }
+        recorders.forEach(Thread::start);
+
+        long afterId = 0;
+        List<Frame> frames = new ArrayList<>();
+        while (afterId < MESSAGES) {
+            frames.clear();
+            long through = history.read(afterId, history.recordedThrough(), 128, frames);
+            long expected = afterId + 1;
+            for (Frame frame : frames) {
+                Check.equal(expected++, idOf(frame), "replayed after " + afterId);
+            }
+            Check.equal(expected - 1, through, "read through, past ids not recorded yet");
+            afterId = through;
+            if (frames.isEmpty()) Thread.yield();
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        Check.equal((long) MESSAGES, history.recordedThrough(), "recorded through once every recorder is done");
+    }
+
+    // A client asks for a replay from the start while another keeps broadcasting. Ids up to where the replay ends
+    // may arrive live as well as replayed, but every id arrives, none more than twice, and the ones after it once.
+    private static void replayWhileBroadcasting() throws Exception {
+        TestServer test = TestServer.start("threads");
+        int broadcasts = 5000;
+        Socket caster = login(test.port, "caster");
+        Thread sender = new Thread(() -> {
+            try {
+                OutputStream out = caster.getOutputStream();
+                for (int i = 0; i < broadcasts; i++) {
+                    out.write(("msg m" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                    if (i == broadcasts / 2) Thread.sleep(50); // Let the replay catch up with the live messages
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread drainer = new Thread(() -> drain(caster));
+        drainer.setDaemon(true);
+        drainer.start();
+        sender.start();
+        while (test.server.getHistory().lastId() < broadcasts / 4) {
+            Thread.sleep(1);
+        }
+
+        Socket reader = login(test.port, "reader");
+        reader.getOutputStream().write("replay 0\n".getBytes(StandardCharsets.UTF_8));
+        BufferedReader lines = new BufferedReader(new InputStreamReader(reader.getInputStream(),
+                StandardCharsets.UTF_8));
+        int[] seen = new int[broadcasts + 1];
+        long replayedThrough = -1;
+        int received = 0;
+        while (replayedThrough < 0 || received < broadcasts) {
+            String line = lines.readLine();
+            Check.check(line != null, "the reader was disconnected");
+            if (line.startsWith("replayed ")) {
+                replayedThrough = Long.parseLong(line.substring("replayed ".length()));
+            } else if (line.startsWith("msgid ")) {
+                int id = Integer.parseInt(line.split(" ")[1]);
+                if (seen[id]++ == 0) received++;
+            }
+        }
+        sender.join();
+        for (int id = 1; id <= broadcasts; id++) {
+            Check.check(seen[id] <= (id <= replayedThrough ? 2 : 1), "id " + id + " arrived " + seen[id] + " times,"
+                    + " replayed through " + replayedThrough);
+        }
+        caster.close();
+        reader.close();
+    }
+
+    // Messages recorded before a restart are replayed from the journal, and the replay carries on into the ones
+    // recorded after it without a gap
+    private static void restartFromJournal() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        int before = 3000;
+        int after = 500;
+        MessageJournal journal = openJournal(directory);
+        MessageHistory history = new MessageHistory(journal);
+        for (int i = 0; i < before; i++) {
+            record(history, history.nextId());
+        }
+        journal.close();
+
+        journal = openJournal(directory);
+        history = new MessageHistory(journal);
+        Check.equal((long) before, history.lastId(), "last id after the restart");
+        Check.equal((long) before, history.recordedThrough(), "recorded through after the restart");
+        for (int i = 0; i < after; i++) {
+            record(history, history.nextId());
+        }
+        long afterId = 0;
+        List<Frame> frames = new ArrayList<>();
+        while (afterId < before + after) {
+            frames.clear();
+            long through = history.read(afterId, history.recordedThrough(), 128, frames);
+            Check.check(through > afterId, "the replay got stuck after " + afterId);
+            long expected = afterId + 1;
+            for (Frame frame : frames) {
+                Check.equal(expected++, idOf(frame), "replayed across the restart after " + afterId);
+            }
+            afterId = through;
+        }
+        journal.close();
+    }
+
+    // Records a broadcast under the id the way Server does
+    private static void record(MessageHistory history, long id) {
+        String prefix = "msgid " + id + " ";
+        history.record(id, Frame.of(prefix + "user ", ("m" + id).getBytes(StandardCharsets.UTF_8), 0),
+                prefix.length());
+    }
+
+    // The id of a msgid frame
+    private static long idOf(Frame frame) {
+        byte[] bytes = new byte[frame.length()];
+        frame.copyTo(bytes, 0);
+        return Long.parseLong(new String(bytes, StandardCharsets.UTF_8).split(" ")[1]);
+    }
+
+    // Opens a journal in the directory
+    private static MessageJournal openJournal(Path directory) throws IOException {
+        return new MessageJournal(directory, 1 << 20, 16, JournalDurability.INTERVAL, 100,
+                new ServerMetrics(new SessionRegistry(4)));
+    }
+
+    // Connects with the ids capability and logs in, returning once the login is accepted
+    private static Socket login(int port, String login) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.getOutputStream().write(("hello ids\nlogin " + login + "\n").getBytes(StandardCharsets.UTF_8));
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = socket.getInputStream().read()) >= 0) {
+            if (c != '\n') {
+                line.append((char) c);
+            } else if (line.toString().startsWith("login ")) {
+                break;
+            } else {
+                line.setLength(0);
+            }
+        }
+        Check.equal("login ok", line.toString(), "login of " + login);
+        return socket;
+    }
+
+    // Reads and throws away whatever arrives until the connection closes
+    private static void drain(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            while (socket.getInputStream().read(buffer) >= 0) {
+                // The caster gets its own broadcasts back
+            }
+        } catch (IOException e) {
+            // Closed at the end of the test
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Author: Adin Geist
+ * Description: Encodes random text lines as v2 frames, some of them compressed, and decodes them again from the
+ *              bytes arriving in random pieces. Every word and body must come back unchanged, including spaces,
+ *              newlines and multi-byte characters. Frames that are too large or corrupt must be refused, and one
+ *              cut short must wait for the rest.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+public class BinaryCodecTest {
+    private static final int LINES = 20_000;
+    // Characters bodies and words are made of, with a space, a newline and characters of two, three and four bytes
+    private static final String[] CHARACTERS = {"a", "b", "Z", "0", "_", " ", "\n", "\u00e9", "\u00df", "\u65e5",
+            "\u672c", "\ud83d\ude00"};
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(42);
+        roundTrip(random);
+        varints();
+        refusesBadFrames();
+        Check.passed(BinaryCodecTest.class);
+    }
+
+    // Random lines of every shape come back from the decoder as the words and body they were made of
+    private static void roundTrip(Random random) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<Line> lines = new ArrayList<>();
+        for (int i = 0; i < LINES; i++) {
+            Line line = Line.random(random);
+            byte[] frame = line.encode();
+            if (random.nextInt(4) == 0) {
+                frame = BinaryCodec.compress(frame, deflater);
+            }
+            stream.write(frame);
+            lines.add(line);
+        }
+        byte[] bytes = stream.toByteArray();
+
+        BinaryDecoder decoder = new BinaryDecoder();
+        int decoded = 0;
+        int offset = 0;
+        while (offset < bytes.length) {
+            // Mostly small pieces, so frames and their headers are split everywhere, now and then a large one
+            int piece = random.nextInt(8) == 0 ? 1 + random.nextInt(16 * 1024) : 1 + random.nextInt(24);
+            ByteBuffer input = ByteBuffer.wrap(bytes, offset, Math.min(piece, bytes.length - offset));
+            offset += input.remaining();
+            ProtocolLine line;
+            while ((line = decoder.decode(input)) != null) {
+                lines.get(decoded++).check(line);
+            }
+            Check.check(!input.hasRemaining(), "the decoder left input behind");
+        }
+        Check.equal(LINES, decoded, "frames decoded");
+    }
+
+    // Lengths on both sides of every varint byte boundary are written and read back the same
+    private static void varints() throws IOException {
+        for (int length : new int[]{0, 1, 127, 128, 16_383, 16_384, 100_000}) {
+            byte[] body = new byte[length];
+            Arrays.fill(body, (byte) 'x');
+            byte[] text = ("msg " + new String(body, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+            byte[] frame = BinaryCodec.fromText(text, text.length, 4);
+            int payload = BinaryCodec.varintSize(length) + length;
+            Check.equal(1 + BinaryCodec.varintSize(payload) + payload, frame.length,
+                    "size of a frame with " + length + " bytes");
+            ProtocolLine line = new BinaryDecoder().decode(ByteBuffer.wrap(frame));
+            Check.equal(length, line.argument(0).length(), "body of " + length + " bytes");
+        }
+    }
+
+    // Frames claiming to be too large, fields running past their frame and corrupt compressed frames are refused
+    private static void refusesBadFrames() {
+        byte[] tooLarge = new byte[6];
+        tooLarge[0] = (byte) ProtocolCommand.MSG.opcode();
+        BinaryCodec.putVarint(tooLarge, 1, BinaryCodec.MAX_FRAME_BYTES + 1);
+        refuses(tooLarge, "a frame over the size limit");
+
+        byte[] overrun = {(byte) ProtocolCommand.MSG.opcode(), 3, 5, 'a', 'b'};
+        refuses(overrun, "a field running past its frame");
+
+        byte[] corrupt = {(byte) (ProtocolCommand.MSG.opcode() | BinaryCodec.COMPRESSED), 4, 10, 1, 2, 3};
+        refuses(corrupt, "a corrupt compressed frame");
+
+        byte[] text = "msg cut short".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = BinaryCodec.fromText(text, text.length, 4);
+        try {
+            BinaryDecoder decoder = new BinaryDecoder();
+            Check.check(decoder.decode(ByteBuffer.wrap(frame, 0, frame.length - 1)) == null,
+                    "a frame missing its last byte was decoded");
+            Check.equal("cut short", decoder.decode(ByteBuffer.wrap(frame, frame.length - 1, 1)).argument(0),
+                    "the frame once its last byte arrived");
+        } catch (IOException e) {
+            throw new AssertionError("a frame cut short was refused", e);
+        }
+    }
+
+    // Fails unless decoding the bytes throws
+    private static void refuses(byte[] bytes, String what) {
+        try {
+            new BinaryDecoder().decode(ByteBuffer.wrap(bytes));
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError(what + " was accepted");
+    }
+
+    // One text line and the fields it should decode to
+    private static class Line {
+        private final ProtocolCommand command;
+        private final byte[] text;
+        private final int bodyStart;
+        private final List<String> fields;
+
+        private Line(ProtocolCommand command, String text, int bodyStart, List<String> fields) {
+            this.command = command;
+            this.text = text.getBytes(StandardCharsets.UTF_8);
+            this.bodyStart = bodyStart;
+            this.fields = fields;
+        }
+
+        // A line the server or a client could send: words and a body, only words, or an error message
+        private static Line random(Random random) {
+            switch (random.nextInt(6)) {
+                case 0: // msg body, as a client sends it
+                    return withBody(ProtocolCommand.MSG, random, 0);
+                case 1: // msg user body
+                    return withBody(ProtocolCommand.MSG, random, 1);
+                case 2: // msgid id user body
+                    return withBody(ProtocolCommand.MSGID, random, 2);
+                case 3: // rmsg room user body
+                    return withBody(ProtocolCommand.RMSG, random, 2);
+                case 4: { // roster version user..., every word a field
+                    List<String> words = words(random, 1 + random.nextInt(300));
+                    return new Line(ProtocolCommand.ROSTER, "roster " + String.join(" ", words), -1, words);
+                }
+                default: { // An error line, which has no opcode of its own and becomes one field
+                    String text = "Unknown command: \"" + word(random) + "\"";
+                    return new Line(ProtocolCommand.UNKNOWN, text, -1, Arrays.asList(text));
+                }
+            }
+        }
+
+        // The verb, the number of words and a random body, which may be empty or large
+        private static Line withBody(ProtocolCommand command, Random random, int wordCount) {
+            List<String> fields = words(random, wordCount);
+            StringBuilder prefix = new StringBuilder(command.verb()).append(' ');
+            for (String word : fields) {
+                prefix.append(word).append(' ');
+            }
+            int bodyLength = random.nextInt(10) == 0 ? random.nextInt(20_000) : random.nextInt(200);
+            List<String> characters = new ArrayList<>();
+            for (int i = 0; i < bodyLength; i++) {
+                // Bodies that repeat themselves, so compressing them pays off
+                characters.add(i % 50 < 25 ? CHARACTERS[random.nextInt(CHARACTERS.length)] : characters.get(i % 25));
+            }
+            String body = String.join("", characters);
+            fields.add(body);
+            return new Line(command, prefix + body,
+                    prefix.toString().getBytes(StandardCharsets.UTF_8).length, fields);
+        }
+
+        // Some words without spaces or newlines
+        private static List<String> words(Random random, int count) {
+            List<String> words = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                words.add(word(random));
+            }
+            return words;
+        }
+
+        // A word of one to twelve characters other than a space or newline
+        private static String word(Random random) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 0, length = 1 + random.nextInt(12); i < length; i++) {
+                String character;
+                do {
+                    character = CHARACTERS[random.nextInt(CHARACTERS.length)];
+                } while (character.equals(" ") || character.equals("\n"));
+                word.append(character);
+            }
+            return word.toString();
+        }
+
+        // Encodes the line the way the server turns a text line into a v2 frame
+        private byte[] encode() {
+            return BinaryCodec.fromText(text, text.length, bodyStart);
+        }
+
+        // Fails unless the decoded frame has the command and fields this line was made of
+        private void check(ProtocolLine line) {
+            Check.equal(command, line.command(), "command");
+            Check.equal(fields.size(), line.argumentCount(), "fields of " + command);
+            for (int i = 0; i < fields.size(); i++) {
+                Check.equal(fields.get(i), line.argument(i), "field " + i + " of " + command);
+            }
+        }
+    }
+}
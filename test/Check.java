@@ -0,0 +1,31 @@
+/*
+ * Author: Adin Geist
+ * Description: The few assertions the tests need. A failed check throws, which ends the test's JVM with an error
+ *              that RunTests reports.
+ */
+
+import java.util.Objects;
+
+final class Check {
+    private Check() {
+    }
+
+    // Fails the test with the message unless the condition holds
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // Fails the test unless both values are equal
+    static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    // Tells RunTests the test got to the end
+    static void passed(Class<?> test) {
+        System.out.println("PASS " + test.getName());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Author: Adin Geist
+ * Description: Runs ChatClient against a server that fans broadcasts out on several threads, next to a client that
+ *              logs in and never reads. The block policy with a long timeout would hold a shard's thread on that
+ *              client for a minute. Fan-out threads must never wait, so the stuck client is disconnected and the
+ *              healthy one gets every broadcast, in order, and sees the stuck one go offline.
+ */
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ClientTest {
+    private static final int MESSAGES = 3000;
+    // Broadcasts the sender may be ahead of the listener, well below the queue capacity so only the stuck one overflows
+    private static final int WINDOW = 32;
+    // Big enough that the stuck client's socket buffers fill long before the last message
+    private static final String PADDING = " " + "x".repeat(8192);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.limit.messagesPerSecond", "0");
+        System.setProperty("chat.limit.bytesPerSecond", "0");
+        System.setProperty("chat.fanout.threads", "2");
+        System.setProperty("chat.outbound.capacity", "256");
+        System.setProperty("chat.outbound.policy", "block");
+        System.setProperty("chat.outbound.blockTimeoutMillis", "60000");
+        for (String mode : new String[]{"threads", "nio"}) {
+            stuckClientIsDisconnected(mode);
+        }
+        Check.passed(ClientTest.class);
+    }
+
+    // One client broadcasts while another never reads. The third must get every broadcast and see the stuck one leave.
+    private static void stuckClientIsDisconnected(String mode) throws Exception {
+        TestServer server = TestServer.start(mode);
+        Socket stuck = new Socket();
+        stuck.setReceiveBufferSize(4096);
+        stuck.connect(new InetSocketAddress("127.0.0.1", server.port));
+        OutputStream out = stuck.getOutputStream();
+        out.write("login stuck\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        List<String> received = new ArrayList<>();
+        Set<String> offline = ConcurrentHashMap.newKeySet();
+        ChatClient sender = new ChatClient("127.0.0.1", server.port);
+        ChatClient listener = new ChatClient("127.0.0.1", server.port);
+        listener.setMessageListener((fromLogin, msgBody) -> {
+            if (fromLogin.equals("one")) {
+                synchronized (received) {
+                    received.add(msgBody);
+                }
+            }
+        });
+        UserStatusListener status = new UserStatusListener() {
+            @Override
+            public void online(String login) {
+            }
+
+            @Override
+            public void offline(String login) {
+                offline.add(login);
+            }
+        };
+        listener.setStatusListener(status);
+        sender.setStatusListener(status);
+        sender.setMessageListener((fromLogin, msgBody) -> {
+        });
+        Check.check(sender.connect() && sender.login("one"), mode + ": one logs in");
+        Check.check(listener.connect() && listener.login("two"), mode + ": two logs in");
+        sender.startMessageReader();
+        listener.startMessageReader();
+
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        for (int i = 0; i < MESSAGES; i++) {
+            while (size(received) < i - WINDOW) {
+                Check.check(System.nanoTime() < deadline, mode + ": stuck at broadcast " + size(received));
+                Thread.sleep(1);
+            }
+            sender.msg(i + PADDING);
+        }
+        while (size(received) < MESSAGES || !offline.contains("stuck")) {
+            Check.check(System.nanoTime() < deadline, mode + ": only " + size(received) + " of " + MESSAGES
+                    + " broadcasts arrived, stuck went offline: " + offline.contains("stuck"));
+            Thread.sleep(10);
+        }
+        synchronized (received) {
+            for (int i = 0; i < MESSAGES; i++) {
+                Check.equal(i + PADDING, received.get(i), mode + ": broadcast " + i);
+            }
+        }
+        sender.unexpectedLogoffMsg();
+        listener.unexpectedLogoffMsg();
+        stuck.close();
+    }
+
+    // Returns how many broadcasts arrived so far
+    private static int size(List<String> received) {
+        synchronized (received) {
+            return received.size();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Author: Adin Geist
+ * Description: Logs clients in while a user comes and goes inside a single presence window and checks that the
+ *              roster plus the deltas after it end up showing who is really online, with no user left behind who
+ *              went offline and none missing who came back.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class PresenceTrackerTest {
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.presence.windowMillis", "10");
+        cameAndWent();
+        wentAndCameBack();
+        argumentsOfLongLines();
+        Check.passed(PresenceTrackerTest.class);
+    }
+
+    // x logs in and off inside one window, and b logs in in between. b's snapshot shows x, so the delta must take
+    // x away again.
+    private static void cameAndWent() throws Exception {
+        SessionRegistry sessions = new SessionRegistry(4);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        PresenceTracker presence = new PresenceTracker(sessions, scheduler);
+        CountDownLatch window = holdFlushes(scheduler);
+        try {
+            User x = new User("x");
+            sessions.add(x);
+            presence.online("x");
+            User b = new User("b");
+            presence.subscribe(b);
+            sessions.remove(x);
+            presence.offline("x");
+            window.countDown();
+
+            Check.equal(new HashSet<>(), b.awaitDelta(), "b's view once x came and went");
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    // x was online, goes offline and logs in again inside one window, and b logs in in between. b's snapshot misses
+    // x, so the delta must bring x back.
+    private static void wentAndCameBack() throws Exception {
+        SessionRegistry sessions = new SessionRegistry(4);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        PresenceTracker presence = new PresenceTracker(sessions, scheduler);
+        User x = new User("x");
+        sessions.add(x);
+        CountDownLatch window = holdFlushes(scheduler);
+        try {
+            sessions.remove(x);
+            presence.offline("x");
+            User b = new User("b");
+            presence.subscribe(b);
+            User again = new User("x");
+            sessions.add(again);
+            presence.online("x");
+            window.countDown();
+
+            Check.equal(new HashSet<>(Arrays.asList("x")), b.awaitDelta(), "b's view once x came back");
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    // Arguments walked in one pass are the same ones argument() returns one at a time
+    private static void argumentsOfLongLines() {
+        LineDecoder decoder = new LineDecoder();
+        for (String text : new String[]{"roster 3", "roster 3 ", "roster 3 a", "roster 3 a b  c  ", "roster",
+                "presence 9 +a -b +c"}) {
+            ProtocolLine line = decoder.decode(ByteBuffer.wrap((text + "\n").getBytes()));
+            List<String> expected = new ArrayList<>();
+            for (int i = 1; i < line.argumentCount(); i++) {
+                expected.add(line.argument(i));
+            }
+            Check.equal(expected, line.arguments(1), "arguments of \"" + text + "\"");
+        }
+    }
+
+    // Keeps the scheduler from flushing until the returned latch is counted down
+    private static CountDownLatch holdFlushes(ScheduledExecutorService scheduler) {
+        CountDownLatch window = new CountDownLatch(1);
+        scheduler.execute(() -> {
+            try {
+                window.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return window;
+    }
+
+    // A roster client that keeps the lines it is sent, without a connection
+    private static class User extends ClientController {
+        private final String login;
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        private User(String login) {
+            super(null);
+            this.login = login;
+        }
+
+        @Override
+        public String getLogin() {
+            return login;
+        }
+
+        @Override
+        void send(Frame frame) {
+            byte[] bytes = new byte[frame.length()];
+            frame.copyTo(bytes, 0);
+            received.add(new String(bytes, 0, bytes.length - 1));
+        }
+
+        // Applies the snapshot and then the first delta the way a client does, and returns who it shows online
+        private Set<String> awaitDelta() throws InterruptedException {
+            Set<String> online = new HashSet<>();
+            ProtocolLine roster = parse(received.take());
+            Check.equal(ProtocolCommand.ROSTER, roster.command(), "first line");
+            long version = Long.parseLong(roster.argument(0));
+            online.addAll(roster.arguments(1));
+
+            String next = received.poll(10, TimeUnit.SECONDS);
+            Check.check(next != null, login + " got no delta");
+            ProtocolLine delta = parse(next);
+            Check.equal(ProtocolCommand.PRESENCE, delta.command(), "second line");
+            Check.check(Long.parseLong(delta.argument(0)) > version, "delta not newer than the snapshot: " + next);
+            for (String change : delta.arguments(1)) {
+                if (change.startsWith("+")) {
+                    online.add(change.substring(1));
+                } else {
+                    online.remove(change.substring(1));
+                }
+            }
+            return online;
+        }
+
+        // Parses one received line
+        private static ProtocolLine parse(String text) {
+            return new LineDecoder().decode(ByteBuffer.wrap((text + "\n").getBytes()));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Author: Adin Geist
+ * Description: Checks that a line refused by one rate limit bucket doesn't use up the others, and that with the
+ *              limits on a client flooding broadcasts as fast as it can doesn't slow down everyone else's. Pingers
+ *              time how long their own broadcasts take to come back, first on a quiet server and then during the
+ *              flood, and the flood may only reach them at the rate the limits allow.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiterTest {
+    private static final int MESSAGES_PER_SECOND = 50;
+    private static final int MESSAGE_BURST = 100;
+    private static final int BYTE_BURST = 1_000_000;
+    private static final int PINGERS = 3;
+    // Under the per-login rate, so the pingers themselves are never refused
+    private static final long PING_INTERVAL_MILLIS = 25;
+    private static final long QUIET_MILLIS = 1000;
+    private static final long FLOOD_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.limit.messagesPerSecond", String.valueOf(MESSAGES_PER_SECOND));
+        System.setProperty("chat.limit.messageBurst", String.valueOf(MESSAGE_BURST));
+        System.setProperty("chat.limit.bytesPerSecond", String.valueOf(BYTE_BURST));
+        System.setProperty("chat.limit.byteBurst", String.valueOf(BYTE_BURST));
+        System.setProperty("chat.limit.maxViolations", "0"); // The flooder has to keep going for the whole test
+        refusedLinesCostNothing();
+        floodDoesNotSlowOthers();
+        Check.passed(RateLimiterTest.class);
+    }
+
+    // A message refused for its bytes keeps its message token, and lines a login's limits refuse don't use up the
+    // limits of its address, which other users behind it share
+    private static void refusedLinesCostNothing() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            RateLimiter limiter = new RateLimiter(scheduler);
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            long start = System.nanoTime();
+            Check.check(limiter.allow(loopback, "a", ProtocolCommand.MSG, BYTE_BURST - 1000), "a large message");
+            Check.check(!limiter.allow(loopback, "a", ProtocolCommand.MSG, BYTE_BURST / 2), "a message over the bytes");
+            checkAllowed(MESSAGE_BURST - 1, limiter, loopback, "a", start,
+                    "messages left after one refused for its bytes");
+
+            // Four logins' worth for the address, a quarter of them left once b is done
+            InetAddress shared = InetAddress.getByName("10.0.0.1");
+            checkAllowed(MESSAGE_BURST, limiter, shared, "b", System.nanoTime(), "messages of b");
+            for (int i = 0; i < MESSAGE_BURST * 4; i++) {
+                limiter.allow(shared, "b", ProtocolCommand.MSG, 10);
+            }
+            checkAllowed(MESSAGE_BURST, limiter, shared, "c", System.nanoTime(),
+                    "messages of c behind the same address after b was refused many times");
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    // Sends small messages from the login at the address until one is refused, and fails unless the expected number
+    // got through, plus whatever the bucket refilled since the start
+    private static void checkAllowed(int expected, RateLimiter limiter, InetAddress address, String login, long start,
+                                     String what) {
+        int allowed = 0;
+        while (limiter.allow(address, login, ProtocolCommand.MSG, 10)) {
+            allowed++;
+        }
+        double refilled = (System.nanoTime() - start) / 1e9 * MESSAGES_PER_SECOND;
+        Check.check(allowed >= expected && allowed <= expected + Math.ceil(refilled), what + ": " + allowed
+                + " allowed, expected " + expected + " and up to " + (int) Math.ceil(refilled) + " refilled");
+    }
+
+    // Pingers measure their round trips on a quiet server, then while a flooder sends as fast as it can. With the
+    // flood held to the limits, the pingers' p95 must stay close to what it was before.
+    private static void floodDoesNotSlowOthers() throws Exception {
+        TestServer test = TestServer.start("nio");
+        List<Pinger> pingers = new ArrayList<>();
+        for (int i = 0; i < PINGERS; i++) {
+            pingers.add(new Pinger(test.port, "pinger" + i));
+        }
+        ping(pingers, QUIET_MILLIS, false);
+
+        Socket flooder = login(test.port, "flooder");
+        AtomicLong flooded = new AtomicLong();
+        Thread flood = daemon(() -> {
+            byte[] line = ("msg " + "f".repeat(100) + "\n").getBytes(StandardCharsets.UTF_8);
+            try (OutputStream out = new BufferedOutputStream(flooder.getOutputStream(), 64 * 1024)) {
+                while (!Thread.currentThread().isInterrupted()) {
+                    out.write(line);
+                    flooded.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Closed at the end of the flood
+            }
+        });
+        daemon(() -> drain(flooder));
+        long floodStart = System.nanoTime();
+        ping(pingers, FLOOD_MILLIS, true);
+        flood.interrupt();
+        double floodSeconds = (System.nanoTime() - floodStart) / 1e9;
+        flooder.close();
+
+        List<Long> quiet = new ArrayList<>();
+        List<Long> flooding = new ArrayList<>();
+        for (Pinger pinger : pingers) {
+            Check.equal(pinger.sent, pinger.quiet.size() + pinger.flooding.size(), pinger.login + ": pings back");
+            quiet.addAll(pinger.quiet);
+            flooding.addAll(pinger.flooding);
+            long allowed = MESSAGE_BURST + (long) Math.ceil(MESSAGES_PER_SECOND * floodSeconds) + 1;
+            Check.check(pinger.floodReceived <= allowed, pinger.login + " got " + pinger.floodReceived
+                    + " flood messages, over the " + allowed + " the limits allow");
+        }
+        long quietP95 = p95(quiet);
+        long floodP95 = p95(flooding);
+        System.out.printf("flooder sent %d lines, pingers p95 %.2f ms quiet and %.2f ms during the flood%n",
+                flooded.get(), quietP95 / 1e6, floodP95 / 1e6);
+        Check.check(flooded.get() > 10L * MESSAGE_BURST, "the flooder only sent " + flooded.get() + " lines");
+        Check.check(floodP95 <= Math.max(4 * quietP95, 25_000_000L), "pingers' p95 went from "
+                + quietP95 / 1e6 + " ms to " + floodP95 / 1e6 + " ms during the flood");
+    }
+
+    // Has every pinger broadcast one ping each interval for the given time, then waits until they all came back
+    private static void ping(List<Pinger> pingers, long millis, boolean flooding) throws Exception {
+        long end = System.nanoTime() + millis * 1_000_000;
+        while (System.nanoTime() < end) {
+            for (Pinger pinger : pingers) {
+                pinger.ping(flooding);
+            }
+            Thread.sleep(PING_INTERVAL_MILLIS);
+        }
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        for (Pinger pinger : pingers) {
+            while (pinger.quiet.size() + pinger.flooding.size() < pinger.sent && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // The 95th percentile of the round trips, in nanoseconds
+    private static long p95(List<Long> nanos) {
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        Check.check(!sorted.isEmpty(), "no pings came back");
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(sorted.size() * 0.95) - 1));
+    }
+
+    // Connects and logs in, returning once the login is accepted
+    private static Socket login(int port, String login) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write(("login " + login + "\n").getBytes(StandardCharsets.UTF_8));
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = socket.getInputStream().read()) >= 0) {
+            if (c != '\n') {
+                line.append((char) c);
+            } else if (line.toString().startsWith("login ")) {
+                break;
+            } else {
+                line.setLength(0);
+            }
+        }
+        Check.equal("login ok", line.toString(), "login of " + login);
+        return socket;
+    }
+
+    // Starts the task on a daemon thread
+    private static Thread daemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Reads and throws away whatever arrives until the connection closes
+    private static void drain(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            while (socket.getInputStream().read(buffer) >= 0) {
+                // The flooder's refusals and its few broadcasts that got through
+            }
+        } catch (IOException e) {
+            // Closed at the end of the flood
+        }
+    }
+
+    // A user that broadcasts the time it sent each ping and times how long it takes to get it back
+    private static class Pinger {
+        private final String login;
+        private final Socket socket;
+        private final List<Long> quiet = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> flooding = Collections.synchronizedList(new ArrayList<>());
+        private volatile long floodReceived = 0;
+        private int sent = 0;
+
+        // Constructor that logs in and starts reading
+        private Pinger(int port, String login) throws IOException {
+            this.login = login;
+            this.socket = login(port, login);
+            daemon(this::read);
+        }
+
+        // Broadcasts the current time, marked with whether the flood is on
+        private void ping(boolean flooding) throws IOException {
+            String line = "msg " + (flooding ? "f" : "q") + System.nanoTime() + "\n";
+            socket.getOutputStream().write(line.getBytes(StandardCharsets.UTF_8));
+            sent++;
+        }
+
+        // Reads every line, timing its own pings and counting the flooder's broadcasts
+        private void read() {
+            String own = "msg " + login + " ";
+            try {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.startsWith(own)) {
+                        long elapsed = System.nanoTime() - Long.parseLong(line.substring(own.length() + 1));
+                        (line.charAt(own.length()) == 'f' ? flooding : quiet).add(elapsed);
+                    } else if (line.startsWith("msg flooder ")) {
+                        floodReceived++;
+                    }
+                }
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Author: Adin Geist
+ * Description: Runs every test, or the ones named on the command line, each in a JVM of its own so each can start
+ *              servers with its own settings. Prints what failed and exits with 1 if anything did.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RunTests {
+    // Every test, in the order they run
+    private static final List<String> TESTS = Arrays.asList(
+            "SessionRegistryStressTest",
+            "PresenceTrackerTest",
+            "BacklogReplayTest",
+            "BinaryCodecTest",
+            "V2ProtocolTest",
+            "RateLimiterTest",
+            "SearchIndexTest",
+            "ClientTest");
+    // Longest a single test may take before it counts as hung
+    private static final long TIMEOUT_SECONDS = 300;
+
+    public static void main(String[] args) throws Exception {
+        List<String> tests = args.length > 0 ? Arrays.asList(args) : TESTS;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> failed = new ArrayList<>();
+        for (String test : tests) {
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), test)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), test + ".out"))
+                    .start();
+            boolean finished = process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!finished) {
+                process.destroyForcibly();
+            }
+            boolean ok = finished && process.exitValue() == 0;
+            System.out.println((ok ? "ok     " : "FAILED ") + test);
+            if (!ok) {
+                failed.add(test);
+            }
+        }
+        if (!failed.isEmpty()) {
+            System.out.println(failed.size() + " of " + tests.size() + " failed, output is in "
+                    + System.getProperty("java.io.tmpdir") + File.separator + "<test>.out");
+            System.exit(1);
+        }
+        System.out.println("All " + tests.size() + " passed.");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Author: Adin Geist
+ * Description: Indexes broadcasts while several threads are still recording them out of order, the way concurrent
+ *              senders do. The index must find every message once recording is done, including the ones whose id
+ *              was handed out before an older one was recorded, and search by sender and by several words.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class SearchIndexTest {
+    private static final int RECORDERS = 4;
+    private static final int MESSAGES = 40_000;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.history.ringSize", String.valueOf(1 << 17));
+        System.setProperty("chat.search.intervalMillis", "1");
+        MessageHistory history = new MessageHistory(null);
+        SearchIndex index = SearchIndex.startConfigured(history, new SessionRegistry(4));
+        Check.check(index != null, "search is turned off");
+
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < RECORDERS; t++) {
+            int recorder = t;
+            recorders.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < MESSAGES / RECORDERS; i++) {
+                    long id = history.nextId();
+                    if (random.nextInt(4) == 0) Thread.yield(); // Others take and record ids meanwhile
+                    String body = "every message " + (id % 2 == 0 ? "even" : "odd");
+                    String prefix = "msgid " + id + " ";
+                    history.record(id, Frame.of(prefix + "user" + recorder + " ",
+                            body.getBytes(StandardCharsets.UTF_8), 0), prefix.length());
+                }
+            }));
+        }
+        recorders.forEach(Thread::start);
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (index.indexedThrough() < MESSAGES) {
+            Check.check(System.nanoTime() < deadline, "only indexed through " + index.indexedThrough());
+            Thread.sleep(1);
+        }
+
+        Check.equal(MESSAGES, find(index, "every").size(), "messages found with a word they all have");
+        Check.equal(MESSAGES / 2, find(index, "message", "even").size(), "even messages found with two words");
+        Check.equal(MESSAGES / RECORDERS, find(index, "from:user1").size(), "messages found by their sender");
+        List<Long> odd = find(index, "odd");
+        for (int i = 0; i < odd.size(); i++) {
+            Check.equal((long) MESSAGES - 1 - 2 * i, odd.get(i), "odd message, newest first");
+        }
+        Check.passed(SearchIndexTest.class);
+    }
+
+    // Every message with all the words, newest first
+    private static List<Long> find(SearchIndex index, String... words) {
+        return index.find(Arrays.asList(words), Long.MAX_VALUE, MESSAGES + 1);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Author: Adin Geist
+ * Description: Churns logins and logoffs from many threads while others iterate the registry, first against the
+ *              SessionRegistry alone and then against running servers in every mode while a broadcast is going on.
+ *              Catches logins left behind by clients that disconnected while logging in, two clients holding one
+ *              name, and iteration that throws or loses broadcasts while clients come and go.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SessionRegistryStressTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20_000;
+    private static final String[] NAMES = {"ann", "Ann", "ben", "BEN", "cat", "CAT", "dan", "Dan"};
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.limit.messagesPerSecond", "0");
+        System.setProperty("chat.limit.bytesPerSecond", "0");
+        claimRacingRemove();
+        contendedNames();
+        for (String mode : new String[]{"threads", "virtual", "nio"}) {
+            churnDuringBroadcast(mode);
+        }
+        Check.passed(SessionRegistryStressTest.class);
+    }
+
+    // A client that disconnects while its login is being claimed must never leave the login held. Claimers hand
+    // every client to the removers before claiming for it, so removes land in the middle of claims. Once every client
+    // is gone no login may be left, and a login that was left would also have turned down every later claim for it.
+    private static void claimRacingRemove() throws Exception {
+        SessionRegistry sessions = new SessionRegistry(4);
+        Queue<ClientController> connected = new ConcurrentLinkedQueue<>();
+        AtomicInteger claimersLeft = new AtomicInteger(THREADS / 2);
+        AtomicInteger granted = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS / 2; t++) {
+            String login = "racer" + t;
+            threads.add(new Thread(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    ClientController client = new ClientController(null);
+                    sessions.add(client);
+                    connected.add(client);
+                    if (sessions.claimLogin(login, client)) {
+                        granted.incrementAndGet();
+                    }
+                }
+                claimersLeft.decrementAndGet();
+            }));
+            threads.add(new Thread(() -> {
+                ClientController client;
+                while ((client = connected.poll()) != null || claimersLeft.get() > 0) {
+                    if (client != null) {
+                        sessions.remove(client);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        runAll(threads, failure);
+        Check.check(granted.get() > 0, "no claim was ever granted");
+        Check.equal(0, sessions.size(), "clients left after every one was removed");
+        Check.equal(0, sessions.loginCount(), "logins left held by clients that were removed");
+        for (int shard = 0; shard < sessions.shardCount(); shard++) {
+            Check.check(sessions.shard(shard).isEmpty(), "shard " + shard + " still has clients");
+        }
+    }
+
+    // Threads fight over a few names, differing only in case, while others iterate. A name is never held twice.
+    private static void contendedNames() throws Exception {
+        SessionRegistry sessions = new SessionRegistry(4);
+        AtomicIntegerArray holders = new AtomicIntegerArray(NAMES.length);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int round = 0; round < ROUNDS; round++) {
+                    ClientController client = new ClientController(null);
+                    sessions.add(client);
+                    int name = random.nextInt(NAMES.length);
+                    int slot = name / 2 * 2; // "ann" and "Ann" are the same login
+                    if (sessions.claimLogin(NAMES[name], client)) {
+                        int held = holders.incrementAndGet(slot);
+                        if (held != 1 || sessions.find(NAMES[slot]) != client) {
+                            failure.compareAndSet(null, new AssertionError(NAMES[name] + " is held by " + held
+                                    + " clients"));
+                        }
+                        holders.decrementAndGet(slot);
+                    }
+                    sessions.remove(client);
+                }
+            }));
+        }
+        Thread iterator = new Thread(() -> {
+            while (!done.get()) {
+                int seen = 0;
+                for (ClientController client : sessions.sessions()) {
+                    if (client != null) seen++;
+                }
+                for (int shard = 0; shard < sessions.shardCount(); shard++) {
+                    seen += sessions.shard(shard).size();
+                }
+                if (seen < 0) throw new IllegalStateException();
+            }
+        });
+        iterator.setUncaughtExceptionHandler((thread, e) -> failure.compareAndSet(null, e));
+        iterator.start();
+        runAll(threads, failure);
+        done.set(true);
+        iterator.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        Check.equal(0, sessions.size(), "clients left after every one was removed");
+        Check.equal(0, sessions.loginCount(), "logins left after every client was removed");
+    }
+
+    // Clients log in and out of a running server, or just drop their connection, while one user broadcasts to
+    // another. Every login must succeed, every broadcast arrive in order, and the registry end up with only the two.
+    private static void churnDuringBroadcast(String mode) throws Exception {
+        TestServer test = TestServer.start(mode);
+        int broadcasts = 5000;
+        Connection caster = new Connection(test.port, "caster");
+        Connection listener = new Connection(test.port, "listener");
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger churned = new AtomicInteger();
+
+        Thread sender = new Thread(() -> {
+            try {
+                OutputStream out = caster.socket.getOutputStream();
+                for (int i = 0; i < broadcasts; i++) {
+                    out.write(("msg m" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                    if (i % 100 == 0) Thread.sleep(1);
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        Thread drainer = new Thread(caster::drain); // The caster gets its own broadcasts back
+        drainer.setDaemon(true);
+        List<Thread> churners = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            churners.add(new Thread(() -> {
+                try {
+                    for (int round = 0; round < 40; round++) {
+                        Connection churner = new Connection(test.port, "churn" + thread + "_" + round);
+                        if (round % 2 == 0) {
+                            churner.socket.getOutputStream().write("logoff\n".getBytes(StandardCharsets.UTF_8));
+                        }
+                        churner.socket.close();
+                        churned.incrementAndGet();
+                    }
+                } catch (Exception | AssertionError e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        drainer.start();
+        sender.start();
+        churners.forEach(Thread::start);
+
+        int next = 0;
+        while (next < broadcasts) {
+            String line = listener.reader.readLine();
+            Check.check(line != null, mode + ": the listener was disconnected after " + next + " broadcasts");
+            if (!line.startsWith("msg caster ")) continue; // Presence of the churning clients
+            Check.equal("msg caster m" + next, line, mode + ": broadcast out of order");
+            next++;
+        }
+        sender.join();
+        for (Thread churner : churners) {
+            churner.join();
+        }
+        if (failure.get() != null) throw new AssertionError(mode, failure.get());
+        Check.equal(THREADS * 40, churned.get(), mode + ": churned logins");
+
+        SessionRegistry sessions = test.server.getSessions();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while ((sessions.size() != 2 || sessions.loginCount() != 2) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        Check.equal(2, sessions.size(), mode + ": clients left connected");
+        Check.equal(2, sessions.loginCount(), mode + ": logins left held");
+        caster.socket.close();
+        listener.socket.close();
+    }
+
+    // Starts the threads, waits for all of them and fails if any of them did
+    private static void runAll(List<Thread> threads, AtomicReference<Throwable> failure) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+
+    // A logged in text protocol client
+    private static class Connection {
+        private final Socket socket;
+        private final BufferedReader reader;
+
+        // Constructor that connects and logs in, failing the test unless the login is accepted
+        private Connection(int port, String login) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(30_000);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            socket.getOutputStream().write(("login " + login + "\n").getBytes(StandardCharsets.UTF_8));
+            // Broadcasts and presence reach clients that haven't logged in yet too, so skip those
+            String answer;
+            do {
+                answer = reader.readLine();
+            } while (answer != null && (answer.startsWith("msg ") || answer.startsWith("online ")
+                    || answer.startsWith("offline ")));
+            Check.equal("login ok", answer, "login of " + login);
+        }
+
+        // Reads and throws away whatever arrives until the connection closes
+        private void drain() {
+            char[] buffer = new char[64 * 1024];
+            try {
+                while (reader.read(buffer) >= 0) {
+                    // Nothing to check, it only has to keep up
+                }
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        }
+    }
+}
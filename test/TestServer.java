@@ -0,0 +1,51 @@
+/*
+ * Author: Adin Geist
+ * Description: Runs a chat server inside the test's own JVM on a free port and waits until it takes connections.
+ *              Settings are read once, when the server classes load, so tests set them with System.setProperty
+ *              before the first server is started.
+ */
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+final class TestServer {
+    final Server server;
+    final int port;
+
+    // Constructor that accepts the started server and the port it listens on
+    private TestServer(Server server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    // Starts a server in the given mode, threads, virtual or nio, and returns once it accepts connections
+    static TestServer start(String mode) throws IOException, InterruptedException {
+        int port = freePort();
+        Server server;
+        if (mode.equals("nio")) {
+            server = new NioServer(port);
+        } else {
+            server = new Server(port, mode.equals("virtual"));
+        }
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return new TestServer(server, port);
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // Returns a port nothing listens on right now
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
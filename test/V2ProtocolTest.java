@@ -0,0 +1,144 @@
+/*
+ * Author: Adin Geist
+ * Description: Two ChatClients that negotiate v2 and deflate talk through a running server in every mode next to a
+ *              text client that never says hello. Bodies with newlines and runs of spaces must reach v2 clients
+ *              unchanged, large ones compressed and back, and the text client must get them on one line.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class V2ProtocolTest {
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.limit.messagesPerSecond", "0");
+        System.setProperty("chat.limit.bytesPerSecond", "0");
+        for (String mode : new String[]{"threads", "virtual", "nio"}) {
+            talk(mode);
+        }
+        Check.passed(V2ProtocolTest.class);
+    }
+
+    // Sends every kind of message between the clients and checks what each of them got
+    private static void talk(String mode) throws Exception {
+        TestServer test = TestServer.start(mode);
+        Listener one = new Listener(test.port, "one");
+        Listener two = new Listener(test.port, "two");
+        Socket text = new Socket("127.0.0.1", test.port);
+        text.setSoTimeout(10_000);
+        text.getOutputStream().write("login three\n".getBytes(StandardCharsets.UTF_8));
+        BufferedReader textLines = new BufferedReader(new InputStreamReader(text.getInputStream(),
+                StandardCharsets.UTF_8));
+        Check.check(one.client.hasCapability(Capability.V2), mode + ": v2 wasn't negotiated");
+        Check.check(one.client.hasCapability(Capability.DEFLATE), mode + ": deflate wasn't negotiated");
+        Check.equal("login ok", nextLine(textLines, "login "), mode + ": text login");
+
+        String lines = "line one\nline two  spaced\r\nand a \\ backslash";
+        one.client.msg(lines);
+        Check.equal("msg one " + lines, two.next(), mode + ": broadcast with line breaks");
+        Check.equal("msg one line one line two  spaced  and a \\ backslash", nextLine(textLines, "msg "),
+                mode + ": the same broadcast as text");
+
+        String big = "trace line\n".repeat(500);
+        one.client.msg(big);
+        Check.equal("msg one " + big, two.next(), mode + ": large compressed broadcast");
+        Check.equal("msg one " + big.replace('\n', ' '), nextLine(textLines, "msg "), mode + ": the same as text");
+
+        one.client.dm("two", "secret\nstuff");
+        Check.equal("dm one secret\nstuff", two.next(), mode + ": direct message");
+
+        one.client.join("room1");
+        one.await("join room1 one", mode + ": join");
+        two.client.join("room1");
+        two.await("join room1 two", mode + ": join");
+        two.client.roomMsg("room1", "in\nroom");
+        Check.equal("rmsg room1 two in\nroom", one.next(), mode + ": room message");
+
+        text.getOutputStream().write("msg from text\n".getBytes(StandardCharsets.UTF_8));
+        Check.equal("msg three from text", two.next(), mode + ": broadcast from the text client");
+
+        one.client.unexpectedLogoffMsg();
+        two.client.unexpectedLogoffMsg();
+        text.close();
+    }
+
+    // Reads lines until one starts with the prefix and returns it, skipping presence and the like
+    private static String nextLine(BufferedReader reader, String prefix) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(prefix)) return line;
+        }
+        throw new AssertionError("disconnected while waiting for " + prefix);
+    }
+
+    // A logged in ChatClient and everything its listener got from others, as text lines with the bodies as they
+    // arrived
+    private static class Listener implements MessageListener {
+        private final ChatClient client;
+        private final String login;
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        // Constructor that connects, negotiates everything the client supports and logs in
+        private Listener(int port, String login) {
+            this.login = login;
+            client = new ChatClient("127.0.0.1", port);
+            Check.check(client.connect(), login + " couldn't connect");
+            Check.check(client.login(login), login + " couldn't log in");
+            client.setMessageListener(this);
+            client.setStatusListener(new UserStatusListener() {
+                @Override
+                public void online(String user) {
+                }
+
+                @Override
+                public void offline(String user) {
+                }
+
+                @Override
+                public void joined(String room, String user) {
+                    received.add("join " + room + " " + user);
+                }
+            });
+            client.startMessageReader();
+        }
+
+        @Override
+        public void onMessage(String fromLogin, String msgBody) {
+            if (!fromLogin.equals(login)) received.add("msg " + fromLogin + " " + msgBody);
+        }
+
+        @Override
+        public void onDirectMessage(String fromLogin, String msgBody) {
+            received.add("dm " + fromLogin + " " + msgBody);
+        }
+
+        @Override
+        public void onRoomMessage(String room, String fromLogin, String msgBody) {
+            if (!fromLogin.equals(login)) received.add("rmsg " + room + " " + fromLogin + " " + msgBody);
+        }
+
+        // Waits for the thing the listener should get, skipping whatever else arrives first, like members already in
+        // a room it joined
+        private void await(String expected, String what) throws InterruptedException {
+            String next;
+            do {
+                next = received.poll(10, TimeUnit.SECONDS);
+                Check.check(next != null, what + ": " + expected + " never arrived");
+            } while (!next.equals(expected));
+        }
+
+        // Returns the next thing the listener got, skipping joins
+        private String next() throws InterruptedException {
+            while (true) {
+                String next = received.poll(10, TimeUnit.SECONDS);
+                Check.check(next != null, login + ": nothing arrived");
+                if (!next.startsWith("join ")) return next;
+            }
+        }
+    }
+}